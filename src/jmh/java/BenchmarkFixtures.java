@@ -0,0 +1,111 @@
+import discord4j.core.object.data.stored.AttachmentBean;
+import discord4j.core.object.data.stored.ChannelBean;
+import discord4j.core.object.data.stored.MessageBean;
+import discord4j.core.object.data.stored.UserBean;
+import discord4j.core.object.data.stored.embed.EmbedBean;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/* in-memory stand-ins shared by the benchmarks. Discord4j entities are built straight from their data beans without
+ * a gateway connection, which is enough for every accessor the measured paths call; anything that would reach
+ * Discord (REST lookups, the event dispatcher) is never touched. */
+final class BenchmarkFixtures {
+    static final long GUILD = 10_000_000_000_000_001L;
+    static final long CHANNEL = 10_000_000_000_000_002L;
+
+    private BenchmarkFixtures() {
+    }
+
+    // message store that keeps nothing, so benchmarks measure ChatKat's side of a write only.
+    static final class NullMessageStore implements MessageStore {
+        @Override
+        public void write(List<MessageRecord> records) {
+        }
+
+        @Override
+        public long lastMessageTime(long guildID, long channelID) {
+            return 0;
+        }
+
+        @Override
+        public List<MessageRecord> findAt(long guildID, long channelID, long[] times) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public LongLongMap sumByAuthor(long guildID, long channelID, long sinceMillis) {
+            return new LongLongMap();
+        }
+
+        @Override
+        public void loadBuckets(long guildID, long fromMillis, long untilMillis, long bucketMillis, BucketConsumer consumer) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /* handler on the null store, with labels that need no Discord connection (and no member listing to fill the label
+     * cache from), and no leaderboard cache. channels have no history to backfill, so a submitted channel is ready at
+     * once. */
+    static DatabaseHandler handler() {
+        Properties properties = new Properties();
+        properties.setProperty("databaseName", "ChatKatBenchmark");
+        properties.setProperty("checkpointFile", System.getProperty("java.io.tmpdir") + "/chatkat-benchmark-checkpoints.bin");
+        properties.setProperty("leaderboardCacheSeconds", "0"); // every request computes its leaderboard
+        return new DatabaseHandler(null, properties, new NullMessageStore()) {
+            @Override
+            Mono<String> getUserLabel(long authorID, Snowflake guildID) {
+                return Mono.just("user" + authorID);
+            }
+
+            @Override
+            Mono<Boolean> backfillChannel(TextChannel channel) {
+                return Mono.just(true);
+            }
+        };
+    }
+
+    // a Snowflake for a message sent at the given time.
+    static long snowflake(long timeMillis, long sequence) {
+        return ((timeMillis - DatabaseHandler.DISCORD_EPOCH) << 22) | (sequence & 0x3FFFFF);
+    }
+
+    static Message message(long messageID, long channelID, long authorID, String content) {
+        UserBean author = new UserBean();
+        author.setId(authorID);
+        author.setUsername("user" + authorID);
+        author.setDiscriminator("0001");
+        author.setBot(false);
+
+        MessageBean data = new MessageBean();
+        data.setId(messageID);
+        data.setChannelId(channelID);
+        data.setAuthor(author);
+        data.setContent(content);
+        data.setTimestamp(Instant.ofEpochMilli((messageID >>> 22) + DatabaseHandler.DISCORD_EPOCH).toString());
+        data.setMentions(new long[0]);
+        data.setMentionRoles(new long[0]);
+        data.setAttachments(new AttachmentBean[0]);
+        data.setEmbeds(new EmbedBean[0]);
+        data.setType(0);
+        return new Message(null, data);
+    }
+
+    static TextChannel textChannel(long guildID, long channelID, String name) {
+        ChannelBean data = new ChannelBean();
+        data.setId(channelID);
+        data.setType(0); // guild text channel
+        data.setGuildId(guildID);
+        data.setName(name);
+        return new TextChannel(null, data);
+    }
+}
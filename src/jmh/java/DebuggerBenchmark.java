@@ -0,0 +1,43 @@
+import discord4j.core.object.entity.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/* encoding one debug CSV row per message, as the debug writer thread does. only the encoding is measured: rows are
+ * built in the writer's row buffer and nothing is queued, so the writer thread stays idle. the content carries the
+ * commas, quotes and line breaks the escaping has to deal with. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DebuggerBenchmark {
+    @Param({"plain", "escaped"})
+    String content;
+
+    private Debugger debugger;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        debugger = new Debugger(Files.createTempDirectory("chatkat-debug"), 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+        debugger.cacheGuild(BenchmarkFixtures.GUILD, "Benchmark, Inc.");
+        debugger.cacheChannel(BenchmarkFixtures.CHANNEL, "general");
+        String text = content.equals("plain")
+                ? "just a regular message about nothing in particular"
+                : "well, \"actually\" -\nit's a list: one, two, three,\n\"four\"";
+        message = BenchmarkFixtures.message(BenchmarkFixtures.snowflake(System.currentTimeMillis(), 0),
+                BenchmarkFixtures.CHANNEL, 1_000_001, text);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        debugger.close();
+    }
+
+    @Benchmark
+    public int encodeRow() {
+        debugger.encodeRow(message, BenchmarkFixtures.GUILD);
+        return debugger.row().length();
+    }
+}
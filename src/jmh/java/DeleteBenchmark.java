@@ -0,0 +1,55 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/* resolving deletes of messages the handler has seen: single delete events and one bulk delete of the same size.
+ * the message index is refilled before every invocation, so each delete finds a counted message. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeleteBenchmark {
+    private static final int BATCH = 10_000;
+
+    private DatabaseHandler handler;
+    private final long[] messageIDs = new long[BATCH];
+    private final long[] authorIDs = new long[BATCH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handler = BenchmarkFixtures.handler();
+        SplittableRandom random = new SplittableRandom(42);
+        long start = System.currentTimeMillis() - BATCH * 1000L;
+        for (int i = 0; i < BATCH; i++) {
+            messageIDs[i] = BenchmarkFixtures.snowflake(start + i * 1000L, i);
+            authorIDs[i] = 1_000_000 + random.nextInt(1000);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() {
+        handler.messageIndex = MessageAuthorIndex.open("", BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            handler.messageIndex.add(messageIDs[i], BenchmarkFixtures.CHANNEL, BenchmarkFixtures.GUILD, authorIDs[i], true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deleteOneByOne() {
+        for (long messageID : messageIDs) {
+            handler.deleteMessages(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, new long[]{messageID}).block();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void bulkDelete() {
+        handler.deleteMessages(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, messageIDs).block();
+    }
+}
@@ -0,0 +1,65 @@
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.util.Snowflake;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/* addMessage for live messages (through the write pipeline) and for backfill pages (into a batch). each message is
+ * new to the handler: once the pool of messages has been used, the message index is replaced so none are skipped
+ * as already seen. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IngestBenchmark {
+    private static final int POOL = 1 << 16;
+
+    @Param({"1000", "100000"})
+    int authors;
+
+    private DatabaseHandler handler;
+    private Message[] messages;
+    private List<MessageRecord> batch;
+    private Snowflake guild;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handler = BenchmarkFixtures.handler();
+        guild = Snowflake.of(BenchmarkFixtures.GUILD);
+        batch = new ArrayList<>(DatabaseHandler.PAGE_SIZE * DatabaseHandler.COMMIT_PAGES);
+        SplittableRandom random = new SplittableRandom(42);
+        long start = System.currentTimeMillis() - POOL * 1000L;
+        messages = new Message[POOL];
+        for (int i = 0; i < POOL; i++) {
+            messages[i] = BenchmarkFixtures.message(BenchmarkFixtures.snowflake(start + i * 1000L, i),
+                    BenchmarkFixtures.CHANNEL, 1_000_000 + random.nextInt(authors), "message number " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.close();
+    }
+
+    private Message nextMessage() {
+        if (next == POOL) {
+            next = 0;
+            handler.messageIndex = MessageAuthorIndex.open("", POOL);
+        }
+        return messages[next++];
+    }
+
+    @Benchmark
+    public Message addLiveMessage() {
+        return handler.addMessage(nextMessage(), guild);
+    }
+
+    @Benchmark
+    public Message addBackfilledMessage() {
+        if (batch.size() == DatabaseHandler.PAGE_SIZE * DatabaseHandler.COMMIT_PAGES) batch.clear();
+        return handler.addMessage(nextMessage(), guild, batch);
+    }
+}
@@ -0,0 +1,64 @@
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.util.Snowflake;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/* leaderboard output over synthetic counts: the top-N selection and formatting of renderLeaderboard's first page, and
+ * a whole "&kat -week" request through answerRequest, parameter parsing included. counts come from a loaded in-memory
+ * index holding a year of history, as they do once a guild has been backfilled. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LeaderboardBenchmark {
+    private static final long YEAR = TimeUnit.DAYS.toMillis(365);
+
+    @Param({"100", "10000", "100000"})
+    int authors;
+
+    private DatabaseHandler handler;
+    private Message request;
+    private Snowflake guild;
+    private long weekAgo;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handler = BenchmarkFixtures.handler();
+        guild = Snowflake.of(BenchmarkFixtures.GUILD);
+        SplittableRandom random = new SplittableRandom(42);
+        long now = System.currentTimeMillis();
+        for (int author = 0; author < authors; author++) {
+            // a few messages per author spread over the year, so every author has several day buckets
+            for (int i = 0; i < 4; i++) {
+                handler.index.add(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, 1_000_000 + author,
+                        now - random.nextLong(YEAR), 1 + random.nextInt(500));
+            }
+        }
+        handler.index.markLoaded(BenchmarkFixtures.GUILD);
+        handler.backfillScheduler.submit(
+                BenchmarkFixtures.textChannel(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, "general"));
+        request = BenchmarkFixtures.message(BenchmarkFixtures.snowflake(now, 0), BenchmarkFixtures.CHANNEL, 1, "&kat -week");
+        weekAgo = now - TimeUnit.DAYS.toMillis(7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.close();
+    }
+
+    @Benchmark
+    public String renderAllTime() {
+        return handler.renderLeaderboard(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, false, 0, false).block();
+    }
+
+    @Benchmark
+    public String renderWeek() {
+        return handler.renderLeaderboard(BenchmarkFixtures.GUILD, BenchmarkFixtures.CHANNEL, false, weekAgo, false).block();
+    }
+
+    @Benchmark
+    public DatabaseHandler.Reply answerWeekRequest() {
+        return handler.answerRequest(request, guild).block();
+    }
+}
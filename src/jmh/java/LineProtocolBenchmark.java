@@ -0,0 +1,45 @@
+import org.influxdb.dto.BatchPoints;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/* encoding a write batch for InfluxDB: through influxdb-java (a Point per record, serialized by BatchPoints, as
+ * InfluxMessageStore writes with influxWrites=client) and through LineProtocolEncoder (influxWrites=line). the gc
+ * profiler's allocation rate is the figure to compare. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LineProtocolBenchmark {
+    @Param({"1000", "10000"})
+    int batchSize;
+
+    private MessageRecord[] records;
+    private LineProtocolEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        long now = System.currentTimeMillis();
+        records = new MessageRecord[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            records[i] = new MessageRecord(now - random.nextLong(TimeUnit.DAYS.toMillis(365)), BenchmarkFixtures.GUILD,
+                    BenchmarkFixtures.CHANNEL, 1_000_000 + random.nextInt(1000), 1);
+        }
+        encoder = new LineProtocolEncoder(1 << 16);
+    }
+
+    @Benchmark
+    public String client() {
+        BatchPoints batch = BatchPoints.database("ChatKatBenchmark").build();
+        for (MessageRecord record : records) batch.point(InfluxMessageStore.point(record));
+        return batch.lineProtocol();
+    }
+
+    @Benchmark
+    public int encoder() {
+        encoder.reset();
+        for (MessageRecord record : records) encoder.encode(record);
+        return encoder.length();
+    }
+}
@@ -0,0 +1,95 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.StringJoiner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/* local stand-in for the InfluxDB 1.8 HTTP API. /write counts the line-protocol points it receives (gzip-compressed
+ * or not) and throws them away; /query answers every statement with an empty result. both wait latencyMillis first, like a database on the
+ * network would. */
+final class FakeInfluxDB {
+    private final HttpServer server;
+    private final long latencyMillis;
+    final LongAdder points = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder writes = new LongAdder();
+    final LongAdder queries = new LongAdder();
+
+    FakeInfluxDB(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/ping", exchange -> {
+            exchange.getResponseHeaders().add("X-Influxdb-Version", "1.8.0");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/query", exchange -> {
+            queries.increment();
+            // statements arrive in the URL (reads) or the form body (SELECT ... INTO)
+            String request = exchange.getRequestURI().getRawQuery() + "&" + new String(
+                    exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String statements = URLDecoder.decode(request, StandardCharsets.UTF_8).replaceAll("(^|.*&)q=([^&]*).*", "$2");
+            StringJoiner results = new StringJoiner(",", "{\"results\":[", "]}");
+            for (int i = 0; i < statements.split(";").length; i++) results.add("{\"statement_id\":" + i + "}");
+            byte[] body = results.toString().getBytes(StandardCharsets.UTF_8);
+            pause();
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/write", exchange -> {
+            long lines = 0;
+            long[] length = {0}; // bytes on the wire, compressed or not
+            byte last = '\n';
+            byte[] buffer = new byte[1 << 16];
+            InputStream body = new FilterInputStream(exchange.getRequestBody()) {
+                @Override
+                public int read(byte[] bytes, int offset, int count) throws IOException {
+                    int read = super.read(bytes, offset, count);
+                    if (read > 0) length[0] += read;
+                    return read;
+                }
+            };
+            boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream in = gzip ? new GZIPInputStream(body, 1 << 16) : body) {
+                for (int read; (read = in.read(buffer)) > 0; ) {
+                    for (int i = 0; i < read; i++) if (buffer[i] == '\n') lines++;
+                    last = buffer[read - 1];
+                }
+            }
+            pause();
+            points.add(last == '\n' ? lines : lines + 1); // the last line may end without a newline
+            bytes.add(length[0]);
+            writes.increment();
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    private void pause() {
+        if (latencyMillis == 0) return;
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
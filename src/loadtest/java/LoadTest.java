@@ -0,0 +1,292 @@
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* offline load test: the real DatabaseHandler, fed by a synthetic Discord deployment and writing to a fake InfluxDB
+ * (or the embedded store), at a controlled rate. nothing connects to Discord or to a real database.
+ *
+ * the driver calls the handler the way ChatKat's event subscriptions do: every guild is "created" at startup (index
+ * load, then every channel queued for backfill from synthetic history), producers send live messages at the target
+ * rate and delete a share of recent ones, and &kat requests arrive at requestRate. a request is timed from its arrival
+ * until its reply text is ready, write pipeline flush included; sending the reply to Discord is not part of it.
+ *
+ * arguments are key=value pairs: the settings below, plus any DatabaseHandler property (writeBatchSize=10000,
+ * storage=embedded, ...). run with ./gradlew loadTest --args='rate=20000 seconds=120'. */
+public class LoadTest {
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("guilds", "20");
+        DEFAULTS.put("channelsPerGuild", "10");
+        DEFAULTS.put("authorsPerGuild", "5000");
+        DEFAULTS.put("zipfExponent", "1.07");
+        DEFAULTS.put("historyPerChannel", "2000");
+        DEFAULTS.put("historySpacingMillis", "60000");
+        DEFAULTS.put("rate", "10000");              // live messages per second, over all producers
+        DEFAULTS.put("producers", "2");
+        DEFAULTS.put("deleteRatio", "0.01");        // share of live messages followed by a delete of a recent one
+        DEFAULTS.put("requestRate", "5");           // &kat requests per second
+        DEFAULTS.put("seconds", "60");
+        DEFAULTS.put("reportSeconds", "5");
+        DEFAULTS.put("influxLatencyMillis", "2");
+        DEFAULTS.put("restLatencyMillis", "30");
+        DEFAULTS.put("storage", "influx");
+    }
+
+    private static final String[] REQUESTS = {"&kat", "&kat -week", "&kat -day", "&kat -guild", "&kat -month -server"};
+
+    private final Properties settings;
+    private final SyntheticDiscord discord;
+    private final DatabaseHandler handler;
+    private final FakeInfluxDB influx;
+    private volatile boolean running = true;
+
+    private final LongAdder offered = new LongAdder(), deletes = new LongAdder(), requests = new LongAdder(),
+            notReady = new LongAdder(), failedRequests = new LongAdder();
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>()); // request latency in microseconds
+    private long peakHeap = 0;
+
+    LoadTest(Properties settings) throws IOException {
+        this.settings = settings;
+        this.discord = new SyntheticDiscord(integer("guilds"), integer("channelsPerGuild"), integer("authorsPerGuild"),
+                Double.parseDouble(setting("zipfExponent")), integer("historyPerChannel"),
+                number("historySpacingMillis"), number("restLatencyMillis"));
+
+        // everything the handler keeps on disk goes to a scratch directory
+        Path scratch = Files.createTempDirectory("chatkat-loadtest");
+        settings.putIfAbsent("databaseName", "ChatKatLoadTest");
+        settings.putIfAbsent("checkpointFile", scratch.resolve("checkpoints.bin").toString());
+        settings.putIfAbsent("spillFile", scratch.resolve("spill.bin").toString());
+        settings.putIfAbsent("rollupFile", scratch.resolve("rollups.bin").toString());
+        settings.putIfAbsent("embeddedStoreDirectory", scratch.resolve("data").toString());
+        settings.putIfAbsent("messageIndexCapacity", String.valueOf(Math.max(1_000_000,
+                (long) integer("rate") * integer("seconds") + (long) integer("guilds") * integer("channelsPerGuild")
+                        * integer("historyPerChannel"))));
+        if (setting("storage").equalsIgnoreCase("embedded")) {
+            influx = null;
+        } else {
+            influx = new FakeInfluxDB(number("influxLatencyMillis"));
+            settings.setProperty("databaseURL", influx.url());
+            settings.putIfAbsent("databaseUser", "loadtest");
+            settings.putIfAbsent("databasePass", "loadtest");
+        }
+        this.handler = discord.handler(settings);
+    }
+
+    private String setting(String key) {
+        return settings.getProperty(key, DEFAULTS.get(key));
+    }
+
+    private int integer(String key) {
+        return Integer.parseInt(setting(key));
+    }
+
+    private long number(String key) {
+        return Long.parseLong(setting(key));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties settings = new Properties();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) throw new IllegalArgumentException("Expected key=value, got " + arg);
+            settings.setProperty(arg.substring(0, split), arg.substring(split + 1));
+        }
+        new LoadTest(settings).run();
+        System.exit(0);
+    }
+
+    void run() throws InterruptedException {
+        StringJoiner config = new StringJoiner(" ");
+        DEFAULTS.keySet().forEach(key -> config.add(key + "=" + setting(key)));
+        System.out.println("load test: " + config);
+
+        // GuildCreateEvent for every guild: register the channels, load the index, then queue them for backfill
+        long start = System.nanoTime();
+        for (int guild = 0; guild < discord.guilds; guild++) {
+            Snowflake guildID = Snowflake.of(SyntheticDiscord.guildID(guild));
+            handler.markConnected(guildID);
+            for (int channel = 0; channel < discord.channelsPerGuild; channel++) {
+                handler.registerChannel(SyntheticDiscord.textChannel(guild, channel));
+            }
+            handler.loadIndex(guildID).block();
+            for (int channel = 0; channel < discord.channelsPerGuild; channel++) {
+                handler.scheduleBackfill(SyntheticDiscord.textChannel(guild, channel));
+            }
+        }
+
+        int producers = integer("producers");
+        CountDownLatch stopped = new CountDownLatch(producers + 1);
+        for (int p = 0; p < producers; p++) {
+            long seed = p;
+            Thread producer = new Thread(() -> {
+                produce(new SplittableRandom(seed), (double) integer("rate") / producers);
+                stopped.countDown();
+            }, "loadtest-producer-" + p);
+            producer.setDaemon(true);
+            producer.start();
+        }
+        Thread requester = new Thread(() -> {
+            request(new SplittableRandom(-1));
+            stopped.countDown();
+        }, "loadtest-requests");
+        requester.setDaemon(true);
+        requester.start();
+
+        long end = start + TimeUnit.SECONDS.toNanos(number("seconds")),
+                reportEvery = TimeUnit.SECONDS.toNanos(number("reportSeconds"));
+        Snapshot previous = new Snapshot(start);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(reportEvery, end - System.nanoTime()))));
+            Snapshot current = new Snapshot(System.nanoTime());
+            report(previous, current, start);
+            previous = current;
+        }
+        running = false;
+        stopped.await(30, TimeUnit.SECONDS);
+        handler.writes.flush().block();
+        summary(new Snapshot(start, 0, 0, 0), new Snapshot(System.nanoTime()));
+        handler.close();
+        if (influx != null) influx.stop();
+    }
+
+    // send live messages at rate per second. a producer that falls behind catches up for at most one second.
+    private void produce(SplittableRandom random, double rate) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate), next = System.nanoTime();
+        double deleteRatio = Double.parseDouble(setting("deleteRatio"));
+        long[] recent = new long[4096]; // guild, channel, message of recent messages
+        int recentCount = 0;
+        while (running) {
+            SyntheticDiscord.Sent sent = discord.nextMessage(random);
+            handler.addMessage(sent.message, sent.guildID);
+            offered.increment();
+            int slot = (recentCount++ % (recent.length / 3)) * 3;
+            recent[slot] = sent.guildID.asLong();
+            recent[slot + 1] = sent.message.getChannelId().asLong();
+            recent[slot + 2] = sent.message.getId().asLong();
+
+            if (random.nextDouble() < deleteRatio) {
+                int deleted = random.nextInt(Math.min(recentCount, recent.length / 3)) * 3;
+                handler.deleteMessages(recent[deleted], recent[deleted + 1], new long[]{recent[deleted + 2]}).subscribe();
+                deletes.increment();
+            }
+
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            else if (wait < -TimeUnit.SECONDS.toNanos(1)) next = System.nanoTime();
+        }
+    }
+
+    // send &kat requests at requestRate per second, each timed until its reply is ready.
+    private void request(SplittableRandom random) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / Double.parseDouble(setting("requestRate")));
+        long next = System.nanoTime();
+        while (running) {
+            SyntheticDiscord.Sent sent = discord.nextRequest(random, REQUESTS[random.nextInt(REQUESTS.length)]);
+            long start = System.nanoTime();
+            requests.increment();
+            // what processRequest does once the channel is known
+            Mono.defer(() -> handler.answerRequest(sent.message, sent.guildID))
+                    .subscribe(reply -> {
+                        if (reply.messages.get(0).startsWith("I'm on my smoke break")) notReady.increment();
+                        else latencies.add((System.nanoTime() - start) / 1000);
+                    }, error -> failedRequests.increment());
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+        }
+    }
+
+    // counters at one moment of the run.
+    private final class Snapshot {
+        final long nanos, offered, written, backfilled;
+        final int latencies;
+
+        Snapshot(long nanos) {
+            this(nanos, LoadTest.this.offered.sum(), handler.writes.written.sum(),
+                    handler.backfillScheduler.messagesProcessed.sum());
+        }
+
+        Snapshot(long nanos, long offered, long written, long backfilled) {
+            this.nanos = nanos;
+            this.offered = offered;
+            this.written = written;
+            this.backfilled = backfilled;
+            this.latencies = LoadTest.this.latencies.size();
+        }
+
+        double seconds(Snapshot since) {
+            return (nanos - since.nanos) / 1e9;
+        }
+    }
+
+    private void report(Snapshot previous, Snapshot current, long start) {
+        double seconds = current.seconds(previous);
+        long heap = usedHeap();
+        peakHeap = Math.max(peakHeap, heap);
+        System.out.printf("%5.0fs  offered %8.0f/s  written %8.0f/s  queued %6d  backfilled %8.0f/s (%d channels left)"
+                        + "  &kat p50 %s p99 %s  heap %4d MB%n",
+                (current.nanos - start) / 1e9, (current.offered - previous.offered) / seconds,
+                (current.written - previous.written) / seconds, handler.writes.queued(),
+                (current.backfilled - previous.backfilled) / seconds, handler.backfillScheduler.channelsRemaining(),
+                millis(percentile(previous.latencies, 0.5)), millis(percentile(previous.latencies, 0.99)), heap >> 20);
+    }
+
+    private void summary(Snapshot start, Snapshot end) {
+        double seconds = end.seconds(start);
+        System.gc();
+        long retained = usedHeap();
+        long gcCount = 0, gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        System.out.println();
+        System.out.printf("live messages:  %d offered, %d written, %.0f messages/sec sustained, %d dropped, %d spilled%n",
+                end.offered, end.written, end.written / seconds, handler.writes.dropped.sum(), handler.writes.spilled.sum());
+        System.out.printf("deletes:        %d%n", deletes.sum());
+        System.out.printf("backfill:       %d messages, %d channels left%n", end.backfilled,
+                handler.backfillScheduler.channelsRemaining());
+        System.out.printf("&kat requests:  %d sent, %d answered, %d before backfill, %d failed%n",
+                requests.sum(), latencies.size(), notReady.sum(), failedRequests.sum());
+        System.out.printf("&kat latency:   p50 %s  p90 %s  p99 %s  max %s%n", millis(percentile(0, 0.5)),
+                millis(percentile(0, 0.9)), millis(percentile(0, 0.99)), millis(percentile(0, 1)));
+        System.out.printf("heap:           peak %d MB, %d MB retained after GC (max %d MB); %d collections, %d ms%n",
+                peakHeap >> 20, retained >> 20, Runtime.getRuntime().maxMemory() >> 20, gcCount, gcMillis);
+        if (influx != null) {
+            System.out.printf("fake InfluxDB:  %d points in %d writes (%d MB), %d queries%n", influx.points.sum(),
+                    influx.writes.sum(), influx.bytes.sum() >> 20, influx.queries.sum());
+        }
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // q-quantile of the latencies recorded from index from on, in microseconds, or -1 if there are none.
+    private long percentile(int from, double q) {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = latencies.subList(Math.min(from, latencies.size()), latencies.size()).stream()
+                    .mapToLong(Long::longValue).toArray();
+        }
+        if (sorted.length == 0) return -1;
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+
+    private static String millis(long micros) {
+        return micros < 0 ? "-" : String.format("%.1fms", micros / 1000.0);
+    }
+}
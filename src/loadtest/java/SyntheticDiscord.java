@@ -0,0 +1,173 @@
+import discord4j.core.object.data.stored.AttachmentBean;
+import discord4j.core.object.data.stored.ChannelBean;
+import discord4j.core.object.data.stored.MessageBean;
+import discord4j.core.object.data.stored.UserBean;
+import discord4j.core.object.data.stored.embed.EmbedBean;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* offline stand-in for Discord: a synthetic deployment of guilds, channels and authors, and the entities the gateway
+ * and REST API would deliver for it. entities are built from Discord4j's data beans without a connection. which guild,
+ * channel and author a message comes from follows a Zipfian distribution. handler() returns a DatabaseHandler whose
+ * Discord calls (channel history, member and user lookups) are answered from here after restLatencyMillis. */
+final class SyntheticDiscord {
+    private static final long GUILD_BASE = 600_000_000_000_000_000L, CHANNEL_BASE = 700_000_000_000_000_000L,
+            AUTHOR_BASE = 800_000_000_000_000_000L;
+    private static final String[] WORDS = {"lol", "the", "kat", "is", "on", "her", "smoke", "break", "again", "who",
+            "posted", "that", "meme", "honestly", "same", "gg", "brb", "dinner", "tonight", "anyone", "up", "for", "a",
+            "game", "\"quoted\"", "comma,", "see", "you", "tomorrow", "what"};
+
+    final int guilds, channelsPerGuild, authorsPerGuild, historyPerChannel;
+    private final long historySpacingMillis, restLatencyMillis;
+    private final long historyEnd = System.currentTimeMillis();
+    private final Zipf guildActivity, channelActivity, authorActivity;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // a message as the gateway delivers it: the message, and the guild ID carried by the event.
+    static final class Sent {
+        final Snowflake guildID;
+        final Message message;
+
+        Sent(Snowflake guildID, Message message) {
+            this.guildID = guildID;
+            this.message = message;
+        }
+    }
+
+    SyntheticDiscord(int guilds, int channelsPerGuild, int authorsPerGuild, double zipfExponent,
+                     int historyPerChannel, long historySpacingMillis, long restLatencyMillis) {
+        this.guilds = guilds;
+        this.channelsPerGuild = channelsPerGuild;
+        this.authorsPerGuild = authorsPerGuild;
+        this.historyPerChannel = historyPerChannel;
+        this.historySpacingMillis = historySpacingMillis;
+        this.restLatencyMillis = restLatencyMillis;
+        this.guildActivity = new Zipf(guilds, zipfExponent);
+        this.channelActivity = new Zipf(channelsPerGuild, zipfExponent);
+        this.authorActivity = new Zipf(authorsPerGuild, zipfExponent);
+    }
+
+    static long guildID(int guild) {
+        return GUILD_BASE + guild;
+    }
+
+    static long channelID(int guild, int channel) {
+        return CHANNEL_BASE + guild * 100_000L + channel;
+    }
+
+    static long authorID(int guild, int author) {
+        return AUTHOR_BASE + guild * 10_000_000L + author;
+    }
+
+    // a Snowflake for the given time; the low bits come from a shared counter, so IDs are unique across threads.
+    long snowflake(long timeMillis) {
+        return ((timeMillis - DatabaseHandler.DISCORD_EPOCH) << 22) | (sequence.incrementAndGet() & 0x3FFFFF);
+    }
+
+    // the next live message, sent now.
+    Sent nextMessage(SplittableRandom random) {
+        int guild = guildActivity.next(random);
+        Message message = message(snowflake(System.currentTimeMillis()),
+                channelID(guild, channelActivity.next(random)), authorID(guild, authorActivity.next(random)),
+                content(random));
+        return new Sent(Snowflake.of(guildID(guild)), message);
+    }
+
+    // a leaderboard request in a channel picked like any other message.
+    Sent nextRequest(SplittableRandom random, String content) {
+        int guild = guildActivity.next(random);
+        Message message = message(snowflake(System.currentTimeMillis()), channelID(guild, channelActivity.next(random)),
+                authorID(guild, authorActivity.next(random)), content);
+        return new Sent(Snowflake.of(guildID(guild)), message);
+    }
+
+    // a few words, sometimes with characters that need escaping; one message in fifty has no text (e.g. an image).
+    private static String content(SplittableRandom random) {
+        if (random.nextInt(50) == 0) return null;
+        StringBuilder content = new StringBuilder();
+        for (int i = 1 + random.nextInt(12); i > 0; i--) {
+            if (content.length() > 0) content.append(' ');
+            content.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return content.toString();
+    }
+
+    static Message message(long messageID, long channelID, long authorID, String content) {
+        UserBean author = new UserBean();
+        author.setId(authorID);
+        author.setUsername("user" + authorID);
+        author.setDiscriminator("0001");
+        author.setBot(false);
+
+        MessageBean data = new MessageBean();
+        data.setId(messageID);
+        data.setChannelId(channelID);
+        data.setAuthor(author);
+        data.setContent(content);
+        data.setTimestamp(Instant.ofEpochMilli((messageID >>> 22) + DatabaseHandler.DISCORD_EPOCH).toString());
+        data.setMentions(new long[0]);
+        data.setMentionRoles(new long[0]);
+        data.setAttachments(new AttachmentBean[0]);
+        data.setEmbeds(new EmbedBean[0]);
+        data.setType(0);
+        return new Message(null, data);
+    }
+
+    static TextChannel textChannel(int guild, int channel) {
+        ChannelBean data = new ChannelBean();
+        data.setId(channelID(guild, channel));
+        data.setType(0); // guild text channel
+        data.setGuildId(guildID(guild));
+        data.setName("channel-" + channel);
+        return new TextChannel(null, data);
+    }
+
+    /* the part of a channel's history before the given ID, newest first, served in pages of 100 with
+     * restLatencyMillis per page. every channel has historyPerChannel messages, historySpacingMillis apart, ending
+     * when this deployment was created, so paging backwards reaches the start of the channel. */
+    Flux<Message> history(TextChannel channel, Snowflake before) {
+        long channelID = channel.getId().asLong(), cursor = before.getTimestamp().toEpochMilli();
+        int guild = (int) (channel.getGuildId().asLong() - GUILD_BASE);
+        // message i was sent at historyEnd - i * historySpacingMillis
+        int first = cursor > historyEnd ? 1 : (int) Math.min(historyPerChannel + 1L,
+                (historyEnd - cursor) / historySpacingMillis + 1);
+        return Flux.range(first, historyPerChannel - first + 1)
+                .map(i -> {
+                    SplittableRandom random = new SplittableRandom(channelID * 31 + i);
+                    return message(snowflake(historyEnd - i * historySpacingMillis), channelID,
+                            authorID(guild, authorActivity.next(random)), content(random));
+                })
+                .buffer(DatabaseHandler.PAGE_SIZE)
+                .delayElements(Duration.ofMillis(Math.max(1, restLatencyMillis)))
+                .flatMapIterable(page -> page);
+    }
+
+    // the real handler, with Discord's REST API replaced by this deployment.
+    DatabaseHandler handler(Properties properties) {
+        return new DatabaseHandler(null, properties) {
+            @Override
+            Mono<String> getUserLabel(long authorID, Snowflake guildID) {
+                return Mono.delay(Duration.ofMillis(restLatencyMillis)).thenReturn("user" + authorID);
+            }
+
+            @Override
+            Flux<Message> messagesBefore(TextChannel channel, Snowflake messageID) {
+                return history(channel, messageID);
+            }
+
+            @Override
+            Flux<Message> messagesAfter(TextChannel channel, Snowflake messageID) {
+                return Flux.empty(); // each run starts without checkpoints, so nothing is newer
+            }
+        };
+    }
+}
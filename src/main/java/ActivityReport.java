@@ -0,0 +1,166 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/* activity in a guild (or one channel) over a time frame, optionally for a single author, gathered in one pass over
+ * message counts per hour: from LeaderboardIndex.scan, or from one bucketed query to the message store before the
+ * index is loaded. the pass fills a day-of-week by hour-of-day heatmap, counts per channel and counts per trend bucket
+ * (hours for a one-day window, otherwise days), all in local time at the UTC offset of the request. daily counts, for
+ * history older than the index's hourly buckets, have no hour: they feed the channel counts and the trend only. */
+class ActivityReport implements MessageStore.BucketConsumer {
+    static final int WEEKDAYS = 7, HOURS = 24;
+    // a trend is drawn with at most TREND_ROWS bars of up to BAR_WIDTH characters, summing days as needed
+    static final int TREND_ROWS = 31;
+    static final int BAR_WIDTH = 20;
+    private static final long[] TREND_DAYS = {1, 7, 30, 365};
+    private static final String[] WEEKDAY_NAMES = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+    // heatmap cells from empty to busiest: space, light, medium and dark shade, full block
+    private static final char[] SHADES = {' ', '\u2591', '\u2592', '\u2593', '\u2588'};
+    private static final char BAR = '\u2588';
+
+    private final long channelID, authorID, sinceMillis, untilMillis, offsetMillis;
+    private final boolean hourlyTrend;
+    // heatmap[weekday * HOURS + hour], Monday first
+    final long[] heatmap = new long[WEEKDAYS * HOURS];
+    final LongLongMap channels = new LongLongMap();
+    // local hour or day since the epoch -> messages
+    final LongLongMap trend = new LongLongMap();
+    long total = 0;
+
+    /* channelID and authorID restrict the report (0 for every channel or author). the window is [sinceMillis,
+     * untilMillis), sinceMillis 0 for full history; untilMillis is the moment of the request. */
+    ActivityReport(long channelID, long authorID, long sinceMillis, long untilMillis, ZoneOffset offset,
+                   boolean hourlyTrend) {
+        this.channelID = channelID;
+        this.authorID = authorID;
+        this.sinceMillis = sinceMillis;
+        this.untilMillis = untilMillis;
+        this.offsetMillis = offset.getTotalSeconds() * 1000L;
+        this.hourlyTrend = hourlyTrend;
+    }
+
+    private boolean excluded(long channel, long author) {
+        return (channelID != 0 && channel != channelID) || (authorID != 0 && author != authorID);
+    }
+
+    // one hour of an author's messages in a channel.
+    @Override
+    public void accept(long channel, long author, long hourStartMillis, long count) {
+        if (count == 0 || excluded(channel, author)) return;
+        long local = hourStartMillis + offsetMillis;
+        long day = Math.floorDiv(local, LeaderboardIndex.DAY);
+        int weekday = Math.floorMod(day + 3, WEEKDAYS); // 1970-01-01 was a Thursday
+        int hour = (int) (Math.floorMod(local, LeaderboardIndex.DAY) / LeaderboardIndex.HOUR);
+        heatmap[weekday * HOURS + hour] += count;
+        channels.addTo(channel, count);
+        trend.addTo(hourlyTrend ? Math.floorDiv(local, LeaderboardIndex.HOUR) : day, count);
+        total += count;
+    }
+
+    // one day of an author's messages in a channel; the day is the UTC day the index counted it in.
+    void acceptDay(long channel, long author, long dayStartMillis, long count) {
+        if (count == 0 || excluded(channel, author)) return;
+        channels.addTo(channel, count);
+        trend.addTo(hourlyTrend ? Math.floorDiv(dayStartMillis + offsetMillis, LeaderboardIndex.HOUR)
+                : Math.floorDiv(dayStartMillis, LeaderboardIndex.DAY), count);
+        total += count;
+    }
+
+    // the heatmap as a monospaced table: a row per weekday, two characters per hour, shaded relative to the busiest.
+    String heatmap() {
+        long busiest = 0;
+        int busiestCell = 0;
+        for (int cell = 0; cell < heatmap.length; cell++) {
+            if (heatmap[cell] > busiest) {
+                busiest = heatmap[cell];
+                busiestCell = cell;
+            }
+        }
+        StringBuilder table = new StringBuilder("```\n    ");
+        for (int hour = 0; hour < HOURS; hour += 6) table.append(String.format("%-12d", hour));
+        table.setLength(table.length() - 10); // trailing spaces after the last label
+        for (int weekday = 0; weekday < WEEKDAYS; weekday++) {
+            table.append('\n').append(WEEKDAY_NAMES[weekday]).append(' ');
+            for (int hour = 0; hour < HOURS; hour++) {
+                long count = heatmap[weekday * HOURS + hour];
+                // any activity is at least a light shade
+                char shade = SHADES[count == 0 ? 0 : 1 + (int) ((count - 1) * (SHADES.length - 1) / busiest)];
+                table.append(shade).append(shade);
+            }
+        }
+        table.append("\n```");
+        if (busiest > 0) {
+            table.append("\nBusiest hour: **").append(WEEKDAY_NAMES[busiestCell / HOURS]).append(' ')
+                    .append(String.format("%02d:00", busiestCell % HOURS)).append("**, with **").append(busiest)
+                    .append("** messages.");
+        }
+        return table.toString();
+    }
+
+    /* the trend as a monospaced bar chart from the start of the window (or the first message, for full history) to
+     * now: one bar per hour for a one-day window, otherwise per day, week, 30 days or year, whichever is the finest
+     * that fits in TREND_ROWS bars. */
+    String trend() {
+        long unit = hourlyTrend ? LeaderboardIndex.HOUR : LeaderboardIndex.DAY;
+        long last = Math.floorDiv(untilMillis + offsetMillis, unit);
+        long[] first = {sinceMillis > 0 ? Math.floorDiv(sinceMillis + offsetMillis, unit) : last};
+        if (sinceMillis <= 0) trend.forEach((key, count) -> first[0] = Math.min(first[0], key));
+
+        long rowDays = 1;
+        if (!hourlyTrend) {
+            for (long days : TREND_DAYS) {
+                rowDays = days;
+                if ((last - first[0]) / days < TREND_ROWS) break;
+            }
+        }
+        final long step = rowDays;
+        int rows = (int) ((last - first[0]) / step + 1);
+        long[] bars = new long[rows];
+        trend.forEach((key, count) -> {
+            if (key >= first[0] && key <= last) bars[(int) ((key - first[0]) / step)] += count;
+        });
+        long most = 1;
+        for (long bar : bars) most = Math.max(most, bar);
+
+        StringBuilder chart = new StringBuilder("```");
+        for (int row = 0; row < rows; row++) {
+            long start = first[0] + row * step;
+            String label = hourlyTrend
+                    ? LocalDateTime.ofEpochSecond(start * 3600, 0, ZoneOffset.UTC).toString()
+                            .substring(5).replace('T', ' ') // MM-dd HH:00
+                    : LocalDate.ofEpochDay(start).toString();
+            int width = bars[row] == 0 ? 0 : (int) Math.max(1, bars[row] * BAR_WIDTH / most);
+            chart.append('\n').append(label).append(' ');
+            for (int i = 0; i < BAR_WIDTH; i++) chart.append(i < width ? BAR : ' ');
+            chart.append(' ').append(bars[row]);
+        }
+        return chart.append("\n```").toString();
+    }
+
+    // lines for the limit most active channels, busiest first, with their share of the messages.
+    List<String> channels(int limit) {
+        long[] ids = new long[channels.size()], counts = new long[channels.size()];
+        int[] next = {0};
+        channels.forEach((channel, count) -> {
+            ids[next[0]] = channel;
+            counts[next[0]++] = count;
+        });
+        List<String> lines = new ArrayList<>(Math.min(limit, ids.length));
+        // guilds have tens of channels at most, so a selection sort of the top few is plenty
+        for (int rank = 0; rank < Math.min(limit, ids.length); rank++) {
+            int best = rank;
+            for (int i = rank + 1; i < ids.length; i++) {
+                if (counts[i] > counts[best] || (counts[i] == counts[best] && ids[i] < ids[best])) best = i;
+            }
+            long id = ids[best], count = counts[best];
+            ids[best] = ids[rank];
+            counts[best] = counts[rank];
+            ids[rank] = id;
+            counts[rank] = count;
+            lines.add((rank + 1) + ". <#" + id + "> with **" + count + "** messages (" + (count * 100 / total) + "%).");
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,235 @@
+import discord4j.core.object.entity.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/* runs channel backfills with a global and a per-guild concurrency limit instead of starting every channel at once.
+ * channels wait in submission order, except that channels where someone has just asked for a leaderboard jump ahead.
+ * per-channel state lives in concurrent maps so request handlers can read it from any thread. */
+class BackfillScheduler {
+    private static final long PRIORITY_BASE = Long.MIN_VALUE / 2; // prioritized jobs sort before every normal job
+
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    private final int globalLimit;
+    private final int perGuildLimit;
+    private final Function<TextChannel, Mono<Boolean>> backfill;
+
+    // guild -> channel -> job. read without locking by request handlers.
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, Job>> jobs = new ConcurrentHashMap<>();
+
+    private final Disposable progressLog;
+
+    // queue and running counts, guarded by this.
+    private final TreeSet<Job> queue = new TreeSet<>(Comparator.comparingLong(job -> job.order));
+    private final Map<Long, Integer> runningPerGuild = new HashMap<>();
+    private int running = 0;
+    private long sequence = 0, prioritySequence = 0;
+
+    // progress counters
+    final LongAdder messagesProcessed = new LongAdder();
+    private long lastReportTime = System.currentTimeMillis(), lastReportCount = 0;
+    private volatile double messagesPerSecond = 0;
+
+    private static final class Job {
+        final long guildID, channelID;
+        volatile TextChannel channel;
+        volatile boolean completed = false; // the channel's whole history has been stored (by this run or before)
+        final LongAdder messages = new LongAdder(); // backfilled so far, over every run
+        boolean queued = false, rerun = false; // guarded by the scheduler
+        volatile boolean running = false; // written under the scheduler's lock, read by the metrics endpoint
+        long order;
+
+        Job(long guildID, long channelID) {
+            this.guildID = guildID;
+            this.channelID = channelID;
+        }
+    }
+
+    /* backfill emits whether the channel's whole history is stored when it is done; a channel only becomes ready then,
+     * so a run cut short by an error is not mistaken for a finished one. */
+    BackfillScheduler(int globalLimit, int perGuildLimit, Function<TextChannel, Mono<Boolean>> backfill) {
+        this.globalLimit = globalLimit;
+        this.perGuildLimit = perGuildLimit;
+        this.backfill = backfill;
+
+        // log progress while there is work left
+        this.progressLog = Flux.interval(Duration.ofSeconds(30)).subscribe(tick -> {
+            updateRate();
+            if (channelsRemaining() > 0) log.info("Backfill progress: " + progress());
+        });
+    }
+
+    // stop the progress log. running backfills are left to finish.
+    void close() {
+        progressLog.dispose();
+    }
+
+    // the guild's jobs, or a shared empty map for a guild without any, so lookups never allocate.
+    private Map<Long, Job> jobs(long guildID) {
+        Map<Long, Job> channels = jobs.get(guildID);
+        return channels != null ? channels : Collections.emptyMap();
+    }
+
+    /* queue a channel for backfill. a channel that is already queued is left alone; one that is running is queued
+     * again when it finishes, so a reconnect still picks up the messages it missed. */
+    void submit(TextChannel channel) {
+        submit(channel, false);
+    }
+
+    /* upToDate marks a channel whose history was backfilled by an earlier run (its checkpoint says so): it is ready
+     * for requests at once, while the backfill catches up on what was sent since. */
+    void submit(TextChannel channel, boolean upToDate) {
+        Job job = job(channel, upToDate);
+        synchronized (this) {
+            if (job.running) job.rerun = true;
+            else enqueue(job);
+        }
+        dispatch();
+    }
+
+    /* make a channel known without queueing it: it counts towards its guild's readiness, and an upToDate one is
+     * ready at once. submit queues it later. */
+    void register(TextChannel channel, boolean upToDate) {
+        job(channel, upToDate);
+    }
+
+    private Job job(TextChannel channel, boolean upToDate) {
+        long guildID = channel.getGuildId().asLong(), channelID = channel.getId().asLong();
+        Job job = jobs.computeIfAbsent(guildID, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(channelID, id -> new Job(guildID, channelID));
+        job.channel = channel;
+        if (upToDate) job.completed = true;
+        return job;
+    }
+
+    // move a queued channel to the front, e.g. because a request was just made in it.
+    void prioritize(long guildID, long channelID) {
+        Job job = jobs(guildID).get(channelID);
+        if (job == null) return;
+        synchronized (this) {
+            promote(job);
+        }
+        dispatch();
+    }
+
+    // move every queued channel of a guild to the front, for full-server requests.
+    void prioritizeGuild(long guildID) {
+        synchronized (this) {
+            jobs(guildID).values().forEach(this::promote);
+        }
+        dispatch();
+    }
+
+    // true once the channel's whole history has been backfilled.
+    boolean isChannelReady(long guildID, long channelID) {
+        Job job = jobs(guildID).get(channelID);
+        return job != null && job.completed;
+    }
+
+    // true once every known channel of the guild has been backfilled.
+    boolean isGuildReady(long guildID) {
+        return jobs(guildID).values().stream().allMatch(job -> job.completed);
+    }
+
+    // record backfilled messages for the progress report.
+    void recordMessages(long guildID, long channelID, int count) {
+        messagesProcessed.add(count);
+        Job job = jobs(guildID).get(channelID);
+        if (job != null) job.messages.add(count);
+    }
+
+    interface ChannelProgress {
+        void accept(long guildID, long channelID, long messages, boolean running, boolean completed);
+    }
+
+    // per-channel progress for the metrics endpoint. running is read without the lock; it is only a snapshot.
+    void forEachChannel(ChannelProgress progress) {
+        jobs.forEach((guildID, channels) -> channels.forEach((channelID, job) ->
+                progress.accept(guildID, channelID, job.messages.sum(), job.running, job.completed)));
+    }
+
+    synchronized int channelsRemaining() {
+        return queue.size() + running;
+    }
+
+    synchronized int channelsRunning() {
+        return running;
+    }
+
+    double messagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    String progress() {
+        return String.format("%d channels remaining (%d running), %d messages backfilled, %.1f messages/sec",
+                channelsRemaining(), channelsRunning(), messagesProcessed.sum(), messagesPerSecond);
+    }
+
+    private synchronized void updateRate() {
+        long now = System.currentTimeMillis(), count = messagesProcessed.sum();
+        if (now > lastReportTime) messagesPerSecond = (count - lastReportCount) * 1000.0 / (now - lastReportTime);
+        lastReportTime = now;
+        lastReportCount = count;
+    }
+
+    // guarded by this
+    private void enqueue(Job job) {
+        if (job.queued) return;
+        job.order = ++sequence;
+        job.queued = true;
+        queue.add(job);
+    }
+
+    // guarded by this
+    private void promote(Job job) {
+        if (!job.queued || job.order < 0) return; // not waiting, or already prioritized
+        queue.remove(job);
+        job.order = PRIORITY_BASE + ++prioritySequence;
+        queue.add(job);
+    }
+
+    // start as many queued jobs as the limits allow. jobs are subscribed outside the lock.
+    private void dispatch() {
+        List<Job> starting = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Job> waiting = queue.iterator();
+            while (running < globalLimit && waiting.hasNext()) {
+                Job job = waiting.next();
+                if (runningPerGuild.getOrDefault(job.guildID, 0) >= perGuildLimit) continue;
+                waiting.remove();
+                job.queued = false;
+                job.running = true;
+                running++;
+                runningPerGuild.merge(job.guildID, 1, Integer::sum);
+                starting.add(job);
+            }
+        }
+        starting.forEach(job -> backfill.apply(job.channel)
+                .doOnError(error -> log.error("Error backfilling channel " + job.channelID + ": " + error.getMessage()))
+                .onErrorReturn(false)
+                .defaultIfEmpty(false)
+                .subscribe(historyComplete -> finished(job, historyComplete)));
+    }
+
+    private void finished(Job job, boolean historyComplete) {
+        synchronized (this) {
+            running--;
+            runningPerGuild.merge(job.guildID, -1, Integer::sum);
+            job.running = false;
+            if (historyComplete) job.completed = true;
+            if (job.rerun) {
+                job.rerun = false;
+                enqueue(job);
+            }
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,88 @@
+import discord4j.core.object.ExtendedPermissionOverwrite;
+import discord4j.core.object.PermissionOverwrite;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.GuildChannel;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Role;
+import discord4j.core.object.util.Permission;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/* one member's permissions in a guild's channels, computed locally from the guild's roles and each channel's
+ * overwrites as raw permission bits, the way Discord does: the @everyone role and the member's roles give the guild
+ * permissions (everything for the owner or an administrator), then a channel applies its @everyone overwrite, the
+ * combined overwrites of the member's roles, and the member's own overwrite, each clearing its denied bits before
+ * setting its allowed ones. the roles and member come from the gateway's cache, so checking every channel of a guild
+ * costs no REST calls, where getEffectivePermissions looks the guild, member and roles up again per channel. */
+final class ChannelPermissions {
+    private static final long ALL = -1L;
+
+    private final long guildID, memberID;
+    private final long[] roleIDs; // the member's roles
+    private final long guildPermissions;
+
+    private ChannelPermissions(long guildID, long memberID, long[] roleIDs, long guildPermissions) {
+        this.guildID = guildID;
+        this.memberID = memberID;
+        this.roleIDs = roleIDs;
+        this.guildPermissions = guildPermissions;
+    }
+
+    // the permissions of memberID in guild, from the guild's cached roles.
+    static Mono<ChannelPermissions> of(Guild guild, Snowflake memberID) {
+        return Mono.zip(guild.getMemberById(memberID), guild.getRoles().collectList())
+                .map(memberAndRoles -> of(guild, memberAndRoles.getT1(), memberAndRoles.getT2()));
+    }
+
+    static ChannelPermissions of(Guild guild, Member member, List<Role> roles) {
+        long guildID = guild.getId().asLong();
+        long[] roleIDs = member.getRoleIds().stream().mapToLong(Snowflake::asLong).toArray();
+        long permissions = 0;
+        for (Role role : roles) {
+            long roleID = role.getId().asLong();
+            if (roleID == guildID || contains(roleIDs, roleID)) permissions |= role.getPermissions().getRawValue();
+        }
+        if (guild.getOwnerId().equals(member.getId()) || has(permissions, Permission.ADMINISTRATOR)) permissions = ALL;
+        return new ChannelPermissions(guildID, member.getId().asLong(), roleIDs, permissions);
+    }
+
+    private static boolean contains(long[] ids, long id) {
+        for (long candidate : ids) if (candidate == id) return true;
+        return false;
+    }
+
+    private static boolean has(long permissions, Permission permission) {
+        return (permissions & permission.getValue()) == permission.getValue();
+    }
+
+    // raw permission bits in a channel.
+    long in(GuildChannel channel) {
+        if (guildPermissions == ALL) return ALL;
+        long permissions = guildPermissions, roleAllow = 0, roleDeny = 0, memberAllow = 0, memberDeny = 0;
+        for (ExtendedPermissionOverwrite overwrite : channel.getPermissionOverwrites()) {
+            long target = overwrite.getTargetId().asLong(),
+                    allow = overwrite.getAllowed().getRawValue(), deny = overwrite.getDenied().getRawValue();
+            if (overwrite.getType() == PermissionOverwrite.Type.MEMBER) {
+                if (target == memberID) {
+                    memberAllow = allow;
+                    memberDeny = deny;
+                }
+            } else if (target == guildID) {
+                permissions = (permissions & ~deny) | allow; // @everyone comes first
+            } else if (contains(roleIDs, target)) {
+                roleAllow |= allow;
+                roleDeny |= deny;
+            }
+        }
+        permissions = (permissions & ~roleDeny) | roleAllow;
+        return (permissions & ~memberDeny) | memberAllow;
+    }
+
+    boolean has(GuildChannel channel, Permission... required) {
+        long permissions = in(channel);
+        for (Permission permission : required) if (!has(permissions, permission)) return false;
+        return true;
+    }
+}
@@ -1,81 +1,215 @@
 import discord4j.core.DiscordClient;
 import discord4j.core.DiscordClientBuilder;
 import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.guild.MemberChunkEvent;
+import discord4j.core.event.domain.guild.MemberJoinEvent;
+import discord4j.core.event.domain.guild.MemberLeaveEvent;
+import discord4j.core.event.domain.guild.MemberUpdateEvent;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
+import discord4j.core.event.domain.message.MessageBulkDeleteEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.event.domain.message.MessageDeleteEvent;
+import discord4j.core.event.domain.message.ReactionAddEvent;
 import discord4j.core.object.entity.*;
 import discord4j.core.object.entity.User;
 
 import discord4j.core.object.util.Permission;
-import discord4j.core.object.util.PermissionSet;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
 
 import java.io.*;
+import java.time.Duration;
 import java.util.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ChatKat {
+    // maximum number of in-flight operations per event stream
+    static final int GUILD_CONCURRENCY = 4;
+    static final int PERMISSION_CONCURRENCY = 16;
+    static final int REQUEST_CONCURRENCY = 64;
+    static final int DELETE_CONCURRENCY = 16;
+    // Discord allows one gateway identify per 5 seconds
+    static final Duration IDENTIFY_INTERVAL = Duration.ofMillis(5500);
+
     public static void main(String[] args) {
         final Logger log = LoggerFactory.getLogger(ChatKat.class);
 
-        Properties properties = new Properties();
-        // Stream config.properties file to collect database name, user, password, and URL strings
-        try (InputStream propStream = new FileInputStream("src" + File.separator + "main" + File.separator
-                + "resources" + File.separator + "config.properties")) {
-            properties.load(propStream);
+        // collect database name, user, password, and URL strings and every other setting (see Config)
+        Properties properties;
+        try {
+            properties = Config.load(System.getenv());
         } catch (IOException e) {
             log.error("Error inside properties stream " + e.getMessage());
             return;
         }
 
-        // initialize DatabaseHandler object and DiscordClient
-        final DiscordClient client = DiscordClientBuilder.create(System.getenv("BOT_TOKEN")).build();
-        final DatabaseHandler databaseHandler = new DatabaseHandler(client, properties);
+        /* one DiscordClient and DatabaseHandler per gateway shard this process runs (see Shards). the shards share the
+         * message store and the metrics registry, where each registers under its own shard label. */
+        final Shards shards;
+        try {
+            shards = new Shards(properties);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return;
+        }
+        final Metrics metrics = new Metrics();
+        shards.adoptProcessState();
+        final MessageStore store = DatabaseHandler.openStore(shards.processProperties());
+        final List<DiscordClient> clients = new ArrayList<>();
+        final List<DatabaseHandler> handlers = new ArrayList<>();
+        final List<ShardHealth> health = new ArrayList<>();
+        Disposable metricsPush = null;
 
         try {
-            // Get an event dispatcher for readyEvent on login
-            client.getEventDispatcher().on(ReadyEvent.class)
-                    .subscribe(event -> client.getSelf().map(User::getUsername).subscribe(bot ->
-                            log.info(String.format("Connected as %s.", bot))));
-
-            // Get guildCreateEvent dispatcher to back-fill DB
-            client.getEventDispatcher().on(GuildCreateEvent.class)
-                    .map(GuildCreateEvent::getGuild)
-                    .flatMap(Guild::getChannels)
-                    .filter(guildChannel -> guildChannel instanceof TextChannel)
-                    .filter(guildChannel -> {
-                        PermissionSet permissions = guildChannel.getEffectivePermissions(client.getSelfId().get()).block();
-                        return (permissions.contains(Permission.READ_MESSAGE_HISTORY) && permissions.contains(Permission.VIEW_CHANNEL));
-                    })
-                    .map(guildChannel -> (TextChannel) guildChannel)
-                    .subscribe(databaseHandler::backfillChannel);
-
-            // get MessageCreateEvent dispatcher to count incoming messages.
-            client.getEventDispatcher().on(MessageCreateEvent.class)
-                    .map(MessageCreateEvent::getMessage)
-                    .filter(message -> !message.getAuthor().get().isBot()
-                            //&& message.getContent().isPresent()
-                            && message.getAuthor().isPresent())
-                    .map(databaseHandler::addMessage)
-                    .filter(message -> message.getContent().get().toLowerCase().startsWith("&kat"))
-                    // if message is a request:
-                    .subscribe(databaseHandler::processRequest);
+            for (int shard = shards.first; shard <= shards.last; shard++) {
+                DiscordClient client = DiscordClientBuilder.create(System.getenv("BOT_TOKEN"))
+                        .setShardIndex(shard)
+                        .setShardCount(shards.count)
+                        .build();
+                Metrics shardMetrics = metrics.labelled("shard", String.valueOf(shard));
+                shards.adoptState(shard);
+                DatabaseHandler databaseHandler = new DatabaseHandler(client, shards.propertiesFor(shard), store,
+                        shardMetrics);
+                ShardHealth shardHealth = new ShardHealth(shard, shardMetrics);
+                shardHealth.watch(client);
+                subscribe(client, databaseHandler, log);
+                clients.add(client);
+                handlers.add(databaseHandler);
+                health.add(shardHealth);
+            }
+            metricsPush = exportMetrics(properties, metrics, store, log);
 
-            // get eventDispatcher for deleted messages to remove them from the database
-            client.getEventDispatcher().on(MessageDeleteEvent.class)
-                    .subscribe(databaseHandler::deleteMessage);
+            // each shard logs its health and throughput once a minute
+            Flux.interval(Duration.ofMinutes(1)).subscribe(tick -> {
+                for (int i = 0; i < health.size(); i++) log.info(health.get(i).report(handlers.get(i).writes.queued()));
+            });
 
-            // log client in and block so that main thread doesn't exit until instructed.
-            client.login().block();
+            /* log the shards in and block so that main thread doesn't exit until instructed. Discord accepts one
+             * gateway login per IDENTIFY_INTERVAL, so shards log in one after the other. */
+            Flux.range(0, clients.size())
+                    .flatMap(i -> Mono.delay(IDENTIFY_INTERVAL.multipliedBy(i)).then(clients.get(i).login()))
+                    .then()
+                    .block();
         } catch (Exception e) {
             log.error("Error in out try: " + e.toString());
         } finally {
             log.info("Closing up shop.");
-            client.logout();
-            databaseHandler.close();
+            clients.forEach(DiscordClient::logout);
+            handlers.forEach(DatabaseHandler::close);
+            if (metricsPush != null) metricsPush.dispose();
+            metrics.close();
+            store.close();
         }
     }
-}
 
+    // subscribe one shard's handler to its client's gateway events.
+    static void subscribe(DiscordClient client, DatabaseHandler databaseHandler, Logger log) {
+        // Get an event dispatcher for readyEvent on login
+        client.getEventDispatcher().on(ReadyEvent.class)
+                .doOnNext(databaseHandler.countEvents("ready"))
+                .flatMap(event -> client.getSelf())
+                .subscribe(bot -> log.info(String.format("Connected as %s.", bot.getUsername())));
+
+        /* Get guildCreateEvent dispatcher to back-fill DB. every step is a non-blocking Mono/Flux with an explicit
+         * concurrency limit, so a slow REST call or database query never stalls the gateway threads. */
+        client.getEventDispatcher().on(GuildCreateEvent.class)
+                .doOnNext(databaseHandler.countEvents("guild_create"))
+                .map(GuildCreateEvent::getGuild)
+                .doOnNext(guild -> databaseHandler.markConnected(guild.getId()))
+                .doOnNext(databaseHandler::cacheGuildName)
+                /* register the guild's channels right away, so those with a complete checkpoint answer requests (from
+                 * the store) without waiting for the index. the bot's channel permissions are computed once per guild
+                 * from the cached roles and each channel's overwrites. */
+                .flatMap(guild -> ChannelPermissions.of(guild, client.getSelfId().get())
+                        .flatMapMany(permissions -> guild.getChannels()
+                                .ofType(TextChannel.class)
+                                .filter(channel -> permissions.has(channel, Permission.VIEW_CHANNEL,
+                                        Permission.READ_MESSAGE_HISTORY)))
+                        .doOnNext(databaseHandler::registerChannel)
+                        .collectList()
+                        .map(channels -> Tuples.of(guild.getId(), channels))
+                        .onErrorResume(error -> {
+                            log.error("Error reading the channels of guild " + guild.getId().asString() + ": "
+                                    + error.getMessage());
+                            return Mono.empty();
+                        }), PERMISSION_CONCURRENCY)
+                /* then rebuild the in-memory leaderboard index in the background, a few guilds at a time, before new
+                 * history is counted into it. the buffer keeps slow loads from holding up the registration above. */
+                .onBackpressureBuffer()
+                .flatMap(guild -> databaseHandler.loadIndex(guild.getT1()).thenMany(Flux.fromIterable(guild.getT2())),
+                        GUILD_CONCURRENCY)
+                // the backfill scheduler applies its own global and per-guild limits
+                .subscribe(databaseHandler::scheduleBackfill);
+
+        // get MessageCreateEvent dispatcher to count incoming messages. the guild ID comes from the event payload.
+        client.getEventDispatcher().on(MessageCreateEvent.class)
+                .doOnNext(databaseHandler.countEvents("message_create"))
+                .filter(event -> event.getGuildId().isPresent()
+                        && event.getMessage().getAuthor().map(author -> !author.isBot()).orElse(false))
+                .flatMap(event -> {
+                    Snowflake guildID = event.getGuildId().get();
+                    Message message = databaseHandler.addMessage(event.getMessage(), guildID);
+                    // if message is a request:
+                    return message.getContent().orElse("").toLowerCase().startsWith("&kat")
+                            ? databaseHandler.processRequest(message, guildID)
+                            : Mono.<Void>empty();
+                }, REQUEST_CONCURRENCY)
+                .subscribe();
+
+        // page reactions on leaderboard replies turn the page. the bot's own reactions are ignored.
+        client.getEventDispatcher().on(ReactionAddEvent.class)
+                .doOnNext(databaseHandler.countEvents("reaction_add"))
+                .filter(event -> !client.getSelfId().map(event.getUserId()::equals).orElse(false))
+                .flatMap(databaseHandler::turnPage, REQUEST_CONCURRENCY)
+                .subscribe();
+
+        // keep the leaderboard label cache current from member events so requests rarely need REST lookups
+        client.getEventDispatcher().on(MemberJoinEvent.class)
+                .doOnNext(databaseHandler.countEvents("member_join"))
+                .subscribe(event -> databaseHandler.cacheMember(event.getMember()));
+        client.getEventDispatcher().on(MemberUpdateEvent.class)
+                .doOnNext(databaseHandler.countEvents("member_update"))
+                .flatMap(event -> event.getMember().onErrorResume(error -> Mono.empty()), PERMISSION_CONCURRENCY)
+                .subscribe(databaseHandler::cacheMember);
+        client.getEventDispatcher().on(MemberLeaveEvent.class)
+                .doOnNext(databaseHandler.countEvents("member_leave"))
+                .subscribe(event -> databaseHandler.cacheFormerMember(event.getGuildId(), event.getUser()));
+        client.getEventDispatcher().on(MemberChunkEvent.class)
+                .doOnNext(databaseHandler.countEvents("member_chunk"))
+                .subscribe(event -> event.getMembers().forEach(databaseHandler::cacheMember));
+
+        // get eventDispatcher for deleted messages to remove them from the database
+        client.getEventDispatcher().on(MessageDeleteEvent.class)
+                .doOnNext(databaseHandler.countEvents("message_delete"))
+                .flatMap(databaseHandler::deleteMessage, DELETE_CONCURRENCY)
+                .subscribe();
+        client.getEventDispatcher().on(MessageBulkDeleteEvent.class)
+                .doOnNext(databaseHandler.countEvents("message_bulk_delete"))
+                .flatMap(databaseHandler::deleteMessages, DELETE_CONCURRENCY)
+                .subscribe();
+    }
+
+    /* serve every shard's metrics at metricsHost:metricsPort (metricsPort 0 leaves the endpoint off), and write them to
+     * InfluxDB every metricsPushIntervalSeconds when that is the message store (0, the default, leaves the push off). */
+    static Disposable exportMetrics(Properties properties, Metrics metrics, MessageStore store, Logger log) {
+        int metricsPort = Integer.parseInt(properties.getProperty("metricsPort", "0"));
+        if (metricsPort > 0) metrics.serve(properties.getProperty("metricsHost", "127.0.0.1"), metricsPort);
+        long pushSeconds = Long.parseLong(properties.getProperty("metricsPushIntervalSeconds", "0"));
+        if (pushSeconds <= 0 || !(store instanceof InfluxMessageStore)) return null;
+        return Flux.interval(Duration.ofSeconds(pushSeconds))
+                .publishOn(Schedulers.elastic())
+                .subscribe(tick -> {
+                    try {
+                        ((InfluxMessageStore) store).writeMetrics(metrics);
+                    } catch (Exception e) {
+                        log.error("Error pushing metrics " + e.getMessage());
+                    }
+                });
+    }
+}
@@ -0,0 +1,106 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/* per-channel backfill checkpoints, persisted to a small binary file so a restart resumes each channel where it
+ * stopped. for every channel two message Snowflakes are kept: the newest message stored, and the oldest message
+ * reached while crawling the history backwards (COMPLETE once the start of the channel was reached).
+ * file layout: entry count, then (channelID, newest, oldest) longs per entry. */
+class CheckpointStore {
+    static final long COMPLETE = 1; // no message Snowflake is this small
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    private final Path path;
+    private final LongLongMap newest = new LongLongMap();
+    private final LongLongMap oldest = new LongLongMap();
+    private boolean dirty = false;
+
+    CheckpointStore(Path path) {
+        this.path = path;
+        if (!Files.exists(path)) return;
+        try {
+            read(path);
+        } catch (IOException e) {
+            log.error("Error reading checkpoints from " + path + ", backfilling from scratch: " + e.getMessage());
+            newest.clear();
+            oldest.clear();
+        }
+    }
+
+    private void read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long channelID = in.readLong();
+                newest.put(channelID, in.readLong());
+                oldest.put(channelID, in.readLong());
+            }
+        }
+    }
+
+    /* take over the checkpoints of another file, e.g. one left by a different shard layout. a channel's checkpoint
+     * is replaced as a whole, since its newest and oldest only describe the stored history together. */
+    synchronized void adopt(Path file) throws IOException {
+        read(file);
+        dirty = true;
+    }
+
+    // newest message Snowflake stored for the channel, or 0 if the channel has never been backfilled.
+    synchronized long newest(long channelID) {
+        return newest.get(channelID);
+    }
+
+    // oldest message Snowflake reached for the channel, COMPLETE if the whole history is stored, 0 if unknown.
+    synchronized long oldest(long channelID) {
+        return oldest.get(channelID);
+    }
+
+    // the newest checkpoint only moves forward: live writes may have advanced it past a running backfill.
+    synchronized void update(long channelID, long newestID, long oldestID) {
+        newest.put(channelID, Math.max(newest.get(channelID), newestID));
+        oldest.put(channelID, oldestID);
+        dirty = true;
+    }
+
+    /* move a backfilled channel's newest checkpoint forward to newestID. returns false if it was already there, or
+     * the channel has no checkpoint yet (its first backfill sets one). */
+    synchronized boolean advanceNewest(long channelID, long newestID) {
+        long current = newest.get(channelID);
+        if (current == 0 || current >= newestID) return false;
+        newest.put(channelID, newestID);
+        dirty = true;
+        return true;
+    }
+
+    // write the checkpoints to a temporary file and move it into place, so a crash never leaves a torn file.
+    synchronized void save() {
+        if (!dirty) return;
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(newest.size());
+            IOException[] failure = new IOException[1];
+            newest.forEach((channelID, newestID) -> {
+                try {
+                    out.writeLong(channelID);
+                    out.writeLong(newestID);
+                    out.writeLong(oldest.get(channelID));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+        } catch (IOException e) {
+            log.error("Error writing checkpoints to " + temporary + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            log.error("Error replacing checkpoint file " + path + ": " + e.getMessage());
+        }
+    }
+}
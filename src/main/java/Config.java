@@ -0,0 +1,68 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/* ChatKat's settings. config.properties is read from the path in CHATKAT_CONFIG when that is set, otherwise from the
+ * classpath (src/main/resources in the build), so a packaged jar or image runs without the source tree. any setting
+ * can then be overridden by an environment variable CHATKAT_<SETTING> in upper snake case, e.g.
+ * CHATKAT_BACKFILL_CONCURRENCY=8 for backfillConcurrency or CHATKAT_CHECKPOINT_FILE=/data/checkpoints.bin, so a
+ * deployment changes settings (and where checkpoints and indexes persist) without rebuilding. */
+final class Config {
+    static final String PREFIX = "CHATKAT_";
+
+    private Config() {
+    }
+
+    static Properties load(Map<String, String> environment) throws IOException {
+        Properties properties = new Properties();
+        String path = environment.get("CHATKAT_CONFIG");
+        try (InputStream in = path != null ? new FileInputStream(path)
+                : Config.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (in == null) throw new IOException("config.properties is not on the classpath and CHATKAT_CONFIG is unset");
+            properties.load(in);
+        }
+
+        // overrides of settings in the file keep their key's exact spelling (databaseURL is DATABASE_URL)
+        Set<String> fileSettings = new HashSet<>(); // environment names of the settings in the file
+        for (String key : properties.stringPropertyNames()) {
+            String name = environmentName(key);
+            fileSettings.add(name);
+            if (environment.containsKey(name)) properties.setProperty(key, environment.get(name));
+        }
+        // settings the file leaves out can be given as well, converted back to camel case
+        environment.forEach((name, value) -> {
+            if (name.startsWith(PREFIX) && !name.equals("CHATKAT_CONFIG") && !fileSettings.contains(name))
+                properties.setProperty(settingName(name.substring(PREFIX.length())), value);
+        });
+        return properties;
+    }
+
+    // backfillConcurrency -> CHATKAT_BACKFILL_CONCURRENCY, databaseURL -> CHATKAT_DATABASE_URL
+    static String environmentName(String key) {
+        StringBuilder name = new StringBuilder(PREFIX);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (Character.isUpperCase(c) && i > 0 && Character.isLowerCase(key.charAt(i - 1))) name.append('_');
+            name.append(Character.toUpperCase(c));
+        }
+        return name.toString();
+    }
+
+    // BACKFILL_CONCURRENCY -> backfillConcurrency
+    static String settingName(String name) {
+        StringBuilder key = new StringBuilder(name.length());
+        boolean upper = false;
+        for (char c : name.toCharArray()) {
+            if (c == '_') upper = key.length() > 0;
+            else {
+                key.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return key.toString();
+    }
+}
@@ -1,285 +1,994 @@
 import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.message.MessageBulkDeleteEvent;
 import discord4j.core.event.domain.message.MessageDeleteEvent;
+import discord4j.core.event.domain.message.ReactionAddEvent;
+import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.GuildChannel;
+import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.Message;
-import discord4j.core.object.entity.MessageChannel;
 import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.reaction.ReactionEmoji;
 import discord4j.core.object.util.Permission;
 import discord4j.core.object.util.Snowflake;
-import org.influxdb.BatchOptions;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.BatchPoints;
-import org.influxdb.dto.Point;
-import org.influxdb.dto.Query;
-import org.influxdb.dto.QueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
-
-import java.time.DayOfWeek;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class DatabaseHandler {
+    // number of user labels fetched from Discord at the same time while rendering a leaderboard
+    static final int LABEL_CONCURRENCY = 8;
+    // Discord returns history in pages of 100; a backfill commits its batch and checkpoint every COMMIT_PAGES pages
+    static final int PAGE_SIZE = 100;
+    static final int COMMIT_PAGES = 10;
+    static final long DISCORD_EPOCH = 1420070400000L;
+    // deleted messages missing from the local index are looked up in the message store this many at a time
+    static final int DELETE_LOOKUP_CHUNK = 100;
+    // index loads read a guild again when older messages change while it is read, at most this many times
+    static final int MAX_LOAD_ATTEMPTS = 3;
+    // largest "-top N" a request may ask for, and how many paged replies can be turned at once (older ones stop paging)
+    static final int MAX_PAGE_SIZE = 100;
+    static final int PAGED_REPLIES = 1000;
+    static final ReactionEmoji PREVIOUS_PAGE = ReactionEmoji.unicode("\u25C0");
+    static final ReactionEmoji NEXT_PAGE = ReactionEmoji.unicode("\u25B6");
+
     final Logger log = LoggerFactory.getLogger(ChatKat.class);
-    InfluxDB influxDB;
-    BatchPoints batchPoints;
+    // message stores block, so every store call is moved onto this scheduler, off the gateway threads.
+    final Scheduler databaseScheduler = Schedulers.elastic();
+    MessageStore store;
+    WriteBehindPipeline writes;
     DiscordClient client;
-    HashMap<Snowflake, HashMap<Snowflake, Boolean>> backfilledChannels = new HashMap<>();
+    BackfillScheduler backfillScheduler;
+    CheckpointStore checkpoints;
+    RestRateLimiter rateLimiter;
+    final Map<Long, Long> connectedAt = new ConcurrentHashMap<>();
+    // channel -> guild, for channels whose backfill has caught up to the time their guild connected
+    final Map<Long, Long> caughtUp = new ConcurrentHashMap<>();
     Debugger debugger = null;
     Properties properties;
+    LeaderboardIndex index;
+    MessageAuthorIndex messageIndex;
+    private final Disposable indexPruning;
+    MemberLabelCache labels;
+    LeaderboardCache<Leaderboard> leaderboards;
+    int pageSize;
+    // time frames and activity reports are in this time zone
+    ZoneId zone;
+    // reply message ID -> the leaderboard it pages through, least recently turned first
+    final Map<Long, PagedReply> pagedReplies = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PagedReply> eldest) {
+            return size() > PAGED_REPLIES;
+        }
+    };
+
+    // operational metrics, read through the local Prometheus endpoint and optionally pushed to InfluxDB
+    final Metrics metrics;
+    final Metrics.Histogram backfillBatchSizes, backfillWriteLatency, requestLatency,
+            sumQueryLatency, findQueryLatency, loadQueryLatency;
+    final LongAdder memberCalls, userCalls;
+    // the store is closed with the handler only if the handler opened it
+    private final boolean ownsStore;
 
     DatabaseHandler(DiscordClient client, Properties properties) {
+        this(client, properties, openStore(properties), new Metrics(), true);
+    }
+
+    // accepts an already opened store, so tests can run the handler against a stand-in database.
+    DatabaseHandler(DiscordClient client, Properties properties, MessageStore store) {
+        this(client, properties, store, new Metrics(), false);
+    }
+
+    /* one handler per gateway shard: shards share the store, which their owner closes, and register their metrics
+     * through a view labelled with their shard. */
+    DatabaseHandler(DiscordClient client, Properties properties, MessageStore store, Metrics metrics) {
+        this(client, properties, store, metrics, false);
+    }
+
+    private DatabaseHandler(DiscordClient client, Properties properties, MessageStore store, Metrics metrics,
+                            boolean ownsStore) {
         this.properties = properties;
-        if (System.getenv("DEBUG") != null && System.getenv("DEBUG").toLowerCase().equals("true"))
-            this.debugger = new Debugger();
+        this.metrics = metrics;
+        this.ownsStore = ownsStore;
+        /* with DEBUG=true every counted message is also written to csv files, rotated every debugFileMegabytes or
+         * debugFileMinutes and gzip-compressed. capture runs on its own thread and can stay on. */
+        if (System.getenv("DEBUG") != null && System.getenv("DEBUG").toLowerCase().equals("true")) {
+            try {
+                this.debugger = new Debugger(Paths.get(properties.getProperty("debugDirectory",
+                        "src/main/resources/debug_files")),
+                        Integer.parseInt(properties.getProperty("debugQueueCapacity", "10000")),
+                        Long.parseLong(properties.getProperty("debugFileMegabytes", "64")) << 20,
+                        TimeUnit.MINUTES.toMillis(Long.parseLong(properties.getProperty("debugFileMinutes", "60"))));
+            } catch (IOException e) {
+                log.error("Debuggerer launch IOException: " + e.getMessage());
+            }
+        }
 
         this.client = client;
+        this.store = store;
+
+        /* live messages and deletes are written behind by a single writer, in batches, with a spill file for batches
+         * that keep failing and for records offered while the queue is full. they are offered on the gateway's event
+         * threads, which must never wait for the database, so BLOCK is not allowed here. */
+        WriteBehindPipeline.OverflowPolicy overflowPolicy =
+                WriteBehindPipeline.OverflowPolicy.valueOf(properties.getProperty("writeOverflowPolicy", "SPILL"));
+        if (overflowPolicy == WriteBehindPipeline.OverflowPolicy.BLOCK) {
+            log.error("writeOverflowPolicy=BLOCK would stall the gateway while the database is slow, using SPILL");
+            overflowPolicy = WriteBehindPipeline.OverflowPolicy.SPILL;
+        }
+        this.writes = new WriteBehindPipeline(store,
+                Integer.parseInt(properties.getProperty("writeQueueCapacity", "100000")),
+                Integer.parseInt(properties.getProperty("writeBatchSize", "5000")),
+                Long.parseLong(properties.getProperty("writeFlushIntervalMillis", "1000")),
+                Integer.parseInt(properties.getProperty("writeRetries", "3")),
+                overflowPolicy,
+                Paths.get(properties.getProperty("spillFile", "spill.bin")),
+                Long.parseLong(properties.getProperty("spillLimitMegabytes", "64")) << 20);
+
+        // in-memory counts used to answer requests. hourly buckets are only kept for the configured window.
+        this.index = new LeaderboardIndex(TimeUnit.DAYS.toMillis(
+                Long.parseLong(properties.getProperty("indexHourlyRetentionDays", "400"))));
+
+        // message -> author index, so deletes don't have to read the message back from the database.
+        this.messageIndex = MessageAuthorIndex.open(properties.getProperty("messageIndexFile", ""),
+                Long.parseLong(properties.getProperty("messageIndexCapacity", "1000000")));
+        /* messages older than messageIndexRetentionDays are pruned once a day, so the index holds recent history only;
+         * deletes of older messages fall back to the store. */
+        long indexRetention = TimeUnit.DAYS.toMillis(
+                Long.parseLong(properties.getProperty("messageIndexRetentionDays", "180")));
+        this.indexPruning = Flux.interval(Duration.ZERO, Duration.ofDays(1), databaseScheduler)
+                .subscribe(tick -> pruneMessageIndex(System.currentTimeMillis() - indexRetention));
+
+        // leaderboard labels keyed by (guild, user), refreshed by member events.
+        this.labels = new MemberLabelCache(
+                TimeUnit.MINUTES.toMillis(Long.parseLong(properties.getProperty("labelCacheTtlMinutes", "60"))),
+                Integer.parseInt(properties.getProperty("labelCacheSize", "100000")));
+
+        /* finished leaderboards are reused for leaderboardCacheSeconds, and identical requests share one computation.
+         * deletes and backfilled history invalidate a guild's leaderboards at once. */
+        this.leaderboards = new LeaderboardCache<>(
+                TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("leaderboardCacheSeconds", "10"))),
+                Integer.parseInt(properties.getProperty("leaderboardCacheSize", "10000")));
+        // ranks per leaderboard page, unless a request asks for "-top N"
+        this.pageSize = Math.min(MAX_PAGE_SIZE, Integer.parseInt(properties.getProperty("leaderboardPageSize", "10")));
+        String timeZone = properties.getProperty("timeZone", "");
+        this.zone = timeZone.isEmpty() ? ZoneId.systemDefault() : ZoneId.of(timeZone);
+
+        // backfill runs under global and per-guild limits, paced to Discord's REST limits, resuming from checkpoints.
+        this.checkpoints = new CheckpointStore(Paths.get(properties.getProperty("checkpointFile", "checkpoints.bin")));
+        writes.onWritten(this::advanceCheckpoints);
+        this.rateLimiter = new RestRateLimiter(
+                Double.parseDouble(properties.getProperty("backfillGlobalRequestsPerSecond", "40")), 10,
+                Double.parseDouble(properties.getProperty("backfillChannelRequestsPerSecond", "5")), 2);
+        this.backfillScheduler = new BackfillScheduler(
+                Integer.parseInt(properties.getProperty("backfillConcurrency", "32")),
+                Integer.parseInt(properties.getProperty("backfillGuildConcurrency", "4")),
+                this::backfillChannel);
+
+        this.backfillBatchSizes = metrics.histogram("chatkat_write_batch_size", "Records per store write",
+                Metrics.Histogram.sizes(), "path", "backfill");
+        this.backfillWriteLatency = metrics.histogram("chatkat_write_seconds", "Time spent writing a batch to the store",
+                Metrics.Histogram.latency(), "path", "backfill");
+        this.requestLatency = metrics.histogram("chatkat_request_seconds",
+                "Time from a &kat request to the reply being sent", Metrics.Histogram.latency());
+        this.sumQueryLatency = storeQuery("sum_by_author");
+        this.findQueryLatency = storeQuery("find_at");
+        this.loadQueryLatency = storeQuery("load_buckets");
+        this.memberCalls = restCalls("get_member");
+        this.userCalls = restCalls("get_user");
+        registerMetrics();
+    }
+
+    private Metrics.Histogram storeQuery(String query) {
+        return metrics.histogram("chatkat_store_query_seconds", "Message store read latency", Metrics.Histogram.latency(),
+                "query", query);
+    }
+
+    private LongAdder restCalls(String call) {
+        return metrics.counter("chatkat_rest_calls_total", "Discord REST calls made to resolve leaderboard labels",
+                "call", call);
+    }
+
+    // expose the counters the other components keep themselves.
+    private void registerMetrics() {
+        metrics.counter("chatkat_records_written_total", "Records written by the write pipeline", writes.written);
+        metrics.counter("chatkat_records_dropped_total", "Records dropped by the write pipeline", writes.dropped);
+        metrics.counter("chatkat_records_spilled_total", "Records spilled to disk after failed writes or a full queue", writes.spilled);
+        metrics.counter("chatkat_write_failures_total", "Failed store writes, retries included", writes.failedWrites);
+        metrics.gauge("chatkat_write_queue_depth", "Records waiting in the write pipeline", writes::queued);
+        metrics.histogram("chatkat_write_batch_size", "Records per store write", writes.batchSizes, "path", "live");
+        metrics.histogram("chatkat_write_seconds", "Time spent writing a batch to the store", writes.writeLatency,
+                "path", "live");
+        metrics.histogram("chatkat_write_lag_seconds", "Time from a message being sent to its record being written",
+                writes.lag);
+
+        metrics.counter("chatkat_label_cache_hits_total", "Leaderboard labels found in the cache", labels.hits);
+        metrics.counter("chatkat_label_cache_misses_total", "Leaderboard labels missing from the cache", labels.misses);
+        metrics.gauge("chatkat_label_cache_size", "Leaderboard labels cached", labels::size);
+        metrics.counter("chatkat_leaderboard_cache_hits_total", "Leaderboards served from the cache", leaderboards.hits);
+        metrics.counter("chatkat_leaderboard_cache_misses_total", "Leaderboards computed", leaderboards.misses);
+        metrics.counter("chatkat_leaderboard_cache_coalesced_total",
+                "Leaderboard requests that joined an identical request being computed", leaderboards.coalesced);
+        metrics.gauge("chatkat_leaderboard_cache_size", "Leaderboards cached", leaderboards::size);
+        metrics.gauge("chatkat_message_index_size", "Messages in the message -> author index", () -> messageIndex.size());
+
+        metrics.counter("chatkat_backfill_messages_total", "Messages read by channel backfills",
+                backfillScheduler.messagesProcessed);
+        metrics.gauge("chatkat_backfill_channels_remaining", "Channels queued or running for backfill",
+                backfillScheduler::channelsRemaining);
+        metrics.gauge("chatkat_backfill_messages_per_second", "Backfill rate over the last progress interval",
+                backfillScheduler::messagesPerSecond);
+        if (debugger != null) {
+            metrics.counter("chatkat_debug_rows_total", "Rows written to the debug csv", debugger.written);
+            metrics.counter("chatkat_debug_dropped_total", "Messages the debug csv writer couldn't keep up with",
+                    debugger.dropped);
+        }
+        metrics.gauges("chatkat_backfill_channel_messages", "Messages backfilled per channel",
+                sample -> backfillScheduler.forEachChannel((guildID, channelID, messages, running, completed) ->
+                        sample.accept(new String[]{"guild", String.valueOf(guildID), "channel", String.valueOf(channelID),
+                                "state", running ? "running" : completed ? "completed" : "queued"}, (double) messages)));
+    }
+
+    // an event handler step that counts gateway events of one type.
+    Consumer<Object> countEvents(String type) {
+        LongAdder received = metrics.counter("chatkat_events_total", "Gateway events received, by type", "type", type);
+        return event -> received.increment();
+    }
+
+    /* storage=influx (the default) keeps history in the InfluxDB configured by the database* properties.
+     * storage=embedded keeps it in memory-mapped files inside this JVM, so no database container is needed. */
+    static MessageStore openStore(Properties properties) {
+        if (properties.getProperty("storage", "influx").equalsIgnoreCase("embedded")) {
+            try {
+                return new EmbeddedMessageStore(Paths.get(properties.getProperty("embeddedStoreDirectory", "data")),
+                        Integer.parseInt(properties.getProperty("embeddedSegmentRecords", "262144")));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the embedded message store", e);
+            }
+        }
         // initialize database connection
-        this.influxDB = InfluxDBFactory.connect(properties.getProperty("databaseURL"),
+        InfluxDB influxDB = InfluxDBFactory.connect(properties.getProperty("databaseURL"),
                 properties.getProperty("databaseUser"),
                 properties.getProperty("databasePass"));
+        /* influxWrites=line encodes raw points itself and POSTs them to /write (gzip-compressed with influxWriteGzip);
+         * client (the default) writes them through influxdb-java's BatchPoints. hours not rolled up yet are kept in
+         * rollupFile (empty keeps them in memory only). */
+        String rollupFile = properties.getProperty("rollupFile", "rollups.bin");
+        Path pendingRollups = rollupFile.isEmpty() ? null : Paths.get(rollupFile);
+        if (properties.getProperty("influxWrites", "client").equalsIgnoreCase("line")) {
+            return new InfluxMessageStore(influxDB, properties.getProperty("databaseName"),
+                    properties.getProperty("databaseURL"), properties.getProperty("databaseUser"),
+                    properties.getProperty("databasePass"),
+                    Boolean.parseBoolean(properties.getProperty("influxWriteGzip", "true")), pendingRollups);
+        }
+        return new InfluxMessageStore(influxDB, properties.getProperty("databaseName"), null, null, null, false,
+                pendingRollups);
+    }
+
+    // write a backfilled batch. a failed write is logged and rethrown, so the caller keeps its checkpoint.
+    private void writeBatch(List<MessageRecord> batch) {
+        if (!batch.isEmpty()) {
+            try {
+                long start = System.nanoTime();
+                this.store.write(batch);
+                backfillWriteLatency.recordSince(start);
+                backfillBatchSizes.record(batch.size());
+            } catch (RuntimeException e) {
+                log.error("Error inside writeBatch " + e.getMessage());
+                throw e;
+            }
+        }
+    }
 
-        this.influxDB.query(new Query("CREATE DATABASE " + properties.getProperty("databaseName")));
-        this.influxDB.setDatabase(properties.getProperty("databaseName"));
+    /* fetch a single leaderboard label when it isn't cached: the user's guild nickname, or their username if they are
+     * no longer a member of the guild. */
+    Mono<String> getUserLabel(long authorID, Snowflake guildID) {
+        memberCalls.increment();
+        return this.client.getMemberById(guildID, Snowflake.of(authorID))
+                .map(Member::getDisplayName)
+                .onErrorResume(error -> {
+                    userCalls.increment();
+                    return this.client.getUserById(Snowflake.of(authorID)).map(User::getUsername);
+                })
+                // users deleted from Discord can no longer be fetched, and some come back without a name; use their ID.
+                .onErrorReturn(String.valueOf(authorID))
+                .defaultIfEmpty(String.valueOf(authorID))
+                .map(name -> MemberLabelCache.label(name, authorID));
+    }
+
+    /* resolve the labels for the authors of a leaderboard page. @mentions are built locally. otherwise cached labels
+     * are used, and the misses are looked up one member at a time, LABEL_CONCURRENCY at once: a page holds at most
+     * MAX_PAGE_SIZE authors, and gateway member events keep the cache warm, so this never lists a whole guild. */
+    Mono<LongObjectMap<String>> resolveLabels(long guildID, long[] authorIDs, boolean setTags) {
+        LongObjectMap<String> resolved = new LongObjectMap<>(authorIDs.length);
+        List<Long> missing = new ArrayList<>();
+        for (long authorID : authorIDs) {
+            String label = setTags ? "<@" + authorID + ">" : labels.get(guildID, authorID);
+            if (label != null) resolved.put(authorID, label);
+            else missing.add(authorID);
+        }
+        if (missing.isEmpty()) return Mono.just(resolved);
+
+        return Flux.fromIterable(missing)
+                .flatMap(authorID -> {
+                    // cached meanwhile, e.g. by a member event or a concurrent leaderboard
+                    String cached = labels.get(guildID, authorID);
+                    if (cached != null) return Mono.just(Tuples.of(authorID, cached));
+                    return getUserLabel(authorID, Snowflake.of(guildID))
+                            .doOnNext(label -> labels.put(guildID, authorID, label))
+                            .map(label -> Tuples.of(authorID, label));
+                }, LABEL_CONCURRENCY)
+                .collect(() -> resolved, (map, entry) -> map.put(entry.getT1(), entry.getT2()));
+    }
 
-        // enable writing data in batches & set up exception handler to log failed data points
-        this.influxDB.enableBatch(BatchOptions.DEFAULTS.exceptionHandler(
-                (failedPoints, throwable) -> failedPoints.forEach(p -> {
-                    log.error("Error inside influxDB enableBatch exception handler  " + p.toString());
-                }))
-        );
+    // keep cached labels current from gateway member events (join, update, chunk).
+    void cacheMember(Member member) {
+        labels.put(member.getGuildId().asLong(), member.getId().asLong(), member.getDisplayName());
+    }
 
-        // initialize BatchPoints object for batch writes.
-        this.batchPoints = BatchPoints.database(properties.getProperty("databaseName")).build();
+    // users who left are listed by username, like the REST fallback does.
+    void cacheFormerMember(Snowflake guildID, User user) {
+        labels.put(guildID.asLong(), user.getId().asLong(), user.getUsername());
     }
 
-    // convenience method to simplify batch writing and error handling.
-    private void writeBatch(BatchPoints batchPoints) {
-        if (!batchPoints.getPoints().isEmpty()) {
+    /* rebuild the in-memory index for a guild from the database. called once per guild on GuildCreateEvent, in the
+     * background: its channels are registered first and backfilled after. the database is read up to the time the
+     * guild connected; live messages newer than that are held back by the index until the load is done, then counted
+     * on top. held updates from before that time (deletes of older messages) are left to the database once a write
+     * barrier has passed their records, which are offered before they are counted, and one arriving while the
+     * database is read makes the load start over, since the read may or may not have seen it. a barrier that leaves records in the spill file starts it over too: they
+     * reach the database later, so neither the read nor the held updates would count them. a record the pipeline
+     * dropped after accepting it is in neither the database nor the loaded counts. */
+    Mono<Void> loadIndex(Snowflake guildID) {
+        return Mono.fromRunnable(() -> {
+            long guild = guildID.asLong(), bound = connectedAt.getOrDefault(guild, System.currentTimeMillis());
+            if (index.isLoaded(guild)) return; // reconnects re-send GuildCreateEvent; the index is already current.
+            long hourlyFrom = bound - TimeUnit.DAYS.toMillis(
+                    Long.parseLong(properties.getProperty("indexHourlyRetentionDays", "400")));
+            index.holdUpdates(guild);
             try {
-                this.influxDB.write(batchPoints);
+                for (int attempt = 1; attempt <= MAX_LOAD_ATTEMPTS; attempt++) {
+                    if (!writes.flush().block()) continue; // held updates may be waiting in the spill file
+                    int written = index.resetCounts(guild);
+                    long start = System.nanoTime();
+                    /* Discord epoch (2015-01-01): no message can be older, and it keeps GROUP BY time() from starting
+                     * at 1970. */
+                    store.loadBuckets(guild, DISCORD_EPOCH, bound, LeaderboardIndex.DAY,
+                            (channelID, authorID, time, count) -> index.loadDay(guild, channelID, authorID, time, count));
+                    store.loadBuckets(guild, hourlyFrom, bound, LeaderboardIndex.HOUR,
+                            (channelID, authorID, time, count) -> index.loadHour(guild, channelID, authorID, time, count));
+                    loadQueryLatency.recordSince(start);
+                    if (index.finishLoad(guild, bound, written)) {
+                        leaderboards.invalidate(guild); // counts now come from the index
+                        return;
+                    }
+                }
+                index.abandonLoad(guild);
+                log.error("Gave up loading the index for guild " + guildID.asString() + " after " + MAX_LOAD_ATTEMPTS
+                        + " attempts, older messages kept changing or waited in the spill file; its requests read the"
+                        + " database instead");
             } catch (Exception e) {
-                log.error("Error inside writeBatch " + e.getCause().getMessage());
+                index.abandonLoad(guild);
+                log.error("Error inside loadIndex for guild " + guildID.asString() + ": " + e.getMessage());
             }
-        }
+        }).subscribeOn(databaseScheduler).then();
     }
 
-    /* convenience method for creating username or tag reference in query output string
-     * if setTags = true, returns @mention string. otherwise, attempts to retrieve the user's guild nickname.
-     * if the user is no longer a member of the guild, retrieve their username (which is always available). */
-    private String getUserLabel(String authorID, Snowflake guildID, Boolean setTags) {
-        return this.client.getUserById(Snowflake.of(authorID)).map(author -> {
-            if (setTags) {
-                return author.getMention();
-            } try {
-                return author.asMember(guildID).block().getDisplayName();
-            } catch (Exception e) {
-                return author.getUsername();
+    /* remember when the gateway delivered a guild. messages newer than this arrive as live events, so backfill
+     * stops there and nothing is counted twice. */
+    void markConnected(Snowflake guildID) {
+        long guild = guildID.asLong();
+        connectedAt.put(guild, System.currentTimeMillis());
+        // messages sent while disconnected are missing until each channel has caught up again
+        caughtUp.values().removeIf(id -> id == guild);
+    }
+
+    // guild and channel names are only needed by the debugger, which never looks them up itself.
+    void cacheGuildName(Guild guild) {
+        if (debugger != null) debugger.cacheGuild(guild.getId().asLong(), guild.getName());
+    }
+
+    /* make a pre-filtered TextChannel known as soon as its guild is delivered. a channel whose checkpoint shows its
+     * whole history was backfilled before a restart answers requests right away, from the store until its guild's
+     * index is loaded, instead of waiting for the catch-up. */
+    void registerChannel(TextChannel channel) {
+        messageIndex.recordChannel(channel.getId().asLong(), channel.getGuildId().asLong());
+        if (debugger != null) debugger.cacheChannel(channel.getId().asLong(), channel.getName());
+        backfillScheduler.register(channel, isComplete(channel));
+    }
+
+    /* queue a registered channel for backfill once its guild's index is loaded, so what the backfill counts goes into
+     * the loaded index rather than updates held back by the load. the scheduler decides when it runs. */
+    void scheduleBackfill(TextChannel channel) {
+        backfillScheduler.submit(channel, isComplete(channel));
+    }
+
+    private boolean isComplete(TextChannel channel) {
+        return checkpoints.oldest(channel.getId().asLong()) == CheckpointStore.COMPLETE;
+    }
+
+    /* accept pre-filtered TextChannel, perform a history search, and fill database. runs under the BackfillScheduler.
+     * the channel resumes from its checkpoint: first it finishes crawling older history if an earlier crawl was cut
+     * short, then it fetches messages newer than the newest one stored, up to the moment the guild connected.
+     * pages are paced by the REST rate limiter, and every COMMIT_PAGES pages the batch is written and, once the write
+     * succeeded, the checkpoint advanced, so a restart never skips or repeats a committed page. a failed write ends
+     * the run with the checkpoint before the batch. emits true once the channel's whole history is stored. */
+    Mono<Boolean> backfillChannel(TextChannel channel) {
+        long guildID = channel.getGuildId().asLong(), channelID = channel.getId().asLong();
+        Snowflake bound = Snowflake.of(Instant.ofEpochMilli(connectedAt.getOrDefault(guildID, System.currentTimeMillis())));
+
+        return Mono.fromCallable(() -> new BackfillProgress(guildID, channelID))
+                .subscribeOn(databaseScheduler)
+                .flatMap(progress -> {
+                    // newest first: each page ends before the last one's oldest message. a short page is the start.
+                    Flux<Tuple2<List<Message>, Boolean>> older = progress.oldest == CheckpointStore.COMPLETE
+                            ? Flux.empty()
+                            : page(channelID, () -> messagesBefore(channel,
+                                    progress.oldest == 0 ? bound : Snowflake.of(progress.oldest)))
+                                    .expand(page -> page.size() < PAGE_SIZE ? Mono.empty()
+                                            : page(channelID, () -> messagesBefore(channel, last(page))))
+                                    .map(page -> Tuples.of(page, page.size() < PAGE_SIZE));
+                    // oldest first: each page starts after the last one's newest message, until the bound is reached.
+                    Flux<Tuple2<List<Message>, Boolean>> newer = progress.newest == 0 ? Flux.empty()
+                            : page(channelID, () -> messagesAfter(channel, Snowflake.of(progress.newest)))
+                                    .expand(page -> page.size() < PAGE_SIZE || last(page).compareTo(bound) >= 0
+                                            ? Mono.empty() : page(channelID, () -> messagesAfter(channel, last(page))))
+                                    .map(page -> Tuples.of(page.stream()
+                                            .filter(message -> message.getId().compareTo(bound) < 0)
+                                            .collect(Collectors.toList()), false));
+                    return Flux.concat(older, newer)
+                            .publishOn(databaseScheduler)
+                            .doOnNext(page -> progress.add(page.getT1(), page.getT2(), channel.getGuildId()))
+                            .doOnComplete(() -> progress.reachedBound = true)
+                            .doOnError(error -> log.error("Error in backfillChannel during addMessage :  " + error.getMessage() + "\n"))
+                            .onErrorResume(error -> Mono.empty())
+                            // on completion (or error), write what was fetched and save the checkpoint.
+                            .doOnComplete(() -> {
+                                progress.commit();
+                                // from here on, live writes move the checkpoint (see advanceCheckpoints)
+                                if (progress.reachedBound) caughtUp.put(channelID, guildID);
+                            })
+                            .then(Mono.fromCallable(() -> progress.oldest == CheckpointStore.COMPLETE));
+                })
+                .doFinally(signal -> rateLimiter.release(channelID));
+    }
+
+    /* one page of channel history, requested once the rate limiter has a slot for it. the history fluxes page lazily,
+     * so taking a page's worth of messages sends exactly one REST request. */
+    private Mono<List<Message>> page(long channelID, Supplier<Flux<Message>> request) {
+        return Mono.defer(() -> rateLimiter.acquire(channelID).then(request.get().take(PAGE_SIZE).collectList()));
+    }
+
+    private static Snowflake last(List<Message> page) {
+        return page.get(page.size() - 1).getId();
+    }
+
+    // channel history from Discord's REST API: newest first before messageID, oldest first after it.
+    Flux<Message> messagesBefore(TextChannel channel, Snowflake messageID) {
+        return channel.getMessagesBefore(messageID);
+    }
+
+    Flux<Message> messagesAfter(TextChannel channel, Snowflake messageID) {
+        return channel.getMessagesAfter(messageID);
+    }
+
+    // state of one running channel backfill: the checkpoint being advanced and the batch not yet written.
+    private class BackfillProgress {
+        final long guildID, channelID;
+        long newest, oldest; // committed checkpoint
+        long pendingNewest, pendingOldest; // covered by the uncommitted batch
+        boolean historyComplete = false;
+        boolean failed = false; // a batch couldn't be written: nothing more is committed by this run
+        boolean reachedBound = false; // every page up to the guild's connection time was read
+        int pages = 0;
+        List<MessageRecord> batch = new ArrayList<>();
+        List<Long> batchMessageIDs = new ArrayList<>(); // the message of each record in batch
+
+        BackfillProgress(long guildID, long channelID) {
+            this.guildID = guildID;
+            this.channelID = channelID;
+            this.newest = checkpoints.newest(channelID);
+            this.oldest = checkpoints.oldest(channelID);
+            if (newest == 0) {
+                // channels stored before checkpoints existed resume after their own newest point, not the guild's.
+                long lastStored = lastStoredMessage(guildID, channelID);
+                if (lastStored != 0) {
+                    newest = lastStored;
+                    oldest = CheckpointStore.COMPLETE;
+                }
             }
-        }).block();
-    }
-
-    /* accept pre-filtered TextChannel, perform a history search, and fill database. On completion, store the
-     *  channelID in backfilledChannels HashMap to prevent premature output */
-    void backfillChannel(TextChannel channel){
-        // initialize BatchPoints object for each channel to avoid conflicts from access by concurrent threads
-        BatchPoints channelBatch = BatchPoints.database(properties.getProperty("databaseName")).build();
-        Snowflake channelID = channel.getId();
-        Snowflake guildID = channel.getGuildId();
-        Instant lastInput = null;
-
-        // Fetch last message in guild table and confirm that table exists
-        QueryResult getLast = influxDB.query(new Query(String.format("SELECT last(time) FROM g%s LIMIT 1", guildID.asString())));
-        if (getLast.getResults().get(0).getSeries() != null) {
-            lastInput = Instant.ofEpochMilli((long) getLast.getResults().get(0).getSeries().get(0).getValues().get(0).get(0));
+            this.pendingNewest = newest;
+            this.pendingOldest = oldest;
         }
 
-        // track which channels and guilds have been seen by backfiller.
-        if (!backfilledChannels.containsKey(guildID)) backfilledChannels.put(guildID, new HashMap<>());
-        backfilledChannels.get(guildID).put(channelID, false);
+        // endOfHistory marks the page that reached the start of the channel.
+        void add(List<Message> page, boolean endOfHistory, Snowflake guildID) {
+            for (Message message : page) {
+                long messageID = message.getId().asLong();
+                pendingNewest = Math.max(pendingNewest, messageID);
+                if (pendingOldest != CheckpointStore.COMPLETE)
+                    pendingOldest = pendingOldest == 0 ? messageID : Math.min(pendingOldest, messageID);
+                // filter and backfill requested messages.
+                if (message.getAuthor().map(author -> !author.isBot()).orElse(false)) {
+                    addMessage(message, guildID, batch);
+                    // a message counted before (e.g. live) adds no record
+                    if (batch.size() > batchMessageIDs.size()) batchMessageIDs.add(messageID);
+                }
+            }
+            if (endOfHistory) historyComplete = true;
+            backfillScheduler.recordMessages(guildID.asLong(), channelID, page.size());
+            if (++pages % COMMIT_PAGES == 0) commit();
+        }
 
-        Flux<Message> channelHistory;
-        /* if the table already exists, get messages after last entry. otherwise, get all messages*/
-        if (lastInput == null) {
-            channelHistory = channel.getMessagesBefore(Snowflake.of(Instant.now()));
-        } else {
-            channelHistory = channel.getMessagesAfter(Snowflake.of(lastInput));
+        /* write the batch, then advance the checkpoint over it. if the write fails the batch is uncounted again and the
+         * checkpoint stays where it was, so the next run reads those pages again. */
+        void commit() {
+            if (failed) return;
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                failed = true;
+                rollBack();
+                throw e;
+            }
+            if (!batch.isEmpty()) leaderboards.invalidate(guildID);
+            batch = new ArrayList<>();
+            batchMessageIDs = new ArrayList<>();
+            newest = pendingNewest;
+            oldest = historyComplete ? CheckpointStore.COMPLETE : pendingOldest;
+            if (newest != 0) {
+                checkpoints.update(channelID, newest, oldest);
+                checkpoints.save();
+            }
+        }
+
+        // take the unwritten batch back out of the indexes.
+        private void rollBack() {
+            for (int i = 0; i < batch.size(); i++) {
+                MessageRecord record = batch.get(i);
+                messageIndex.forget(batchMessageIDs.get(i));
+                index.add(record.guild, record.channel, record.author, record.time, -record.valid);
+            }
+            if (!batch.isEmpty()) leaderboards.invalidate(guildID);
+            batch = new ArrayList<>();
+            batchMessageIDs = new ArrayList<>();
         }
-        // filter and backfill requested messages.
-        channelHistory.filter(message -> !message.getAuthor().get().isBot()
-                        && message.getAuthor().isPresent())
-                .map(message -> this.addMessage(message, channelBatch))
-                .doOnError(error -> log.error("Error in backfillChannel during addMessage :  " + error.getMessage() + "\n"))
-                .doOnTerminate(() -> { // on completion, write the batch and mark the channel as backfilled.
-                    this.writeBatch(channelBatch);
-                    this.backfilledChannels.get(guildID).put(channelID, true);
-                })
-                .subscribe();
     }
 
-    /*  method overloading on addMessage allows ChatKat.java to call .map(databaseHandler::addMessage)
-    *   without accessing databaseHandler.batchPoints directly. the 2 parameter version of addMessage is only
-    *   called inside backfillChannel() and by the single parameter version */
-    Message addMessage(Message message) {
-        return addMessage(message, this.batchPoints);
+    /* live messages of a caught-up channel continue its checkpoint without a gap, and the pipeline writes records in
+     * the order they were offered, so a written batch moves the checkpoint up to its newest message. a restart then
+     * only catches up on what was sent while ChatKat was down, instead of re-reading (and, without a message index
+     * file, counting and storing again) everything since the last backfill. runs on the pipeline's writer thread. */
+    private void advanceCheckpoints(List<MessageRecord> records) {
+        boolean advanced = false;
+        for (MessageRecord record : records) {
+            if (record.deletion || !caughtUp.containsKey(record.channel)) continue;
+            // records carry no message ID: use the largest Snowflake of the record's millisecond, as lastStoredMessage
+            advanced |= checkpoints.advanceNewest(record.channel, ((record.time - DISCORD_EPOCH) << 22) | 0x3FFFFF);
+        }
+        if (advanced) checkpoints.save();
     }
-    Message addMessage(Message message, BatchPoints batch) {
-        if (debugger != null) {
-            debugger.addMessage(message);
+
+    /* newest Snowflake stored for a channel, or 0 if it has no messages. the Snowflake is the largest one possible
+     * for that millisecond, so resuming after it never re-reads the stored message. */
+    private long lastStoredMessage(long guildID, long channelID) {
+        long time = store.lastMessageTime(guildID, channelID);
+        return time == 0 ? 0 : ((time - DISCORD_EPOCH) << 22) | 0x3FFFFF;
+    }
+
+    /*  method overloading on addMessage allows ChatKat.java to call databaseHandler.addMessage
+    *   without accessing the write pipeline directly. the 3 parameter version of addMessage is only
+    *   called inside backfillChannel(), whose batches are written together with their checkpoint. guildID comes from
+    *   the gateway event or the channel being backfilled, so no REST lookup is needed per message. */
+    Message addMessage(Message message, Snowflake guildID) {
+        MessageRecord record = messageRecord(message, guildID);
+        if (record == null) return message;
+        /* offered before it is counted, so a write barrier that passes a held index update has passed its record
+         * too (see loadIndex). a dropped record isn't counted at all. */
+        if (writes.offer(record)) count(record);
+        else messageIndex.forget(message.getId().asLong());
+        return message; // return the message to the flux it was called from to check for requests.
+    }
+    Message addMessage(Message message, Snowflake guildID, List<MessageRecord> batch) {
+        MessageRecord record = messageRecord(message, guildID);
+        if (record != null) {
+            batch.add(record);
+            count(record);
         }
-        /* fetch channelID, authorID as strings to use as and tag values
-         * numerical strings break the query, so prepend character to each */
-        String channelID = "c" + message.getChannelId().asString(),
-                authorID = "a" + message.getAuthor().get().getId().asString(),
-                guildID = "g" + message.getGuild().block().getId().asString();
+        return message;
+    }
+
+    private void count(MessageRecord record) {
+        index.add(record.guild, record.channel, record.author, record.time, record.valid);
+    }
+
+    /* note a message in the message index and build its record. a message seen before (e.g. a live message later
+     * reached by backfill) returns null: it is already stored and counted, and append-only stores must not store it
+     * twice. */
+    private MessageRecord messageRecord(Message message, Snowflake guildID) {
+        if (debugger != null) debugger.addMessage(message, guildID.asLong());
+        long channelID = message.getChannelId().asLong(), authorID = message.getAuthor().get().getId().asLong(),
+                time = message.getTimestamp().toEpochMilli();
 
         // confirm that the message has content. if not, we'll store as a deleted message
         int isValid = (message.getContent().isPresent()) ? 1 : 0;
 
-        // add message data to batch
-        batch.point(Point.measurement(guildID)
-                .time(message.getTimestamp().toEpochMilli(), TimeUnit.MILLISECONDS)
-                .tag("channelID", channelID) // index channelID for channel based searches
-                .tag("authorID", authorID)   // index authorID to group search output by author
-                .addField("isValid", isValid)   // field isValid stores 1 for valid message or 0 for deleted
-                .build());
-        return message; // return the message to the flux it was called from to check for requests.
+        if (!messageIndex.add(message.getId().asLong(), channelID, guildID.asLong(), authorID, isValid == 1))
+            return null;
+        return new MessageRecord(time, guildID.asLong(), channelID, authorID, isValid);
     }
 
     /* ChatKat only notes message deletions that occur while she is running. If this causes major
-     * inconsistencies, operator may wish to drop the database and start from scratch. */
-    void deleteMessage(MessageDeleteEvent event) {
-
-        long messageTime = event.getMessageId().getTimestamp().toEpochMilli();
+     * inconsistencies, operator may wish to drop the database and start from scratch.
+     * delete events carry no guild ID, so it comes from the channel -> guild index, or the cached channel for
+     * channels ChatKat hasn't seen a message in yet. */
+    Mono<Void> deleteMessage(MessageDeleteEvent event) {
+        long channelID = event.getChannelId().asLong(), guildID = messageIndex.guildOf(channelID);
+        Mono<Long> guild = guildID != 0 ? Mono.just(guildID) : event.getChannel()
+                .ofType(GuildChannel.class)
+                .map(channel -> channel.getGuildId().asLong());
+
+        return guild.flatMap(id -> deleteMessages(id, channelID, new long[]{event.getMessageId().asLong()}))
+                .onErrorResume(error -> {
+                    log.error("Error inside deleteMessage " + error.getMessage());
+                    return Mono.empty();
+                });
+    }
 
-        String channelID = "c" + event.getChannelId().asString(),
-                guildID = "g" + ((GuildChannel) event.getChannel().block()).getGuild().block().getId().asString();
+    // bulk deletes (moderator purges) carry their guild ID and are resolved together.
+    Mono<Void> deleteMessages(MessageBulkDeleteEvent event) {
+        return deleteMessages(event.getGuildId().asLong(), event.getChannelId().asLong(),
+                event.getMessageIds().stream().mapToLong(Snowflake::asLong).toArray())
+                .onErrorResume(error -> {
+                    log.error("Error inside deleteMessages " + error.getMessage());
+                    return Mono.empty();
+                });
+    }
 
-        // discord4j doesn't serve authorID with delete events. fetch it from the database to get full tag set.
-        String authorID = this.influxDB.query(new Query(
-                String.format("SELECT \"isValid\", \"authorID\" FROM %s WHERE channelID = '%s' AND time = %dms",
-                        guildID, channelID, messageTime)))
-                .getResults().get(0).getSeries().get(0).getValues().get(0).get(2).toString();
+    /* discord4j doesn't serve authorID with delete events. authors come from the local message index; only messages
+     * it has never seen (stored before the index existed) are looked up in the database, in chunks, on the database
+     * scheduler. delete points go through the write pipeline like new messages. */
+    Mono<Void> deleteMessages(long guildID, long channelID, long[] messageIDs) {
+        List<Long> unknown = new ArrayList<>();
+        for (long messageID : messageIDs) {
+            long authorID = messageIndex.markDeleted(messageID);
+            if (authorID == MessageAuthorIndex.UNKNOWN) unknown.add(messageID);
+            else if (authorID != MessageAuthorIndex.NOT_COUNTED) markDeleted(guildID, channelID, authorID, messageID);
+        }
+        if (unknown.isEmpty()) return Mono.empty();
 
-        // lazy delete. wait to write to database until this.queryDatabase()
-        this.batchPoints.point(Point.measurement(guildID)
-                .time(messageTime, TimeUnit.MILLISECONDS)
-                .tag("channelID", channelID)
-                .tag("authorID", authorID)
-                .addField("isValid", 0)
-                .build());
+        return Flux.fromIterable(unknown)
+                .buffer(DELETE_LOOKUP_CHUNK)
+                .publishOn(databaseScheduler)
+                .doOnNext(chunk -> lookupDeleted(guildID, channelID, chunk))
+                .then();
     }
 
+    // queue the point rewritten with isValid = 0, then lower the author's count, as addMessage does.
+    private void markDeleted(long guildID, long channelID, long authorID, long messageID) {
+        long messageTime = (messageID >>> 22) + DISCORD_EPOCH;
+        if (!writes.offer(MessageRecord.deletion(messageTime, guildID, channelID, authorID))) return;
+        index.add(guildID, channelID, authorID, messageTime, -1);
+        leaderboards.invalidate(guildID);
+    }
 
-    /* Confirm that a message identified as a request is occurred in a valid channel, then send and return a response
-    *  if message is invalid, returns the original message. */
-    void processRequest(Message message) {
-        /* if the debug tool is running, close it on first request to avoid indefinitely
-         * writing to csv. */
-        if (debugger != null) {
-            debugger.close();
-            this.debugger = null;
+    // find the stored messages for deletes the index doesn't know, with one lookup per chunk.
+    private void lookupDeleted(long guildID, long channelID, List<Long> messageIDs) {
+        LongObjectMap<List<Long>> byTime = new LongObjectMap<>(messageIDs.size());
+        for (long messageID : messageIDs) {
+            byTime.computeIfAbsent((messageID >>> 22) + DISCORD_EPOCH, time -> new ArrayList<>(1)).add(messageID);
         }
+        long[] times = new long[byTime.size()];
+        int[] next = {0};
+        byTime.forEach((time, ids) -> times[next[0]++] = time);
+
+        // messages that aren't found were never counted (bot message or outside the backfilled history)
+        long start = System.nanoTime();
+        List<MessageRecord> found = store.findAt(guildID, channelID, times);
+        findQueryLatency.recordSince(start);
+        for (MessageRecord stored : found) {
+            List<Long> deleted = byTime.get(stored.time);
+            if (deleted == null) continue;
+            for (long messageID : deleted) {
+                messageIndex.addDeleted(messageID, stored.author);
+                // only a message that was still counted lowers the author's score.
+                if (stored.valid == 1) markDeleted(guildID, channelID, stored.author, messageID);
+            }
+        }
+    }
 
+    /* Confirm that a message identified as a request is occurred in a valid channel, then send a response.
+    *  if the bot can't send messages in the channel, completes without replying. */
+    Mono<Void> processRequest(Message message, Snowflake guildID) {
         // Fetch channel to send reply
-        MessageChannel channel = message.getChannel().block();
+        long start = System.nanoTime();
+        return message.getChannel()
+                .ofType(TextChannel.class)
+                // if we can't send messages in this channel, don't do anything
+                .filterWhen(channel -> channel.getEffectivePermissions(client.getSelfId().get())
+                        .map(permissions -> permissions.contains(Permission.SEND_MESSAGES)))
+                /* the results are usually going to come in fast, so you might not see this often
+                 * but we'll tell the channel the bot is "typing" for the aesthetic touch. */
+                .flatMap(channel -> channel.type().onErrorResume(error -> Mono.empty())
+                        .then(Mono.defer(() -> answerRequest(message, guildID)))
+                        .flatMap(reply -> sendReply(channel, reply)))
+                .doOnNext(sent -> requestLatency.recordSince(start))
+                .then()
+                .onErrorResume(error -> {
+                    log.error("Error inside processRequest " + error.getMessage());
+                    return Mono.empty();
+                });
+    }
 
-        // if we can't send messages in this channel, don't do anything
-        if (!((GuildChannel) channel).getEffectivePermissions(client.getSelfId().get())
-                .block().contains(Permission.SEND_MESSAGES))
-            return;
+    /* send a reply's messages in order. a leaderboard page that fits in one message gets previous/next page reactions
+     * when there are more pages; turnPage edits it when they are used. */
+    private Mono<Message> sendReply(TextChannel channel, Reply reply) {
+        return Flux.fromIterable(reply.messages)
+                .concatMap(channel::createMessage)
+                .last()
+                .flatMap(sent -> {
+                    if (reply.leaderboard == null || reply.messages.size() > 1
+                            || reply.leaderboard.pageCount(reply.pageSize) == 1) return Mono.just(sent);
+                    synchronized (pagedReplies) {
+                        pagedReplies.put(sent.getId().asLong(), new PagedReply(reply.leaderboard, reply.pageSize));
+                    }
+                    return sent.addReaction(PREVIOUS_PAGE)
+                            .then(sent.addReaction(NEXT_PAGE))
+                            .onErrorResume(error -> Mono.empty()) // no permission to react; the first page stands
+                            .thenReturn(sent);
+                });
+    }
+
+    /* a page reaction on a paged reply: show the previous or next page, rendered when first asked for, and take the
+     * reaction back off so it can be used again. other reactions are ignored. */
+    Mono<Void> turnPage(ReactionAddEvent event) {
+        PagedReply reply;
+        synchronized (pagedReplies) {
+            reply = pagedReplies.get(event.getMessageId().asLong());
+        }
+        String emoji = event.getEmoji().asUnicodeEmoji().map(ReactionEmoji.Unicode::getRaw).orElse("");
+        int direction = emoji.equals("\u25C0") ? -1 : emoji.equals("\u25B6") ? 1 : 0;
+        if (reply == null || direction == 0) return Mono.empty();
+
+        int page = reply.turn(direction);
+        return event.getMessage()
+                .flatMap(message -> message.removeReaction(event.getEmoji(), event.getUserId())
+                        .onErrorResume(error -> Mono.empty()) // needs Manage Messages; the page still turns
+                        .then(page < 0 ? Mono.empty() : reply.leaderboard.page(page, reply.pageSize)
+                                .flatMap(messages -> message.edit(spec -> spec.setContent(messages.get(0))))))
+                .then()
+                .onErrorResume(error -> {
+                    log.error("Error inside turnPage " + error.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    // a sent leaderboard page that can be turned with reactions.
+    private static final class PagedReply {
+        final Leaderboard leaderboard;
+        final int pageSize;
+        private int page = 0;
+
+        PagedReply(Leaderboard leaderboard, int pageSize) {
+            this.leaderboard = leaderboard;
+            this.pageSize = pageSize;
+        }
+
+        // the page to show after turning, or -1 when there is no page that way.
+        synchronized int turn(int direction) {
+            int next = page + direction;
+            if (next < 0 || next >= leaderboard.pageCount(pageSize)) return -1;
+            return page = next;
+        }
+    }
 
-        /* the results are usually going to come in fast, so you might not see this often
-         * but we'll tell the channel the bot is "typing" for the aesthetic touch */
-        channel.type();
+    // what a request is answered with: the messages to send and, for a leaderboard page, the leaderboard to page.
+    static final class Reply {
+        final List<String> messages;
+        final Leaderboard leaderboard;
+        final int pageSize;
 
-        // write batchPoints to ensure results are up to date
-        this.writeBatch(this.batchPoints);
+        Reply(List<String> messages, Leaderboard leaderboard, int pageSize) {
+            this.messages = messages;
+            this.leaderboard = leaderboard;
+            this.pageSize = pageSize;
+        }
 
-        channel.createMessage(answerRequest(message)).block();
+        static Reply text(String text) {
+            return new Reply(Collections.singletonList(text), null, 0);
+        }
     }
 
-    // accepts a Message that has been identified as a valid request for output and returns a String to send in response.
-    String answerRequest(Message requestMessage) {
+    // accepts a Message that has been identified as a valid request for output and returns the Reply to send.
+    Mono<Reply> answerRequest(Message requestMessage, Snowflake guildID) {
         List<String> requestParams = Arrays.asList(requestMessage.getContent().orElse("")
                 .toLowerCase().split("[\\s]"));
 
         // Case 1 - help requests:
-        if (requestParams.contains("-help")) return "Howdy, dumplin'! What can I do ya fer?\n\nType \"&kat\" in any channel"
+        if (requestParams.contains("-help")) return Mono.just(Reply.text("Howdy, dumplin'! What can I do ya fer?\n\nType \"&kat\" in any channel"
                 + " that I can see, and I'll let you know who has been spending all their time at the watercooler!\n\n"
                 + "The default search returns results for the same channel as the request, but you can add a \"-server\""
                 + " or \"-guild\" and I'll include results for every available channel on the server. This includes channels to which I can read requestMessage history, but not write.  \n\n"
                 + "Include \"-day\", \"-week\", \"-month\", or \"-year\" in your requestMessage to get a count for a shorter " +
-                "interval.\n\nIf you're the server's owner, you can also use \"-tag\" or \"-tags\" to mention all the users on the list.";
-
-        // otherwise, get guildID and channel ID
-        Snowflake guildID = requestMessage.getGuild().block().getId(), channelID = requestMessage.getChannelId();
-
-        // Case 2 -  request received before the channel has been backfilled:
-        if (!backfilledChannels.get(guildID).get(channelID)) return "I'm on my smoke break, henny. Check back in a few.";
+                "interval.\n\nI'll show the top " + pageSize + " folks; add \"-top\" and a number (up to " + MAX_PAGE_SIZE + ") to see more,"
+                + " and use the arrows under the list to flip through the rest. Add \"-me\" to see just where you rank.\n\n"
+                + "Want to know when folks gab? \"-heatmap\" shows the busiest hours of the week, \"-trend\" how the chatter"
+                + " has gone over time, and \"-channels\" the busiest channels on the server. Add \"-me\" to any of them to see"
+                + " just your own.\n\n"
+                + "If you're the server's owner, you can also use \"-tag\" or \"-tags\" to mention all the users on the list."));
+
+        // otherwise, get channel ID
+        Snowflake channelID = requestMessage.getChannelId();
+
+        // Case 2 -  request received before the channel has been backfilled; move it to the front of the queue:
+        if (!backfillScheduler.isChannelReady(guildID.asLong(), channelID.asLong())) {
+            backfillScheduler.prioritize(guildID.asLong(), channelID.asLong());
+            return Mono.just(Reply.text("I'm on my smoke break, henny. Check back in a few."));
+        }
 
         // Case 3 - request for full server history before one or more channels in the server have been backfilled:
-        if ((requestParams.contains("-guild") || requestParams.contains("-server"))
-                & (!backfilledChannels.get(guildID).entrySet().stream().allMatch(channelSet -> channelSet.getValue().equals(true))))
-            return "I'm on my smoke break, henny. Check back in a few.";
+        boolean channelBreakdown = requestParams.contains("-channels");
+        boolean guildScope = requestParams.contains("-guild") || requestParams.contains("-server") || channelBreakdown;
+        if (guildScope && !backfillScheduler.isGuildReady(guildID.asLong())) {
+            backfillScheduler.prioritizeGuild(guildID.asLong());
+            return Mono.just(Reply.text("I'm on my smoke break, henny. Check back in a few."));
+        }
 
         // Case 4 - request received in backfilled channel/server:
 
-        /*  create HashMap for parsing time parameters. this is done inside the method to ensure that
-        *  ZonedDateTime.now() equates to the moment of the request (or slightly after) */
-        HashMap<String, Instant> setInterval = new HashMap<>(4) {{
-            put("-year", ZonedDateTime.now().minusYears(1).toInstant());
-            put("-month", ZonedDateTime.now().minusMonths(1).toInstant());
-            put("-week", ZonedDateTime.now().minusWeeks(1).toInstant());
-            put("-day", ZonedDateTime.now().minusDays(1).toInstant());
-        }};
-
-        // check request message for time range parameters
+        /* the moment of the request, taken once: the time frame starts from it, and activity reports end at it. only the
+         * requested time frame is computed. */
+        ZonedDateTime now = ZonedDateTime.now(zone);
         long interval = 0; // set default interval to Epoch to retrieve full history if no params found.
-        for (String s : setInterval.keySet()) {
-            if (requestParams.contains(s.toLowerCase()))
-                interval = setInterval.get(s).toEpochMilli();
+        String intervalParam = "";
+        if (requestParams.contains("-day")) {
+            interval = now.minusDays(1).toInstant().toEpochMilli();
+            intervalParam = "-day";
+        } else if (requestParams.contains("-week")) {
+            interval = now.minusWeeks(1).toInstant().toEpochMilli();
+            intervalParam = "-week";
+        } else if (requestParams.contains("-month")) {
+            interval = now.minusMonths(1).toInstant().toEpochMilli();
+            intervalParam = "-month";
+        } else if (requestParams.contains("-year")) {
+            interval = now.minusYears(1).toInstant().toEpochMilli();
+            intervalParam = "-year";
+        }
+
+        // "-me" asks for the requester's own rank instead of the list, or for their own activity
+        boolean myRank = requestParams.contains("-me");
+        long requesterID = requestMessage.getAuthor().get().getId().asLong();
+
+        // activity reports: one pass over the counts answers "-heatmap", "-trend" or "-channels"
+        boolean heatmap = requestParams.contains("-heatmap"), trend = requestParams.contains("-trend");
+        if (heatmap || trend || channelBreakdown) {
+            return activity(guildID.asLong(), guildScope ? 0 : channelID.asLong(), myRank ? requesterID : 0, interval,
+                    now, intervalParam.equals("-day"))
+                    .map(report -> report.total == 0 ? Reply.text("Not a peep in here yet, sugar.")
+                            : heatmap ? Reply.text(report.heatmap())
+                            : trend ? Reply.text(report.trend())
+                            : new Reply(Leaderboard.split(report.channels(pageSize)), null, 0));
         }
 
         /* check tag parameters to see if bot should @mention users in output. to prevent abuse, only the guild owner
-        * should be able to use this feature */
-        final AtomicBoolean outputTags = new AtomicBoolean(false); // default is false.
-        if (requestMessage.getGuild().block().getOwnerId().equals(requestMessage.getAuthor().get().getId()))
-            outputTags.set(requestParams.contains("-tag") || requestParams.contains("-tags"));
-
-        final AtomicInteger atomicIndex = new AtomicInteger(0); // atomic index for counting in ordered stream
-
-        // String variable used to simplify query String.format(). if guild tag on, use GuildID, else channelID
-        String queryKey = (requestParams.contains("-guild") || requestParams.contains("-server")) ?
-                "" :
-                String.format("channelID = 'c%s' AND", channelID.asString());
-
-        return influxDB.query(new Query(String.format("SELECT sum(\"isValid\") FROM g%s WHERE %s time >= %dms GROUP BY authorID",
-                guildID.asString(), queryKey, interval)))
-                .getResults().get(0).getSeries().stream() // stream results to sort & parse
-                // influxDB schema formally expects a generic Object. cast to Double to prevent compiler errors.
-                .sorted((seriesA, seriesB) ->
-                        ((Double) seriesB.getValues().get(0).get(1)).compareTo((Double) seriesA.getValues().get(0).get(1)))
-                // map results to an output substrings, then collect to final output string.
-                .map(series -> String.format("%d. %s sent **%s** messages.",
-                            atomicIndex.addAndGet(1),
-                            getUserLabel(series.getTags().get("authorID").substring(1), guildID, outputTags.get()),
-                            series.getValues().get(0).get(1).toString().split("\\.")[0]))
-                .collect(Collectors.joining("\n"));
+        * should be able to use this feature. the guild is only looked up when tags were requested. */
+        boolean tagsRequested = requestParams.contains("-tag") || requestParams.contains("-tags");
+        Mono<Boolean> outputTags = !tagsRequested ? Mono.just(false) : requestMessage.getGuild()
+                .map(guild -> guild.getOwnerId().equals(requestMessage.getAuthor().get().getId()));
+
+        // "-top N" sets the ranks per page
+        int top = requestParams.indexOf("-top");
+        int requestPageSize = top >= 0 && top + 1 < requestParams.size() && requestParams.get(top + 1).matches("\\d{1,3}")
+                ? Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(requestParams.get(top + 1)))) : pageSize;
+
+        /* identical requests (same guild, scope, interval and tags) share one leaderboard, see LeaderboardCache. the
+         * interval is keyed by its parameter, as its start moves with every request. */
+        final long since = interval;
+        final String cacheInterval = intervalParam;
+        return outputTags.flatMap(setTags -> leaderboards.get(guildID.asLong(), guildScope ? 0 : channelID.asLong(),
+                cacheInterval, setTags,
+                () -> leaderboard(guildID.asLong(), channelID.asLong(), guildScope, since, setTags)))
+                .flatMap(leaderboard -> myRank
+                        ? Mono.just(Reply.text(rankReply(leaderboard, requesterID)))
+                        : leaderboard.page(0, requestPageSize)
+                                .map(messages -> new Reply(messages, leaderboard, requestPageSize)));
+    }
+
+    private static String rankReply(Leaderboard leaderboard, long authorID) {
+        long[] rank = leaderboard.rankOf(authorID);
+        if (rank == null) return "You haven't said a peep here yet, sugar.";
+        return "You're number **" + rank[0] + "** of " + leaderboard.size() + ", with **" + rank[1] + "** messages.";
+    }
+
+    /* the leaderboard for a channel (or the whole guild when guildScope is set) since the given time. counts come from
+     * the in-memory index once the guild is loaded, otherwise from the message store on the database scheduler; user
+     * labels come from the label cache, with misses resolved in one batch per page. */
+    Mono<Leaderboard> leaderboard(long guildID, long channelID, boolean guildScope, long since, boolean setTags) {
+        Mono<LongLongMap> counts = index.isLoaded(guildID)
+                ? Mono.fromCallable(() -> index.countByAuthor(guildID, guildScope ? 0 : channelID, since))
+                // flush the write pipeline first, so the database includes every message seen so far
+                : writes.flush().then(Mono.fromCallable(() -> {
+                    long start = System.nanoTime();
+                    LongLongMap sums = store.sumByAuthor(guildID, guildScope ? 0 : channelID, since);
+                    sumQueryLatency.recordSince(start);
+                    return sums;
+                }).subscribeOn(databaseScheduler));
+
+        return counts.map(authorCounts ->
+                new Leaderboard(authorCounts, authorIDs -> resolveLabels(guildID, authorIDs, setTags)));
+    }
+
+    /* an activity report for a channel (or the whole guild when channelID is 0) from since to now, for one author or
+     * everyone (authorID 0). counts come from one pass over the in-memory index once the guild is loaded, otherwise
+     * from one hourly-bucketed query to the message store. either way it runs on the database scheduler, off the
+     * gateway threads. local hours use the UTC offset at the time of the request. */
+    Mono<ActivityReport> activity(long guildID, long channelID, long authorID, long since, ZonedDateTime now,
+                                  boolean hourlyTrend) {
+        long until = now.toInstant().toEpochMilli();
+        Mono<ActivityReport> scan = Mono.fromCallable(() -> {
+            ActivityReport report = new ActivityReport(channelID, authorID, since, until, now.getOffset(), hourlyTrend);
+            if (index.isLoaded(guildID)) {
+                index.scan(guildID, channelID, since, report);
+            } else {
+                long start = System.nanoTime();
+                store.loadBuckets(guildID, Math.max(since, DISCORD_EPOCH), until, LeaderboardIndex.HOUR, report);
+                loadQueryLatency.recordSince(start);
+            }
+            return report;
+        }).subscribeOn(databaseScheduler);
+        // the database only includes every message seen so far once the write pipeline is flushed
+        return index.isLoaded(guildID) ? scan : writes.flush().then(scan);
+    }
+
+    // the first page of a leaderboard as one string.
+    Mono<String> renderLeaderboard(long guildID, long channelID, boolean guildScope, long since, boolean setTags) {
+        return leaderboard(guildID, channelID, guildScope, since, setTags)
+                .flatMap(leaderboard -> leaderboard.page(0, pageSize))
+                .map(messages -> String.join("\n", messages));
+    }
+
+    // drop message index entries for messages sent before beforeMillis.
+    void pruneMessageIndex(long beforeMillis) {
+        if (beforeMillis <= DISCORD_EPOCH) return;
+        try {
+            long pruned = messageIndex.prune((beforeMillis - DISCORD_EPOCH) << 22);
+            if (pruned > 0) log.info("Pruned " + pruned + " messages from the message index.");
+        } catch (RuntimeException e) {
+            log.error("Message index prune failed: " + e);
+        }
     }
 
     public void close() {
-        this.writeBatch(this.batchPoints);
+        this.indexPruning.dispose();
+        this.backfillScheduler.close();
+        this.writes.close();
+        this.checkpoints.save();
+        this.messageIndex.close();
         if (this.debugger != null) this.debugger.close();
-        this.influxDB.close();
+        if (this.ownsStore) this.store.close();
     }
 }
@@ -1,95 +1,251 @@
-import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.Message;
-import discord4j.core.object.entity.TextChannel;
 import discord4j.core.object.util.Snowflake;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
 
+/* writes metadata for every message ChatKat counts to csv files, to compare the bot's counts against a channel's
+ * history. capture costs the ingestion path one queue offer: messages are handed to a background writer thread
+ * through a bounded queue (and dropped, counted, when it is full). the writer encodes each row in one pass over the
+ * fields, quoting them per RFC 4180, and writes through a FileChannel. files are rotated once they reach maxFileBytes
+ * or have been open for maxFileMillis, and finished files are gzip-compressed on a thread of their own, so rotation
+ * never holds up the writer. guild and channel names come from a
+ * local cache fed by gateway events, so capture never calls Discord. */
 public class Debugger {
+    private static final String HEADER = "GuildID,GuildName,ChannelID,ChannelName,MessageID,TimeStamp,MessageType,"
+            + "MessageClass,AuthorUsername,AuthorID,Content,Embeds,Attachment,MessageType,MessageClass,EditTimeStamp,"
+            + "HashCode,MessageReference Bool,WebhookID else Epoch Snowflake\r\n";
+    private static final long IDLE_FLUSH_MILLIS = 1000;
+
     final Logger log = LoggerFactory.getLogger(ChatKat.class);
-    File debugFile;
-    BufferedWriter debugWriter;
+    private final Path directory;
+    private final long maxFileBytes, maxFileMillis;
+    private final ArrayBlockingQueue<Capture> queue;
+    private final ConcurrentHashMap<Long, String> guildNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> channelNames = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "debug-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
 
-    Debugger() {
-        try {
-            debugWriter = new BufferedWriter(new FileWriter("src" + File.separator + "main" + File.separator
-                    + "resources" + File.separator + "debug_files" + File.separator
-                    + Instant.now().getEpochSecond() + "_debug.csv", true));
-            debugWriter.append(
-                    "GuildID,"
-                            + "GuildName,"
-                            + "ChannelID,"
-                            + "ChannelName,"
-                            + "MessageID,"
-                            + "TimeStamp,"
-                            + "MessageType,"
-                            + "MessageClass,"
-                            + "AuthorUsername,"
-                            + "AuthorID,"
-                            + "Content,"
-                            + "Embeds,"
-                            + "Attachment,"
-                            + "MessageType,"
-                            + "MessageClass,"
-                            + "EditTimeStamp,"
-                            + "HashCode,"
-                            + "MessageReference Bool,"
-                            + "WebhookID else Epoch Snowflake,"
-                            + "\n");
-        } catch (IOException e) {
-            log.error("Debuggerer launch IOException: " + e.getMessage());
+    final LongAdder written = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    // writer thread state
+    private final StringBuilder row = new StringBuilder(512);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private FileChannel file;
+    private Path filePath;
+    private long fileBytes, fileOpened, lastFileName;
+
+    private static final class Capture {
+        final Message message;
+        final long guildID;
+
+        Capture(Message message, long guildID) {
+            this.message = message;
+            this.guildID = guildID;
         }
     }
-    String stringer(String input) {
-        return input
-                .replaceAll("\"", "\"\"\"")
-                .replaceAll(",", " ")
-                .replaceAll("\n", " ")
-                + ",";
+
+    Debugger(Path directory, int queueCapacity, long maxFileBytes, long maxFileMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileMillis = maxFileMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        openFile();
+
+        this.writer = new Thread(this::run, "debug-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void cacheGuild(long guildID, String name) {
+        guildNames.put(guildID, name);
+    }
+
+    void cacheChannel(long channelID, String name) {
+        channelNames.put(channelID, name);
+    }
+
+    // queue a message for the csv. never blocks: when the writer can't keep up, the message is dropped.
+    void addMessage(Message message, long guildID) {
+        if (!message.getContent().isPresent()) return;
+        if (!running || !queue.offer(new Capture(message, guildID))) dropped.increment();
     }
-    void addMessage(Message message) {
-        if (message.getContent().isPresent()) {
-            Guild guild = message.getGuild().block();
-            TextChannel channel = (TextChannel) message.getChannel().block();
 
+    private void run() {
+        while (running || !queue.isEmpty()) {
             try {
-                debugWriter.append(guild.getId().toString() + ","
-                        + this.stringer(guild.getName())
-                        + this.stringer(channel.getId().toString())
-                        + this.stringer(channel.getName())
-                        + this.stringer(message.getId().toString())
-                        + this.stringer(message.getTimestamp().toString())
-                        + this.stringer(message.getType().toString())
-                        + this.stringer(message.getClass().toString())
-                        + this.stringer(message.getAuthor().get().getUsername())
-                        + this.stringer(message.getAuthor().get().getId().toString())
-                        + this.stringer(message.getContent().orElse("NO CONTENT"))
-                        + this.stringer(message.getEmbeds().toString())
-                        + this.stringer(message.getAttachments().toString())
-                        + this.stringer(message.getType().toString())
-                        + this.stringer(message.getClass().toString())
-                        + this.stringer(message.getEditedTimestamp().orElse(Instant.EPOCH).toString())
-                        + this.stringer(String.valueOf(message.hashCode()))
-                        + this.stringer(String.valueOf(message.getMessageReference().isPresent()))
-                        + this.stringer(message.getWebhookId().orElse(Snowflake.of(Instant.EPOCH)).toString())
-                        + "\n");
+                Capture next = queue.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                for (; next != null; next = queue.poll()) {
+                    writeRow(next.message, next.guildID);
+                    if (fileSize() >= maxFileBytes) rotate();
+                }
+                // idle: hand what is buffered to the OS, so the file can be read while the bot runs
+                writeOut();
+                if (System.currentTimeMillis() - fileOpened >= maxFileMillis && fileSize() > HEADER.length()) rotate();
+            } catch (InterruptedException e) {
+                break;
             } catch (IOException e) {
                 log.error("debugwriter IOexception: " + e.getMessage());
             }
         }
-    }
-    void close(){
         try {
-            this.debugWriter.flush();
-            this.debugWriter.close();
+            closeFile();
         } catch (IOException e) {
             log.error("DebugWriter Close exception: " + e.getMessage());
         }
     }
+
+    // encode one message into row: the fields in HEADER order, separated by commas, ending in CRLF.
+    void encodeRow(Message message, long guildID) {
+        StringBuilder row = this.row;
+        row.setLength(0);
+        row.append(guildID).append(',');
+        field(row, guildNames.getOrDefault(guildID, "")).append(',');
+        row.append(message.getChannelId().asLong()).append(',');
+        field(row, channelNames.getOrDefault(message.getChannelId().asLong(), "")).append(',');
+        row.append(message.getId().asLong()).append(',');
+        row.append(message.getTimestamp()).append(',');
+        row.append(message.getType()).append(',');
+        field(row, message.getClass().toString()).append(',');
+        field(row, message.getAuthor().map(author -> author.getUsername()).orElse("")).append(',');
+        row.append(message.getAuthor().map(author -> author.getId().asLong()).orElse(0L)).append(',');
+        field(row, message.getContent().orElse("NO CONTENT")).append(',');
+        field(row, message.getEmbeds().toString()).append(',');
+        field(row, message.getAttachments().toString()).append(',');
+        row.append(message.getType()).append(',');
+        field(row, message.getClass().toString()).append(',');
+        row.append(message.getEditedTimestamp().orElse(Instant.EPOCH)).append(',');
+        row.append(message.hashCode()).append(',');
+        row.append(message.getMessageReference().isPresent()).append(',');
+        row.append(message.getWebhookId().orElse(Snowflake.of(Instant.EPOCH)).asLong()).append("\r\n");
+    }
+
+    /* append a field, quoted only if it contains a comma, quote or line break, with quotes doubled inside
+     * (RFC 4180). one pass to check, one to copy. */
+    static StringBuilder field(StringBuilder row, String value) {
+        int length = value.length();
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) return row.append(value);
+        row.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"') row.append('"');
+            row.append(c);
+        }
+        return row.append('"');
+    }
+
+    // encode a row and append its bytes to the output buffer, writing the buffer out whenever it fills up.
+    void writeRow(Message message, long guildID) throws IOException {
+        encodeRow(message, guildID);
+        append(row);
+        written.increment();
+    }
+
+    private void append(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (encoder.encode(chars, out, true) == CoderResult.OVERFLOW) writeOut();
+        encoder.reset();
+    }
+
+    // bytes of the current file, including those still in the output buffer.
+    private long fileSize() {
+        return fileBytes + out.position();
+    }
+
+    private void writeOut() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) fileBytes += file.write(out);
+        out.clear();
+    }
+
+    // files are named after the time they were opened, one millisecond apart at least so names never collide.
+    private void openFile() throws IOException {
+        lastFileName = Math.max(System.currentTimeMillis(), lastFileName + 1);
+        filePath = directory.resolve(lastFileName + "_debug.csv");
+        file = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+        fileOpened = System.currentTimeMillis();
+        append(HEADER);
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        openFile();
+    }
+
+    // write out and close the current file, and hand it to the compressor.
+    private void closeFile() throws IOException {
+        writeOut();
+        file.close();
+        Path finished = filePath;
+        compressor.execute(() -> compress(finished));
+    }
+
+    /* replace a finished file with a gzip-compressed copy. the copy is written under a temporary name first, so an
+     * interrupted compression leaves the csv and no truncated .gz. */
+    private void compress(Path csv) {
+        Path compressed = csv.resolveSibling(csv.getFileName() + ".gz");
+        Path partial = csv.resolveSibling(csv.getFileName() + ".gz.part");
+        try {
+            try (OutputStream gzip = new GZIPOutputStream(Files.newOutputStream(partial), 1 << 16)) {
+                Files.copy(csv, gzip);
+            }
+            Files.move(partial, compressed, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(csv);
+        } catch (IOException e) {
+            log.error("Error compressing debug file " + csv + ": " + e.getMessage());
+        }
+    }
+
+    // stop capturing, write out everything still queued and compress the last files.
+    void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+            compressor.shutdown();
+            compressor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the row last built by encodeRow, for benchmarks.
+    CharSequence row() {
+        return row;
+    }
 }
@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/* message store that runs inside the ChatKat JVM, for deployments without an InfluxDB container. every guild has
+ * its own directory of append-only, memory-mapped segment files. a segment holds up to segmentRecords messages in
+ * columns (time, channel, author, valid), so the leaderboard scans read one long column after another. the header of
+ * each segment keeps its record count and min/max time, which serves as the guild's segment index: scans skip
+ * segments outside the requested time range. deletions are appended as tombstones with valid = -1, so sums over
+ * valid count the messages that still count, just like the InfluxDB schema. */
+class EmbeddedMessageStore implements MessageStore {
+    private static final long MAGIC = 0x43484b5345473031L; // "CHKSEG01"
+    private static final int HEADER_SIZE = 64; // magic, record count, min time, max time
+    private static final int RECORD_SIZE = 28; // time, channel, author (8 bytes each) and valid (4 bytes)
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final ConcurrentHashMap<Long, GuildLog> guilds = new ConcurrentHashMap<>();
+
+    EmbeddedMessageStore(Path directory, int segmentRecords) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentRecords = segmentRecords;
+    }
+
+    private GuildLog guild(long guildID) {
+        return guilds.computeIfAbsent(guildID, id -> {
+            try {
+                return new GuildLog(directory.resolve("g" + id));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open message store for guild " + id, e);
+            }
+        });
+    }
+
+    @Override
+    public void write(List<MessageRecord> records) {
+        for (MessageRecord record : records) {
+            guild(record.guild).append(record.time, record.channel, record.author,
+                    record.deletion ? -1 : record.valid);
+        }
+    }
+
+    @Override
+    public long lastMessageTime(long guildID, long channelID) {
+        long last = 0;
+        for (Segment segment : guild(guildID).segments) {
+            if (segment.maxTime <= last) continue;
+            for (int i = 0, count = segment.count; i < count; i++) {
+                if (segment.channels.get(i) == channelID) last = Math.max(last, segment.times.get(i));
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public List<MessageRecord> findAt(long guildID, long channelID, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        // time -> author -> valid summed over the message and its tombstones
+        LongObjectMap<LongLongMap> found = new LongObjectMap<>(sorted.length);
+        for (Segment segment : guild(guildID).segments) {
+            if (segment.maxTime < sorted[0] || segment.minTime > sorted[sorted.length - 1]) continue;
+            for (int i = 0, count = segment.count; i < count; i++) {
+                if (segment.channels.get(i) != channelID) continue;
+                long time = segment.times.get(i);
+                if (Arrays.binarySearch(sorted, time) < 0) continue;
+                found.computeIfAbsent(time, t -> new LongLongMap(1)).addTo(segment.authors.get(i), segment.valids.get(i));
+            }
+        }
+        List<MessageRecord> records = new ArrayList<>(found.size());
+        found.forEach((time, authors) -> authors.forEach((authorID, valid) ->
+                records.add(new MessageRecord(time, guildID, channelID, authorID, (int) valid))));
+        return records;
+    }
+
+    @Override
+    public LongLongMap sumByAuthor(long guildID, long channelID, long sinceMillis) {
+        LongLongMap counts = new LongLongMap();
+        for (Segment segment : guild(guildID).segments) {
+            if (segment.maxTime < sinceMillis) continue;
+            boolean whole = segment.minTime >= sinceMillis; // every record is in range, skip the time column
+            for (int i = 0, count = segment.count; i < count; i++) {
+                if ((whole || segment.times.get(i) >= sinceMillis)
+                        && (channelID == 0 || segment.channels.get(i) == channelID))
+                    counts.addTo(segment.authors.get(i), segment.valids.get(i));
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void loadBuckets(long guildID, long fromMillis, long untilMillis, long bucketMillis, BucketConsumer consumer) {
+        for (Segment segment : guild(guildID).segments) {
+            if (segment.maxTime < fromMillis || segment.minTime >= untilMillis) continue;
+            for (int i = 0, count = segment.count; i < count; i++) {
+                long time = segment.times.get(i);
+                if (time < fromMillis || time >= untilMillis) continue;
+                consumer.accept(segment.channels.get(i), segment.authors.get(i),
+                        time - Math.floorMod(time, bucketMillis), segment.valids.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        guilds.values().forEach(GuildLog::close);
+    }
+
+    // one guild's segments, oldest first. appends go to the last one; readers iterate a snapshot of the list.
+    private final class GuildLog {
+        final Path directory;
+        final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+
+        GuildLog(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "seg-*.dat")) {
+                stream.forEach(files::add);
+            }
+            files.sort(null); // zero-padded names sort in creation order
+            for (Path file : files) segments.add(new Segment(file, segmentRecords));
+        }
+
+        synchronized void append(long time, long channel, long author, int valid) {
+            Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (tail == null || tail.count == tail.capacity) {
+                try {
+                    tail = new Segment(directory.resolve(String.format("seg-%08d.dat", segments.size())), segmentRecords);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not create segment in " + directory, e);
+                }
+                segments.add(tail);
+            }
+            tail.append(time, channel, author, valid);
+        }
+
+        synchronized void close() {
+            segments.forEach(Segment::close);
+        }
+    }
+
+    /* one segment file: the header, then the time, channel and author columns (8 bytes per record) and the valid
+     * column (4 bytes per record). the record count is published after the record's columns are written, so
+     * readers that read count first never see a half-written record. */
+    private static final class Segment {
+        final int capacity;
+        final FileChannel file;
+        final MappedByteBuffer buffer;
+        final LongBuffer times, channels, authors;
+        final IntBuffer valids;
+        volatile int count;
+        volatile long minTime, maxTime;
+
+        Segment(Path path, int defaultCapacity) throws IOException {
+            boolean exists = Files.exists(path);
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int capacity = defaultCapacity;
+            if (exists) {
+                // a segment keeps the capacity it was created with, whatever the current setting is
+                capacity = (int) ((file.size() - HEADER_SIZE) / RECORD_SIZE);
+            }
+            this.capacity = capacity;
+            buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) RECORD_SIZE * capacity);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            times = column(HEADER_SIZE, 8 * capacity).asLongBuffer();
+            channels = column(HEADER_SIZE + 8 * capacity, 8 * capacity).asLongBuffer();
+            authors = column(HEADER_SIZE + 16 * capacity, 8 * capacity).asLongBuffer();
+            valids = column(HEADER_SIZE + 24 * capacity, 4 * capacity).asIntBuffer();
+
+            if (exists) {
+                if (buffer.getLong(0) != MAGIC) throw new IOException(path + " is not a ChatKat segment file");
+                count = buffer.getInt(8);
+                minTime = buffer.getLong(16);
+                maxTime = buffer.getLong(24);
+            } else {
+                buffer.putLong(0, MAGIC);
+                minTime = Long.MAX_VALUE;
+                maxTime = Long.MIN_VALUE;
+                buffer.putLong(16, minTime);
+                buffer.putLong(24, maxTime);
+            }
+        }
+
+        private java.nio.ByteBuffer column(int offset, int length) {
+            return buffer.duplicate().position(offset).limit(offset + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // called by the guild's writer only.
+        void append(long time, long channel, long author, int valid) {
+            int i = count;
+            times.put(i, time);
+            channels.put(i, channel);
+            authors.put(i, author);
+            valids.put(i, valid);
+            if (time < minTime) buffer.putLong(16, minTime = time);
+            if (time > maxTime) buffer.putLong(24, maxTime = time);
+            buffer.putInt(8, i + 1);
+            count = i + 1;
+        }
+
+        void close() {
+            buffer.force();
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // the mapping stays valid; nothing more to do on shutdown.
+            }
+        }
+    }
+}
@@ -0,0 +1,526 @@
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Point;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/* message store backed by InfluxDB 1.8. each guild is a measurement g<guildID>, tagged with channelID c<id> and
+ * authorID a<id> (numerical tag values break queries, hence the prefixes), with one int field isValid. a deletion
+ * rewrites the message's point with isValid = 0, so sums over isValid count the messages that still count.
+ *
+ * long-range reads use rollups kept next to the raw points: r1h_g<guildID> and r1d_g<guildID> hold one point per
+ * hour or day, channel and author, with the field count. writes only note the hours they touched (deletes included,
+ * since they are writes); a background thread recomputes those rollup buckets from the raw points ROLLUP_DELAY after
+ * the first of them, so a burst of writes is rolled up once and writers never wait for it. a read first brings its
+ * guild's rollups up to date itself. with a pending file, the hours a write touches are saved there before the write
+ * and stay until a rollup after it has covered them, so hours left pending by a crash are rolled up after a restart.
+ * reads are planned so that raw points are only read for the partial hours at the edges of the range, hourly rollups
+ * for the partial days, and daily rollups for everything in between.
+ *
+ * raw points are written through the influxdb-java client (BatchPoints) by default. with a write URL they are
+ * instead encoded by LineProtocolEncoder and POSTed to /write directly, optionally gzip-compressed, which skips
+ * building a Point per message. */
+class InfluxMessageStore implements MessageStore {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1), DAY = TimeUnit.DAYS.toMillis(1);
+    // touched hours closer than this are recomputed as one range
+    private static final long MERGE_GAP = DAY;
+    // longest range recomputed by one statement, so rebuilding a guild's history doesn't time out
+    private static final long RECOMPUTE_CHUNK = TimeUnit.DAYS.toMillis(30);
+    // how long touched hours wait for more writes before they are rolled up
+    private static final long ROLLUP_DELAY = TimeUnit.SECONDS.toMillis(2);
+    private static final long ROLLUP_RETRY = TimeUnit.SECONDS.toMillis(30);
+
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    private final InfluxDB influxDB;
+    private final String database;
+    // rollup state per guild, and the thread that brings them up to date after writes
+    private final ConcurrentHashMap<Long, GuildRollups> rollups = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService rollupExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "influx-rollups");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean rollupScheduled = new AtomicBoolean();
+    // (guild, hour) pairs of the hours not rolled up yet, or null to keep them in memory only
+    private final Path pendingFile;
+    private final Object pendingLock = new Object();
+    // direct line protocol writes: the /write endpoint (null to write through the client), auth header and gzip
+    private final URL writeURL;
+    private final String authorization;
+    private final boolean gzip;
+    // write() runs on the write pipeline's thread and on backfill threads; each keeps its own encoder
+    private final ThreadLocal<LineProtocolEncoder> encoders = ThreadLocal.withInitial(() -> new LineProtocolEncoder(1 << 16));
+
+    InfluxMessageStore(InfluxDB influxDB, String database) {
+        this(influxDB, database, null, null, null, false);
+    }
+
+    InfluxMessageStore(InfluxDB influxDB, String database, String databaseURL, String user, String password,
+                       boolean gzip) {
+        this(influxDB, database, databaseURL, user, password, gzip, null);
+    }
+
+    /* write raw points as line protocol POSTed to databaseURL/write (a null URL writes through the client),
+     * gzip-compressed if gzip is set. queries always go through the client. hours left in pendingFile by an earlier
+     * run are rolled up shortly after the start. */
+    InfluxMessageStore(InfluxDB influxDB, String database, String databaseURL, String user, String password,
+                       boolean gzip, Path pendingFile) {
+        this.influxDB = influxDB;
+        this.database = database;
+        this.gzip = gzip;
+        this.pendingFile = pendingFile;
+        try {
+            this.writeURL = databaseURL == null ? null : new URL(databaseURL.replaceAll("/+$", "") + "/write?db="
+                    + URLEncoder.encode(database, StandardCharsets.UTF_8) + "&precision=ns");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Invalid databaseURL " + databaseURL, e);
+        }
+        this.authorization = user == null || user.isEmpty() ? null : "Basic " + Base64.getEncoder().encodeToString(
+                (user + ":" + (password == null ? "" : password)).getBytes(StandardCharsets.UTF_8));
+        this.influxDB.query(new Query("CREATE DATABASE " + database));
+        this.influxDB.setDatabase(database);
+        if (loadPending() && rollupScheduled.compareAndSet(false, true)) {
+            rollupExecutor.schedule(this::updateRollups, ROLLUP_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void write(List<MessageRecord> records) {
+        if (records.isEmpty()) return;
+        boolean added = false;
+        for (MessageRecord record : records) added |= rollups(record.guild).begin(floor(record.time, HOUR));
+        if (added) savePending();
+        try {
+            if (writeURL != null) post(records);
+            else {
+                BatchPoints batch = BatchPoints.database(database).build();
+                for (MessageRecord record : records) batch.point(point(record));
+                influxDB.write(batch);
+            }
+        } finally {
+            // the raw points are in, or some may be: note the hours they touched for the rollup thread
+            for (MessageRecord record : records) rollups(record.guild).touch(floor(record.time, HOUR));
+            if (rollupScheduled.compareAndSet(false, true)) {
+                rollupExecutor.schedule(this::updateRollups, ROLLUP_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    static Point point(MessageRecord record) {
+        return Point.measurement("g" + record.guild)
+                .time(record.time, TimeUnit.MILLISECONDS)
+                .tag("channelID", "c" + record.channel) // index channelID for channel based searches
+                .tag("authorID", "a" + record.author)   // index authorID to group search output by author
+                .addField("isValid", record.valid)      // field isValid stores 1 for valid message or 0 for deleted
+                .build();
+    }
+
+    // write records with one POST to /write. failures throw like the client's writes, so the write pipeline retries them.
+    private void post(List<MessageRecord> records) {
+        LineProtocolEncoder encoder = encoders.get();
+        encoder.reset();
+        for (MessageRecord record : records) encoder.encode(record);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) writeURL.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(60_000);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            if (authorization != null) connection.setRequestProperty("Authorization", authorization);
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(1 << 16);
+            } else {
+                connection.setFixedLengthStreamingMode(encoder.length());
+            }
+            try (OutputStream out = gzip ? new GZIPOutputStream(connection.getOutputStream(), 1 << 16)
+                    : connection.getOutputStream()) {
+                encoder.writeTo(out);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IllegalStateException("InfluxDB write failed with " + status + ": " + drain(connection.getErrorStream()));
+            }
+            drain(connection.getInputStream()); // lets the connection be reused
+        } catch (IOException e) {
+            throw new UncheckedIOException("InfluxDB write failed", e);
+        }
+    }
+
+    private static String drain(InputStream in) throws IOException {
+        if (in == null) return "";
+        try (InputStream body = in) {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            body.transferTo(text);
+            return text.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /* push a snapshot of the operational metrics: one point per series, in a measurement named after the metric
+     * (chatkat_*), tagged with its labels. */
+    void writeMetrics(Metrics metrics) {
+        BatchPoints batch = BatchPoints.database(database).build();
+        long now = System.currentTimeMillis();
+        metrics.collect((name, labels, fields) -> batch.point(Point.measurement(name)
+                .time(now, TimeUnit.MILLISECONDS)
+                .tag(labels)
+                .fields(fields)
+                .build()));
+        influxDB.write(batch);
+    }
+
+    private GuildRollups rollups(long guild) {
+        return rollups.computeIfAbsent(guild, GuildRollups::new);
+    }
+
+    // runs on the rollup thread: recompute the touched hours of every guild. guilds that fail are retried later.
+    private void updateRollups() {
+        rollupScheduled.set(false);
+        boolean failed = false;
+        for (GuildRollups guild : rollups.values()) {
+            try {
+                guild.update();
+            } catch (RuntimeException e) {
+                failed = true;
+                log.error("Error updating rollups for guild " + guild.guild + ": " + e.getMessage());
+            }
+        }
+        if (failed && !rollupExecutor.isShutdown() && rollupScheduled.compareAndSet(false, true)) {
+            rollupExecutor.schedule(this::updateRollups, ROLLUP_RETRY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* the rollups of one guild. writers only add to the touched hours, under their own lock; checking and
+     * recomputing holds the guild's lock, so one guild's (re)build never delays writers or other guilds. */
+    private final class GuildRollups {
+        final long guild;
+        private final TreeSet<Long> touched = new TreeSet<>(); // hours written since they were last rolled up
+        // guarded by touched: hours in the pending file, and how many writes to each hour are under way
+        private final TreeSet<Long> pending = new TreeSet<>();
+        private final TreeMap<Long, Integer> writing = new TreeMap<>();
+        private boolean checked = false; // guarded by this
+
+        GuildRollups(long guild) {
+            this.guild = guild;
+        }
+
+        // before a write to hour. returns true if the hour is newly pending, i.e. the pending file must be saved.
+        boolean begin(long hour) {
+            synchronized (touched) {
+                writing.merge(hour, 1, Integer::sum);
+                return pending.add(hour);
+            }
+        }
+
+        // after a write to hour (or when an earlier run left it pending): roll it up soon.
+        void touch(long hour) {
+            synchronized (touched) {
+                writing.computeIfPresent(hour, (key, writes) -> writes == 1 ? null : writes - 1);
+                touched.add(hour);
+            }
+        }
+
+        void pendingHours(List<Long> hours) {
+            synchronized (touched) {
+                hours.addAll(pending);
+            }
+        }
+
+        // bring the rollups up to date: check them once, then recompute the touched hours, merged into ranges.
+        synchronized void update() {
+            if (!checked) {
+                ensureRollups(guild);
+                checked = true;
+            }
+            TreeSet<Long> hours;
+            synchronized (touched) {
+                if (touched.isEmpty()) return;
+                hours = new TreeSet<>(touched);
+                touched.clear();
+            }
+            try {
+                long start = hours.first(), end = start;
+                for (long hour : hours) {
+                    if (hour - end > MERGE_GAP) {
+                        recompute(guild, start, end + HOUR);
+                        start = hour;
+                    }
+                    end = hour;
+                }
+                recompute(guild, start, end + HOUR);
+            } catch (RuntimeException e) {
+                // recomputing is idempotent: put the hours back and try them all again
+                synchronized (touched) {
+                    touched.addAll(hours);
+                }
+                throw e;
+            }
+            // an hour touched again, or still being written, may have points the rollup didn't read: it stays pending
+            boolean removed = false;
+            synchronized (touched) {
+                for (long hour : hours) {
+                    if (!touched.contains(hour) && !writing.containsKey(hour)) removed |= pending.remove(hour);
+                }
+            }
+            if (removed) savePending();
+        }
+    }
+
+    /* rebuild the hourly rollups of [from, until) (whole hours) from the raw points, then the daily rollups of every
+     * day they fall in from the hourly ones. both statements go in one request, chunk by chunk. */
+    private void recompute(long guild, long from, long until) {
+        for (long start = from; start < until; start += RECOMPUTE_CHUNK) {
+            long end = Math.min(until, start + RECOMPUTE_CHUNK);
+            query(String.format("SELECT sum(\"isValid\") AS \"count\" INTO r1h_g%d FROM g%d "
+                            + "WHERE time >= %dms AND time < %dms GROUP BY time(1h), channelID, authorID fill(none); "
+                            + "SELECT sum(\"count\") AS \"count\" INTO r1d_g%d FROM r1h_g%d "
+                            + "WHERE time >= %dms AND time < %dms GROUP BY time(1d), channelID, authorID fill(none)",
+                    guild, guild, start, end, guild, guild, floor(start, DAY), ceil(end, DAY)), true);
+        }
+    }
+
+    /* once per guild after startup, under the guild's lock: guilds stored before rollups existed get them built from
+     * their whole history, and hours written after the newest rollup (e.g. before a crash, without a pending file)
+     * are brought up to date. */
+    private void ensureRollups(long guild) {
+        List<QueryResult.Result> results = query(String.format("SELECT last(\"count\") FROM r1h_g%d; "
+                + "SELECT first(\"isValid\") FROM g%d; SELECT last(\"isValid\") FROM g%d", guild, guild, guild), false);
+        long lastRaw = firstTime(results.get(2));
+        if (lastRaw != 0) {
+            long lastRollup = firstTime(results.get(0));
+            long from = lastRollup != 0 ? lastRollup : floor(firstTime(results.get(1)), HOUR);
+            if (lastRollup == 0) log.info("Building rollups for guild " + guild);
+            recompute(guild, from, floor(lastRaw, HOUR) + HOUR);
+        }
+    }
+
+    /* write the pending hours of every guild to a temporary file and move it into place, so a crash never leaves a
+     * torn file; with none pending the file is deleted. not forced to disk: a crash of the host may lose the last
+     * hours, a crash of the process doesn't. */
+    private void savePending() {
+        if (pendingFile == null) return;
+        synchronized (pendingLock) {
+            try {
+                List<Long> guilds = new ArrayList<>(), hours = new ArrayList<>();
+                for (GuildRollups guild : rollups.values()) {
+                    int before = hours.size();
+                    guild.pendingHours(hours);
+                    for (int i = before; i < hours.size(); i++) guilds.add(guild.guild);
+                }
+                if (hours.isEmpty()) {
+                    Files.deleteIfExists(pendingFile);
+                    return;
+                }
+                Path temporary = pendingFile.resolveSibling(pendingFile.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(temporary)))) {
+                    for (int i = 0; i < hours.size(); i++) {
+                        out.writeLong(guilds.get(i));
+                        out.writeLong(hours.get(i));
+                    }
+                }
+                Files.move(temporary, pendingFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.error("Error saving the pending rollup hours to " + pendingFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // take the hours an earlier run left pending over. returns true if there were any.
+    private boolean loadPending() {
+        if (pendingFile == null || !Files.exists(pendingFile)) return false;
+        boolean any = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(pendingFile)))) {
+            while (true) {
+                GuildRollups guild = rollups(in.readLong());
+                long hour = in.readLong();
+                guild.begin(hour);
+                guild.touch(hour);
+                any = true;
+            }
+        } catch (EOFException end) {
+            // the pairs end with the file
+        } catch (IOException e) {
+            log.error("Error reading the pending rollup hours from " + pendingFile + ": " + e.getMessage());
+        }
+        return any;
+    }
+
+    private static long firstTime(QueryResult.Result result) {
+        if (result.getSeries() == null) return 0;
+        return ((Number) result.getSeries().get(0).getValues().get(0).get(0)).longValue();
+    }
+
+    private List<QueryResult.Result> query(String statements, boolean write) {
+        QueryResult result = influxDB.query(new Query(statements, database, write), TimeUnit.MILLISECONDS);
+        if (result.hasError()) throw new IllegalStateException(result.getError());
+        for (QueryResult.Result statement : result.getResults()) {
+            if (statement.hasError()) throw new IllegalStateException(statement.getError());
+        }
+        return result.getResults();
+    }
+
+    @Override
+    public long lastMessageTime(long guildID, long channelID) {
+        QueryResult getLast = influxDB.query(new Query(String.format(
+                "SELECT last(\"isValid\") FROM g%d WHERE channelID = 'c%d'", guildID, channelID)), TimeUnit.MILLISECONDS);
+        if (getLast.getResults().get(0).getSeries() == null) return 0;
+        return ((Number) getLast.getResults().get(0).getSeries().get(0).getValues().get(0).get(0)).longValue();
+    }
+
+    @Override
+    public List<MessageRecord> findAt(long guildID, long channelID, long[] times) {
+        StringJoiner timeFilter = new StringJoiner(" OR ", "(", ")");
+        for (long time : times) timeFilter.add("time = " + time + "ms");
+
+        List<MessageRecord> found = new ArrayList<>();
+        List<QueryResult.Series> series = influxDB.query(new Query(String.format(
+                "SELECT \"isValid\", \"authorID\" FROM g%d WHERE channelID = 'c%d' AND %s", guildID, channelID, timeFilter)),
+                TimeUnit.MILLISECONDS).getResults().get(0).getSeries();
+        if (series == null) return found;
+        for (List<Object> stored : series.get(0).getValues()) {
+            found.add(new MessageRecord(((Number) stored.get(0)).longValue(), guildID, channelID,
+                    Long.parseLong(stored.get(2).toString().substring(1)), ((Number) stored.get(1)).intValue()));
+        }
+        return found;
+    }
+
+    @Override
+    public LongLongMap sumByAuthor(long guildID, long channelID, long sinceMillis) {
+        rollups(guildID).update();
+        // String variable used to simplify query String.format(). if channelID is 0, sum the whole guild
+        String queryKey = channelID == 0 ? "" : String.format("channelID = 'c%d' AND ", channelID);
+
+        // everything before the current hour comes from rollups, the current hour from raw points.
+        StringJoiner statements = new StringJoiner("; ");
+        for (Range range : plan(Math.max(sinceMillis, DatabaseHandler.DISCORD_EPOCH), Long.MAX_VALUE, true)) {
+            statements.add(String.format("SELECT sum(\"%s\") FROM %sg%d WHERE %s%s GROUP BY authorID",
+                    range.field(), range.prefix, guildID, queryKey, range.where()));
+        }
+
+        LongLongMap counts = new LongLongMap();
+        for (QueryResult.Result result : query(statements.toString(), false)) {
+            if (result.getSeries() == null) continue;
+            // influxDB schema formally expects a generic Object. sums arrive as Doubles.
+            result.getSeries().forEach(s -> counts.addTo(Long.parseLong(s.getTags().get("authorID").substring(1)),
+                    ((Number) s.getValues().get(0).get(1)).longValue()));
+        }
+        return counts;
+    }
+
+    @Override
+    public void loadBuckets(long guildID, long fromMillis, long untilMillis, long bucketMillis, BucketConsumer consumer) {
+        rollups(guildID).update();
+        StringJoiner statements = new StringJoiner("; ");
+        for (Range range : plan(fromMillis, untilMillis, bucketMillis % DAY == 0)) {
+            statements.add(String.format(
+                    "SELECT sum(\"%s\") FROM %sg%d WHERE %s GROUP BY time(%dms), channelID, authorID fill(none)",
+                    range.field(), range.prefix, guildID, range.where(), bucketMillis));
+        }
+        for (QueryResult.Result result : query(statements.toString(), false)) {
+            if (result.getSeries() == null) continue; // guild has no history in this range
+            for (QueryResult.Series series : result.getSeries()) {
+                // tag values carry the "c"/"a" prefixes written by point()
+                long channelID = Long.parseLong(series.getTags().get("channelID").substring(1)),
+                        authorID = Long.parseLong(series.getTags().get("authorID").substring(1));
+                for (List<Object> row : series.getValues()) {
+                    consumer.accept(channelID, authorID, ((Number) row.get(0)).longValue(), ((Number) row.get(1)).longValue());
+                }
+            }
+        }
+    }
+
+    /* split [from, until) into raw edges, hourly rollups for partial days and daily rollups (when useDays is set) for
+     * whole days. until = Long.MAX_VALUE reads up to now, with the current hour from raw points. */
+    static List<Range> plan(long from, long until, boolean useDays) {
+        List<Range> ranges = new ArrayList<>(5);
+        long firstHour = ceil(from, HOUR),
+                lastHour = floor(until == Long.MAX_VALUE ? System.currentTimeMillis() : until, HOUR);
+        if (firstHour >= lastHour) {
+            ranges.add(new Range("", from, until));
+            return ranges;
+        }
+        if (from < firstHour) ranges.add(new Range("", from, firstHour));
+        long firstDay = ceil(firstHour, DAY), lastDay = floor(lastHour, DAY);
+        if (useDays && firstDay < lastDay) {
+            if (firstHour < firstDay) ranges.add(new Range("r1h_", firstHour, firstDay));
+            ranges.add(new Range("r1d_", firstDay, lastDay));
+            if (lastDay < lastHour) ranges.add(new Range("r1h_", lastDay, lastHour));
+        } else {
+            ranges.add(new Range("r1h_", firstHour, lastHour));
+        }
+        if (lastHour < until) ranges.add(new Range("", lastHour, until));
+        return ranges;
+    }
+
+    static final class Range {
+        final String prefix; // "" for raw points, "r1h_" or "r1d_" for rollups
+        final long from, until;
+
+        Range(String prefix, long from, long until) {
+            this.prefix = prefix;
+            this.from = from;
+            this.until = until;
+        }
+
+        String field() {
+            return prefix.isEmpty() ? "isValid" : "count";
+        }
+
+        String where() {
+            return until == Long.MAX_VALUE ? String.format("time >= %dms", from)
+                    : String.format("time >= %dms AND time < %dms", from, until);
+        }
+    }
+
+    private static long floor(long time, long unit) {
+        return time - Math.floorMod(time, unit);
+    }
+
+    private static long ceil(long time, long unit) {
+        long floor = floor(time, unit);
+        return floor == time ? time : floor + unit;
+    }
+
+    // roll up what is still touched before closing, so no hour is left with a stale rollup.
+    @Override
+    public void close() {
+        rollupExecutor.shutdown();
+        try {
+            rollupExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            updateRollups();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        influxDB.close();
+    }
+}
@@ -0,0 +1,149 @@
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/* one computed leaderboard: message counts by author at the time of the request, ranked on demand. nothing is sorted
+ * up front. a page of pageSize ranks is selected with a bounded heap of the best (page + 1) * pageSize authors, and
+ * labels are only resolved for the authors on it, so a guild with 100,000 authors costs one pass over the counts and
+ * a few label lookups per page. rendered pages are kept, so pages requested again (by identical requests sharing this
+ * leaderboard, or by paging back) are free. authors with equal counts are ranked by ID, so ranks are stable. */
+class Leaderboard {
+    // Discord rejects messages longer than this
+    static final int MESSAGE_LIMIT = 2000;
+
+    private final long[] authors, counts;
+    private final Function<long[], Mono<LongObjectMap<String>>> labels;
+    // (pageSize << 32 | page) -> the page's messages
+    private final Map<Long, Mono<List<String>>> pages = new ConcurrentHashMap<>();
+
+    // labels resolves the labels for the authors of a page.
+    Leaderboard(LongLongMap authorCounts, Function<long[], Mono<LongObjectMap<String>>> labels) {
+        this.authors = new long[authorCounts.size()];
+        this.counts = new long[authorCounts.size()];
+        this.labels = labels;
+        int[] next = {0};
+        authorCounts.forEach((authorID, count) -> {
+            authors[next[0]] = authorID;
+            counts[next[0]++] = count;
+        });
+    }
+
+    // number of authors ranked
+    int size() {
+        return authors.length;
+    }
+
+    int pageCount(int pageSize) {
+        return Math.max(1, (authors.length + pageSize - 1) / pageSize);
+    }
+
+    // whether author a ranks below author b
+    private boolean below(int a, int b) {
+        return counts[a] < counts[b] || (counts[a] == counts[b] && authors[a] > authors[b]);
+    }
+
+    /* positions (into authors and counts) of the best limit authors, best first. a min-heap of at most limit
+     * positions keeps the best seen so far, with the lowest ranked on top to be replaced; it is then emptied from
+     * the lowest up. */
+    int[] top(int limit) {
+        int[] heap = new int[Math.min(limit, authors.length)];
+        int size = 0;
+        for (int i = 0; i < authors.length; i++) {
+            if (size < heap.length) {
+                heap[size] = i;
+                siftUp(heap, size++);
+            } else if (heap.length > 0 && below(heap[0], i)) {
+                heap[0] = i;
+                siftDown(heap, 0, size);
+            }
+        }
+        // move the lowest ranked to the end, one at a time
+        for (int end = size - 1; end > 0; end--) {
+            int lowest = heap[0];
+            heap[0] = heap[end];
+            heap[end] = lowest;
+            siftDown(heap, 0, end);
+        }
+        return heap;
+    }
+
+    private void siftUp(int[] heap, int child) {
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!below(heap[child], heap[parent])) return;
+            int swap = heap[parent];
+            heap[parent] = heap[child];
+            heap[child] = swap;
+            child = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int parent, int size) {
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= size) return;
+            if (child + 1 < size && below(heap[child + 1], heap[child])) child++;
+            if (!below(heap[child], heap[parent])) return;
+            int swap = heap[parent];
+            heap[parent] = heap[child];
+            heap[child] = swap;
+            parent = child;
+        }
+    }
+
+    /* the messages for one page: a line per rank, with a page footer when there is more than one page, split at line
+     * breaks into messages of at most MESSAGE_LIMIT characters. page 0 of an empty leaderboard is an empty string. */
+    Mono<List<String>> page(int page, int pageSize) {
+        return pages.computeIfAbsent((long) pageSize << 32 | page, key -> Mono.defer(() -> {
+            int[] top = top((page + 1) * pageSize);
+            int first = Math.min(page * pageSize, top.length);
+            long[] pageAuthors = new long[top.length - first];
+            for (int i = first; i < top.length; i++) pageAuthors[i - first] = authors[top[i]];
+
+            return labels.apply(pageAuthors).map(resolved -> {
+                List<String> lines = new ArrayList<>(pageAuthors.length + 1);
+                for (int i = first; i < top.length; i++) {
+                    String label = MemberLabelCache.label(resolved.get(authors[top[i]]), authors[top[i]]);
+                    lines.add((i + 1) + ". " + label + " sent **" + counts[top[i]] + "** messages.");
+                }
+                int pageCount = pageCount(pageSize);
+                if (pageCount > 1) lines.add("*Page " + (page + 1) + " of " + pageCount + "*");
+                return split(lines);
+            });
+        }).doOnError(error -> pages.remove((long) pageSize << 32 | page)).cache());
+    }
+
+    // join lines into as few messages as fit, breaking between lines (and inside a line only if it alone is too long).
+    static List<String> split(List<String> lines) {
+        List<String> messages = new ArrayList<>(1);
+        StringBuilder message = new StringBuilder(Math.min(MESSAGE_LIMIT, lines.size() * 48));
+        for (String line : lines) {
+            if (message.length() > 0 && message.length() + 1 + line.length() > MESSAGE_LIMIT) {
+                messages.add(message.toString());
+                message.setLength(0);
+            }
+            if (message.length() > 0) message.append('\n');
+            for (; line.length() > MESSAGE_LIMIT; line = line.substring(MESSAGE_LIMIT)) {
+                messages.add(line.substring(0, MESSAGE_LIMIT));
+            }
+            message.append(line);
+        }
+        messages.add(message.toString());
+        return messages;
+    }
+
+    /* an author's rank and count without ranking anyone else: one pass counts the authors ahead of them. returns
+     * {rank, count}, or null if the author has no messages on this leaderboard. */
+    long[] rankOf(long authorID) {
+        int position = -1;
+        for (int i = 0; i < authors.length && position < 0; i++) if (authors[i] == authorID) position = i;
+        if (position < 0) return null;
+        long ahead = 0;
+        for (int i = 0; i < authors.length; i++) if (below(position, i)) ahead++;
+        return new long[]{ahead + 1, counts[position]};
+    }
+}
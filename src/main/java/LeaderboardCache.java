@@ -0,0 +1,111 @@
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/* computed leaderboards keyed by (guild, channel or 0 for the whole guild, interval, tags). identical requests that
+ * arrive while one is being computed join it instead of starting their own (single flight), and a finished
+ * leaderboard is served for ttlMillis. every guild has a version that is bumped by changes a leaderboard can't
+ * tolerate being stale on (deletes, backfilled history, an index load); entries computed under an older version are
+ * never served. new live messages don't bump it, so a busy channel still gets its burst of requests from one
+ * computation, at most ttlMillis behind. */
+class LeaderboardCache<T> {
+    private final long ttlMillis;
+    private final Map<Key, Cached> entries;
+    private final ConcurrentHashMap<Long, Long> versions = new ConcurrentHashMap<>();
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder(); // requests that joined a computation already running
+
+    LeaderboardCache(long ttlMillis, int maxSize) {
+        this.ttlMillis = ttlMillis;
+        // access-ordered LinkedHashMap gives LRU eviction; guarded by synchronizing on the map itself.
+        this.entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class Key {
+        final long guildID, channelID;
+        final String interval;
+        final boolean tags;
+
+        Key(long guildID, long channelID, String interval, boolean tags) {
+            this.guildID = guildID;
+            this.channelID = channelID;
+            this.interval = interval;
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return key.guildID == guildID && key.channelID == channelID && key.tags == tags
+                    && key.interval.equals(interval);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(guildID * 31 + channelID) * 31 + interval.hashCode() * 2 + (tags ? 1 : 0);
+        }
+    }
+
+    private final class Cached {
+        final long version;
+        final Mono<T> result;
+        volatile long expiresAt = Long.MAX_VALUE; // set when the computation finishes
+
+        Cached(Key key, long version, Mono<T> compute) {
+            this.version = version;
+            this.result = compute
+                    .doOnSuccess(value -> expiresAt = System.currentTimeMillis() + ttlMillis)
+                    // a failed computation is not cached; the next request starts over.
+                    .doOnError(error -> remove(key, this))
+                    .cache();
+        }
+    }
+
+    /* the leaderboard for a request: the cached one if it is still current, the one being computed for an identical
+     * request, or a new computation from compute, shared with every identical request that arrives before it ends. */
+    Mono<T> get(long guildID, long channelID, String interval, boolean tags, Supplier<Mono<T>> compute) {
+        Key key = new Key(guildID, channelID, interval, tags);
+        long version = versions.getOrDefault(guildID, 0L);
+        Cached entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.version == version && entry.expiresAt > System.currentTimeMillis()) {
+                if (entry.expiresAt == Long.MAX_VALUE) coalesced.increment();
+                else hits.increment();
+                return entry.result;
+            }
+            entry = new Cached(key, version, Mono.defer(compute));
+            entries.put(key, entry);
+        }
+        misses.increment();
+        return entry.result;
+    }
+
+    // stop serving every leaderboard of a guild cached or being computed so far; later requests compute new ones.
+    void invalidate(long guildID) {
+        versions.merge(guildID, 1L, Long::sum);
+    }
+
+    private void remove(Key key, Cached entry) {
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
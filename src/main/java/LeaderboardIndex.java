@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/* in-memory counting index used to answer &kat requests without querying InfluxDB. for every guild, channel, and author
+ * the index keeps an all-time total, one bucket per day for the full history, and one bucket per hour for a recent window
+ * (hourlyRetention). it is kept current by addMessage, deleteMessage and backfillChannel, and rebuilt from the database
+ * once per guild on startup. until a guild has been loaded, requests for it fall back to InfluxDB, and while it is being
+ * loaded live updates are held back, so none is counted twice or lost. */
+class LeaderboardIndex {
+    static final long HOUR = 3_600_000L;
+    static final long DAY = 86_400_000L;
+
+    private final long hourlyRetention;
+    private final LongObjectMap<GuildCounts> guilds = new LongObjectMap<>();
+
+    LeaderboardIndex(long hourlyRetentionMillis) {
+        this.hourlyRetention = hourlyRetentionMillis;
+    }
+
+    // counts for every channel in one guild. all access is synchronized on the GuildCounts instance.
+    private static class GuildCounts {
+        LongObjectMap<ChannelCounts> channels = new LongObjectMap<>();
+        volatile boolean loaded = false;
+        // live updates (channelID, authorID, timeMillis, delta) held back while the guild is loaded, or null
+        List<long[]> held = null;
+    }
+
+    /* author -> count maps for a single channel. day and hour buckets are keyed by whole days/hours since the epoch;
+     * Discord history starts in 2015, so the reserved 0 key never collides with a real bucket. */
+    private static class ChannelCounts {
+        final LongLongMap total = new LongLongMap();
+        final LongObjectMap<LongLongMap> days = new LongObjectMap<>();
+        final LongObjectMap<LongLongMap> hours = new LongObjectMap<>();
+        long prunedBefore = 0; // hour bucket below which hourly data has been dropped
+    }
+
+    private GuildCounts guild(long guildID) {
+        synchronized (guilds) {
+            return guilds.computeIfAbsent(guildID, id -> new GuildCounts());
+        }
+    }
+
+    private long hourlyCutoff() {
+        return Math.floorDiv(System.currentTimeMillis() - hourlyRetention, HOUR);
+    }
+
+    /* record delta messages (1 for a new valid message, -1 for a deletion, 0 for an empty message so the author is
+     * still listed) at timeMillis. */
+    void add(long guildID, long channelID, long authorID, long timeMillis, long delta) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            if (guild.held != null) {
+                guild.held.add(new long[]{channelID, authorID, timeMillis, delta});
+                return;
+            }
+            apply(guild, channelID, authorID, timeMillis, delta);
+        }
+    }
+
+    // callers hold the guild's lock.
+    private void apply(GuildCounts guild, long channelID, long authorID, long timeMillis, long delta) {
+        long day = Math.floorDiv(timeMillis, DAY), hour = Math.floorDiv(timeMillis, HOUR), cutoff = hourlyCutoff();
+        ChannelCounts channel = guild.channels.computeIfAbsent(channelID, id -> new ChannelCounts());
+        channel.total.addTo(authorID, delta);
+        channel.days.computeIfAbsent(day, d -> new LongLongMap()).addTo(authorID, delta);
+        if (hour >= cutoff) {
+            channel.hours.computeIfAbsent(hour, h -> new LongLongMap()).addTo(authorID, delta);
+            // drop expired hour buckets at most once per hour of wall time
+            if (channel.prunedBefore < cutoff) {
+                channel.hours.removeKeysIf(h -> h < cutoff);
+                channel.prunedBefore = cutoff;
+            }
+        }
+    }
+
+    /* rebuilding a guild from the store, in steps: holdUpdates, then per attempt a write barrier, resetCounts, the
+     * loadDay/loadHour calls for everything before the bound, and finishLoad. live updates are held back from the
+     * first step, so the counts read from the store and the live ones are told apart by when they were held. */
+    void holdUpdates(long guildID) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            if (guild.held == null) guild.held = new ArrayList<>();
+        }
+    }
+
+    /* drop the guild's counts before (re)reading it. call once the record of every held update is in the store (or
+     * was dropped): the returned count is how many of them the store read covers. */
+    int resetCounts(long guildID) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            guild.channels = new LongObjectMap<>();
+            return guild.held.size();
+        }
+    }
+
+    /* apply the held updates the store read didn't cover and mark the guild loaded: those at or after boundMillis,
+     * which the load never reads, and those held after resetCounts. returns false, leaving the guild loading, if one
+     * of the latter falls before the bound: the store may or may not have had it when it was read, so the caller
+     * reads the guild again. */
+    boolean finishLoad(long guildID, long boundMillis, int written) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            List<long[]> held = guild.held;
+            for (int i = written; i < held.size(); i++) {
+                if (held.get(i)[2] < boundMillis) return false;
+            }
+            for (int i = 0; i < held.size(); i++) {
+                long[] update = held.get(i);
+                if (i >= written || update[2] >= boundMillis) apply(guild, update[0], update[1], update[2], update[3]);
+            }
+            guild.held = null;
+            guild.loaded = true;
+            return true;
+        }
+    }
+
+    // give up loading the guild: requests keep falling back to the store, and live updates are applied again.
+    void abandonLoad(long guildID) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            guild.channels = new LongObjectMap<>();
+            guild.held = null;
+        }
+    }
+
+    // bulk-load helpers used while rebuilding a guild from the database: a daily bucket also feeds the all-time total.
+    void loadDay(long guildID, long channelID, long authorID, long dayStartMillis, long count) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            ChannelCounts channel = guild.channels.computeIfAbsent(channelID, id -> new ChannelCounts());
+            channel.total.addTo(authorID, count);
+            channel.days.computeIfAbsent(Math.floorDiv(dayStartMillis, DAY), d -> new LongLongMap()).addTo(authorID, count);
+        }
+    }
+
+    void loadHour(long guildID, long channelID, long authorID, long hourStartMillis, long count) {
+        long hour = Math.floorDiv(hourStartMillis, HOUR);
+        if (hour < hourlyCutoff()) return;
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            guild.channels.computeIfAbsent(channelID, id -> new ChannelCounts())
+                    .hours.computeIfAbsent(hour, h -> new LongLongMap()).addTo(authorID, count);
+        }
+    }
+
+    void markLoaded(long guildID) {
+        guild(guildID).loaded = true;
+    }
+
+    boolean isLoaded(long guildID) {
+        return guild(guildID).loaded;
+    }
+
+    /* sum of messages per author at or after sinceMillis (0 for full history). channelID 0 sums every channel in the
+     * guild. whole days come from the daily buckets; the partial first day comes from hourly buckets while they are
+     * retained (so the window start is accurate to the hour), otherwise that whole day is included. */
+    LongLongMap countByAuthor(long guildID, long channelID, long sinceMillis) {
+        GuildCounts guild = guild(guildID);
+        LongLongMap result = new LongLongMap();
+        synchronized (guild) {
+            if (channelID != 0) {
+                ChannelCounts channel = guild.channels.get(channelID);
+                if (channel != null) sumChannel(channel, sinceMillis, result);
+            } else {
+                guild.channels.forEach((id, channel) -> sumChannel(channel, sinceMillis, result));
+            }
+        }
+        return result;
+    }
+
+    /* feed every count at or after sinceMillis (0 for full history) to report in one pass, for one channel or, with
+     * channelID 0, every channel in the guild. hourly buckets are used while they are retained. when the window starts
+     * before them, the older part comes from daily buckets, from the day containing sinceMillis (as countByAuthor
+     * counts it) up to the first whole day of hourly buckets. */
+    void scan(long guildID, long channelID, long sinceMillis, ActivityReport report) {
+        GuildCounts guild = guild(guildID);
+        synchronized (guild) {
+            if (channelID != 0) {
+                ChannelCounts channel = guild.channels.get(channelID);
+                if (channel != null) scanChannel(channelID, channel, sinceMillis, report);
+            } else {
+                guild.channels.forEach((id, channel) -> scanChannel(id, channel, sinceMillis, report));
+            }
+        }
+    }
+
+    private void scanChannel(long channelID, ChannelCounts channel, long sinceMillis, ActivityReport report) {
+        long firstHour = Math.floorDiv(sinceMillis, HOUR), cutoff = hourlyCutoff();
+        if (firstHour < cutoff) {
+            long firstDay = Math.floorDiv(sinceMillis, DAY), hourlyDay = Math.floorDiv(cutoff + 23, DAY / HOUR);
+            channel.days.forEach((day, counts) -> {
+                if (day >= firstDay && day < hourlyDay) {
+                    counts.forEach((authorID, count) -> report.acceptDay(channelID, authorID, day * DAY, count));
+                }
+            });
+            firstHour = hourlyDay * (DAY / HOUR);
+        }
+        long from = firstHour;
+        channel.hours.forEach((hour, counts) -> {
+            if (hour >= from) counts.forEach((authorID, count) -> report.accept(channelID, authorID, hour * HOUR, count));
+        });
+    }
+
+    private void sumChannel(ChannelCounts channel, long sinceMillis, LongLongMap result) {
+        if (sinceMillis <= 0) {
+            result.addAll(channel.total);
+            return;
+        }
+        long firstHour = Math.floorDiv(sinceMillis, HOUR);
+        long firstFullDay = Math.floorDiv(sinceMillis + DAY - 1, DAY);
+        long partialDayEnd = firstFullDay * (DAY / HOUR);
+        channel.days.forEach((day, counts) -> {
+            if (day >= firstFullDay) result.addAll(counts);
+        });
+        if (firstHour >= partialDayEnd) return; // window starts exactly on a day boundary
+        if (firstHour >= hourlyCutoff()) {
+            channel.hours.forEach((hour, counts) -> {
+                if (hour >= firstHour && hour < partialDayEnd) result.addAll(counts);
+            });
+        } else {
+            LongLongMap partialDay = channel.days.get(firstFullDay - 1);
+            if (partialDay != null) result.addAll(partialDay);
+        }
+    }
+}
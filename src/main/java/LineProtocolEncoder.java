@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* encodes message records as InfluxDB line protocol straight into a reusable byte buffer, one line per record:
+ *
+ *     g<guild>,authorID=a<author>,channelID=c<channel> isValid=<valid>i <time in ns>
+ *
+ * which is exactly what Point.lineProtocol() produces for InfluxMessageStore.point(record) (tags sorted by key, an
+ * integer field, nanosecond time), without building the Point, its tag and field maps, or any strings. numbers are
+ * written digit by digit and the constant parts are copied from pre-built byte arrays, so encoding allocates nothing
+ * once the buffer has grown to the batch size. not thread safe: every writer thread keeps its own encoder. */
+final class LineProtocolEncoder {
+    private static final byte[] MEASUREMENT = ascii("g");
+    private static final byte[] AUTHOR_TAG = ascii(",authorID=a");
+    private static final byte[] CHANNEL_TAG = ascii(",channelID=c");
+    private static final byte[] VALID_FIELD = ascii(" isValid=");
+    private static final byte[] INTEGER_SUFFIX = ascii("i ");
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    // longest line: three 20-character longs, a 1-character valid, a 20-character time and the constant parts
+    private static final int MAX_LINE = 128;
+
+    private byte[] buffer;
+    private int length = 0;
+
+    LineProtocolEncoder(int initialCapacity) {
+        this.buffer = new byte[Math.max(MAX_LINE, initialCapacity)];
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    // append one record's line, newline included.
+    void encode(MessageRecord record) {
+        if (buffer.length - length < MAX_LINE) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        put(MEASUREMENT);
+        putLong(record.guild);
+        put(AUTHOR_TAG);
+        putLong(record.author);
+        put(CHANNEL_TAG);
+        putLong(record.channel);
+        put(VALID_FIELD);
+        putLong(record.valid);
+        put(INTEGER_SUFFIX);
+        putLong(record.time * NANOS_PER_MILLI);
+        buffer[length++] = '\n';
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    // decimal digits of value, as Long.toString writes them.
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            put(ascii(Long.toString(value))); // can't be negated; never a Snowflake or a time
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) digits++;
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+}
@@ -0,0 +1,150 @@
+/* open-addressing hash map from primitive long keys to long values. Snowflakes and time bucket numbers are never 0,
+ * so a 0 key marks an empty slot. keeping keys and values in flat long[] arrays avoids a boxed Long and a map entry per
+ * author, which matters once a guild has millions of authors. not thread-safe: callers hold their own lock. */
+class LongLongMap implements LongLongTable {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    LongLongMap() {
+        this(8);
+    }
+
+    LongLongMap(int expectedSize) {
+        int capacity = 8;
+        while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // spread Snowflake bits (mostly timestamp in the high bits) across the table
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int i = mix(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(long key) {
+        return keys[slot(key)] != 0;
+    }
+
+    // returns the value stored for key, or 0 if the key is absent.
+    public long get(long key) {
+        int i = slot(key);
+        return keys[i] == 0 ? 0 : values[i];
+    }
+
+    public void put(long key, long value) {
+        int i = slot(key);
+        if (keys[i] == 0) {
+            keys[i] = key;
+            size++;
+            values[i] = value;
+            if (size > keys.length * LOAD_FACTOR) resize(keys.length << 1);
+        } else {
+            values[i] = value;
+        }
+    }
+
+    // adds delta to the value for key (inserting it at 0 if absent) and returns the new value.
+    long addTo(long key, long delta) {
+        int i = slot(key);
+        if (keys[i] == 0) {
+            keys[i] = key;
+            values[i] = delta;
+            if (++size > keys.length * LOAD_FACTOR) resize(keys.length << 1);
+            return delta;
+        }
+        return values[i] += delta;
+    }
+
+    // removes key and returns its value, or 0 if it was absent. uses backward-shift deletion so no tombstones build up.
+    public long remove(long key) {
+        int i = slot(key);
+        if (keys[i] == 0) return 0;
+        long removed = values[i];
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) break;
+            int home = mix(keys[j]) & mask;
+            // leave entries whose home slot lies cyclically in (i, j]; they are still reachable.
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+        }
+        keys[i] = 0;
+        values[i] = 0;
+        size--;
+        return removed;
+    }
+
+    // rehashes the entries the predicate doesn't match into fresh arrays of the same size.
+    public long removeIf(EntryPredicate predicate) {
+        long[] oldKeys = keys, oldValues = values;
+        keys = new long[oldKeys.length];
+        values = new long[oldValues.length];
+        int before = size;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && !predicate.test(oldKeys[i], oldValues[i])) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+        return before - size;
+    }
+
+    // sums every entry of other into this map.
+    void addAll(LongLongMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0) addTo(other.keys[i], other.values[i]);
+        }
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    void clear() {
+        java.util.Arrays.fill(keys, 0);
+        java.util.Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys, oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
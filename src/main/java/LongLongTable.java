@@ -0,0 +1,33 @@
+/* primitive long -> long table. implemented on the heap by LongLongMap and off-heap, in a memory-mapped file, by
+ * MappedLongLongTable. 0 is reserved as the empty key and get() returns 0 for absent keys. not thread-safe. */
+interface LongLongTable {
+    long get(long key);
+
+    void put(long key, long value);
+
+    int size();
+
+    // removes key and returns its value, or 0 if it was absent.
+    long remove(long key);
+
+    // removes every entry the predicate matches and returns how many were removed.
+    long removeIf(EntryPredicate predicate);
+
+    // visits every entry, in no particular order.
+    void forEach(EntryConsumer consumer);
+
+    // write any pending changes to durable storage. heap tables have nothing to do.
+    default void flush() {
+    }
+
+    default void close() {
+    }
+
+    interface EntryPredicate {
+        boolean test(long key, long value);
+    }
+
+    interface EntryConsumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+
+/* open-addressing hash map from primitive long keys to objects, the companion of LongLongMap for nested indexes
+ * (guild -> channel -> time bucket). 0 is reserved as the empty key. not thread-safe: callers hold their own lock. */
+class LongObjectMap<V> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    LongObjectMap() {
+        this(8);
+    }
+
+    LongObjectMap(int expectedSize) {
+        int capacity = 8;
+        while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int i = mix(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        return (V) values[slot(key)];
+    }
+
+    void put(long key, V value) {
+        int i = slot(key);
+        if (keys[i] == 0) {
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length * LOAD_FACTOR) resize(keys.length << 1);
+        } else {
+            values[i] = value;
+        }
+    }
+
+    V computeIfAbsent(long key, LongFunction<V> factory) {
+        V value = get(key);
+        if (value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = slot(key);
+        if (keys[i] == 0) return null;
+        V removed = (V) values[i];
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) break;
+            int home = mix(keys[j]) & mask;
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+        }
+        keys[i] = 0;
+        values[i] = null;
+        size--;
+        return removed;
+    }
+
+    // removes every entry whose key matches the predicate. returns the number of entries removed.
+    int removeKeysIf(LongPredicate predicate) {
+        long[] matched = new long[size];
+        int count = 0;
+        for (long key : keys) {
+            if (key != 0 && predicate.test(key)) matched[count++] = key;
+        }
+        for (int i = 0; i < count; i++) remove(matched[i]);
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(EntryConsumer<V> consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) consumer.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+}
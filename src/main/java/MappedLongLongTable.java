@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/* open-addressing long -> long table kept in a memory-mapped file, so it lives off the Java heap and survives
+ * restarts. the file is a 4 KiB header (magic, slot count, size) followed by 16-byte (key, value) slots, mapped in
+ * segments of at most 1 GiB. removals shift the rest of the probe run back, so no tombstones build up.
+ * growing past the load factor and compacting after removeIf copy the survivors into a new file sized for them, which
+ * then replaces the original. the copy can run without the caller's lock: freeze() stops changes to the file and
+ * keeps them on the heap, copy() builds and forces the new file, and swap() applies the heap changes to it and moves
+ * it into place. changes made while frozen are lost if the process dies before the swap.
+ * 0 keys mark empty slots. not thread-safe: callers hold their own lock, except around copy(). */
+class MappedLongLongTable implements LongLongTable {
+    private static final long MAGIC = 0x43484b544c4c3031L; // "CHKTLL01"
+    private static final int HEADER_SIZE = 4096;
+    private static final int SLOT_SIZE = 16;
+    private static final int SEGMENT_SHIFT = 26; // 2^26 slots of 16 bytes = 1 GiB per mapping
+    private static final double LOAD_FACTOR = 0.7;
+    // callers that never freeze and copy get an inline rebuild here, before probe runs get too long
+    private static final double MAX_LOAD_FACTOR = 0.9;
+    private static final long MIN_CAPACITY = 1024;
+    private static final EntryPredicate KEEP_ALL = (key, value) -> false;
+
+    private final Path path;
+    private FileChannel file;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long mask;
+    private long size;
+    // while frozen: entries put (key -> value) and frozen entries removed (key -> 1) since freeze(), otherwise null
+    private LongLongMap added, removed;
+
+    MappedLongLongTable(Path path, long initialCapacity) throws IOException {
+        this.path = path;
+        if (Files.exists(path) && Files.size(path) > HEADER_SIZE) {
+            open(path);
+            if (header.getLong(0) != MAGIC)
+                throw new IOException(path + " is not a ChatKat table file");
+        } else {
+            create(path, capacityFor(initialCapacity));
+        }
+    }
+
+    // a rebuilt table, copied from a frozen one, waiting to be swapped in.
+    static final class Copy {
+        private final MappedLongLongTable table;
+        final long dropped;
+
+        private Copy(MappedLongLongTable table, long dropped) {
+            this.table = table;
+            this.dropped = dropped;
+        }
+    }
+
+    // an empty table in a new file
+    private MappedLongLongTable(Path path) {
+        this.path = path;
+    }
+
+    private void create(Path target, long slots) throws IOException {
+        file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        map(slots);
+        header.putLong(0, MAGIC);
+        header.putLong(8, slots);
+        header.putLong(16, 0);
+        size = 0;
+    }
+
+    private void open(Path source) throws IOException {
+        file = FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        map(header.getLong(8));
+        size = header.getLong(16);
+    }
+
+    // map the header and the slot area. fresh file regions read as zero, i.e. as empty slots.
+    private void map(long slots) throws IOException {
+        capacity = slots;
+        mask = slots - 1;
+        header = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        long segmentSlots = Math.min(slots, 1L << SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[(int) ((slots + segmentSlots - 1) / segmentSlots)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = file.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * segmentSlots * SLOT_SIZE, segmentSlots * SLOT_SIZE);
+        }
+    }
+
+    // the smallest table that holds entries within the load factor.
+    private static long capacityFor(long entries) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < entries) capacity <<= 1;
+        return capacity;
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private long keyAt(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) ((slot & ((1L << SEGMENT_SHIFT) - 1)) * SLOT_SIZE));
+    }
+
+    private long valueAt(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) ((slot & ((1L << SEGMENT_SHIFT) - 1)) * SLOT_SIZE + 8));
+    }
+
+    private void write(long slot, long key, long value) {
+        MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+        int offset = (int) ((slot & ((1L << SEGMENT_SHIFT) - 1)) * SLOT_SIZE);
+        segment.putLong(offset + 8, value);
+        segment.putLong(offset, key);
+    }
+
+    private long slot(long key) {
+        long i = mix(key) & mask;
+        long current;
+        while ((current = keyAt(i)) != 0 && current != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    // the entry in the file, ignoring changes kept on the heap while frozen.
+    private long fileGet(long key) {
+        long i = slot(key);
+        return keyAt(i) == 0 ? 0 : valueAt(i);
+    }
+
+    @Override
+    public long get(long key) {
+        if (added == null) return fileGet(key);
+        long value = added.get(key);
+        if (value != 0 || removed.get(key) != 0) return value;
+        return fileGet(key);
+    }
+
+    @Override
+    public void put(long key, long value) {
+        if (added != null) {
+            if (get(key) == 0) size++;
+            added.put(key, value);
+            removed.remove(key);
+            return;
+        }
+        long i = slot(key);
+        if (keyAt(i) == 0) {
+            write(i, key, value);
+            header.putLong(16, ++size);
+            if (size > capacity * MAX_LOAD_FACTOR) removeIf(KEEP_ALL);
+        } else {
+            write(i, key, value);
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    // backward-shift deletion, as in LongLongMap: later entries of the probe run move up into the freed slot.
+    @Override
+    public long remove(long key) {
+        if (added != null) {
+            long value = get(key);
+            if (value == 0) return 0;
+            added.remove(key);
+            if (fileGet(key) != 0) removed.put(key, 1);
+            size--;
+            return value;
+        }
+        long i = slot(key);
+        if (keyAt(i) == 0) return 0;
+        long removedValue = valueAt(i);
+        long j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long next = keyAt(j);
+            if (next == 0) break;
+            long home = mix(next) & mask;
+            // leave entries whose home slot lies cyclically in (i, j]; they are still reachable.
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+            write(i, next, valueAt(j));
+            i = j;
+        }
+        write(i, 0, 0);
+        header.putLong(16, --size);
+        return removedValue;
+    }
+
+    // removes the matching entries by copying the others into a file sized for them, all on the caller's thread.
+    @Override
+    public long removeIf(EntryPredicate predicate) {
+        freeze();
+        Copy copy = copy(predicate);
+        if (copy == null) {
+            thaw();
+            return 0;
+        }
+        return swap(copy, predicate);
+    }
+
+    // true once the table should be rebuilt into a larger file.
+    boolean overloaded() {
+        return size > capacity * LOAD_FACTOR;
+    }
+
+    boolean frozen() {
+        return added != null;
+    }
+
+    // stop changing the file: until swap() or thaw(), changes are kept on the heap and copy() may read the file.
+    void freeze() {
+        if (added != null) return;
+        added = new LongLongMap();
+        removed = new LongLongMap();
+    }
+
+    /* copy the frozen file's entries that drop doesn't match into a new file, sized for them, and force it to disk.
+     * may run without the caller's lock, since the frozen file doesn't change. returns null if nothing would be
+     * dropped and the table isn't overloaded, i.e. a rebuild would change nothing. */
+    Copy copy(EntryPredicate drop) {
+        long frozenSize = header.getLong(16), kept = countKept(drop);
+        if (kept == frozenSize && frozenSize <= capacity * LOAD_FACTOR) return null;
+        Path rebuilt = path.resolveSibling(path.getFileName() + ".resize");
+        try {
+            MappedLongLongTable table = new MappedLongLongTable(rebuilt);
+            table.create(rebuilt, capacityFor(2 * kept));
+            for (long slot = 0; slot < capacity; slot++) {
+                long key = keyAt(slot), value = valueAt(slot);
+                if (key != 0 && !drop.test(key, value)) table.put(key, value);
+            }
+            table.flush();
+            return new Copy(table, frozenSize - kept);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not rebuild " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private long countKept(EntryPredicate predicate) {
+        long kept = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+            long key = keyAt(slot);
+            if (key != 0 && !predicate.test(key, valueAt(slot))) kept++;
+        }
+        return kept;
+    }
+
+    /* apply the changes made since freeze() to the copy, except entries drop matches, and move the copy over the
+     * original file. nothing is forced here: the copy was forced by copy(). returns how many entries were dropped. */
+    long swap(Copy copy, EntryPredicate drop) {
+        MappedLongLongTable table = copy.table;
+        removed.forEach((key, one) -> table.remove(key));
+        added.forEach((key, value) -> {
+            if (drop.test(key, value)) table.remove(key);
+            else table.put(key, value);
+        });
+        try {
+            file.close();
+            Files.move(table.path, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not replace " + path + ": " + e.getMessage(), e);
+        }
+        file = table.file;
+        header = table.header;
+        segments = table.segments;
+        capacity = table.capacity;
+        mask = table.mask;
+        size = table.size;
+        added = null;
+        removed = null;
+        return copy.dropped;
+    }
+
+    // write the changes made since freeze() to the file itself, e.g. when a copy turned out to be unnecessary.
+    void thaw() {
+        LongLongMap puts = added, removals = removed;
+        if (puts == null) return;
+        size = header.getLong(16);
+        added = null;
+        removed = null;
+        removals.forEach((key, one) -> remove(key));
+        puts.forEach(this::put);
+    }
+
+    @Override
+    public void forEach(EntryConsumer consumer) {
+        for (long slot = 0; slot < capacity; slot++) {
+            long key = keyAt(slot);
+            if (key != 0 && (added == null || (added.get(key) == 0 && removed.get(key) == 0)))
+                consumer.accept(key, valueAt(slot));
+        }
+        if (added != null) added.forEach(consumer);
+    }
+
+    @Override
+    public void flush() {
+        for (MappedByteBuffer segment : segments) segment.force();
+        header.force();
+    }
+
+    @Override
+    public void close() {
+        thaw();
+        flush();
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not close " + path + ": " + e.getMessage(), e);
+        }
+    }
+}
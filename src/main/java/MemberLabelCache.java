@@ -0,0 +1,92 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/* leaderboard labels (guild display name, or username for former members) keyed by (guild, user). entries expire
+ * after ttlMillis, and once maxSize is reached the least recently used entry is evicted. the cache is filled from
+ * gateway member events and bulk member requests, so a warm leaderboard needs no REST calls at all. */
+class MemberLabelCache {
+    private final long ttlMillis;
+    private final Map<Key, Label> labels;
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    MemberLabelCache(long ttlMillis, int maxSize) {
+        this.ttlMillis = ttlMillis;
+        // access-ordered LinkedHashMap gives LRU eviction; guarded by synchronizing on the map itself.
+        this.labels = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Label> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class Key {
+        final long guildID, userID;
+
+        Key(long guildID, long userID) {
+            this.guildID = guildID;
+            this.userID = userID;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).guildID == guildID && ((Key) other).userID == userID;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(guildID * 31 + userID);
+        }
+    }
+
+    private static final class Label {
+        final String text;
+        final long expiresAt;
+
+        Label(String text, long expiresAt) {
+            this.text = text;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // returns the cached label, or null if it is missing or expired.
+    String get(long guildID, long userID) {
+        Key key = new Key(guildID, userID);
+        synchronized (labels) {
+            Label label = labels.get(key);
+            if (label != null && label.expiresAt > System.currentTimeMillis()) {
+                hits.increment();
+                return label.text;
+            }
+            if (label != null) labels.remove(key);
+        }
+        misses.increment();
+        return null;
+    }
+
+    // a user's name as a label. Discord can return an empty or missing name; those users are listed by their ID.
+    static String label(String name, long userID) {
+        return name == null || name.isEmpty() ? String.valueOf(userID) : name;
+    }
+
+    void put(long guildID, long userID, String text) {
+        Label label = new Label(label(text, userID), System.currentTimeMillis() + ttlMillis);
+        synchronized (labels) {
+            labels.put(new Key(guildID, userID), label);
+        }
+    }
+
+    void remove(long guildID, long userID) {
+        synchronized (labels) {
+            labels.remove(new Key(guildID, userID));
+        }
+    }
+
+    int size() {
+        synchronized (labels) {
+            return labels.size();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/* local index of message Snowflake -> author Snowflake, plus channel -> guild, filled by addMessage and backfill.
+ * it lets deleteMessage resolve the author of a deleted message without reading it back from InfluxDB.
+ * the sign bit of a stored author marks a message that no longer counts (empty content, or already deleted), so a
+ * repeated delete or a message seen twice during backfill is never counted twice. with a file configured the tables
+ * are memory-mapped and survive restarts; otherwise they live on the heap. entries older than the retention are
+ * pruned, so the index stays the size of the recent history. add is called on gateway threads, so a mapped table is
+ * never grown or compacted under the lock: it is copied into its new file on another thread and only swapped in
+ * under the lock. */
+class MessageAuthorIndex {
+    static final long UNKNOWN = 0;
+    static final long NOT_COUNTED = -1;
+    private static final long NOT_COUNTED_BIT = Long.MIN_VALUE;
+
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    private final LongLongTable authors;
+    private final LongLongTable channelGuilds;
+    // grows mapped tables; created on first use, so heap-only indexes start no thread
+    private ExecutorService rebuilder;
+    private boolean rebuilding = false; // a mapped table is frozen and being copied
+
+    MessageAuthorIndex(LongLongTable authors, LongLongTable channelGuilds) {
+        this.authors = authors;
+        this.channelGuilds = channelGuilds;
+    }
+
+    // heap tables when file is null or empty, memory-mapped files (file and file.channels) otherwise.
+    static MessageAuthorIndex open(String file, long initialCapacity) {
+        if (file == null || file.isEmpty()) return new MessageAuthorIndex(new LongLongMap(), new LongLongMap());
+        try {
+            Path path = Path.of(file);
+            return new MessageAuthorIndex(new MappedLongLongTable(path, initialCapacity),
+                    new MappedLongLongTable(path.resolveSibling(path.getFileName() + ".channels"), 4096));
+        } catch (IOException e) {
+            LoggerFactory.getLogger(ChatKat.class).error("Error opening message index " + file
+                    + ", keeping it in memory instead: " + e.getMessage());
+            return new MessageAuthorIndex(new LongLongMap(), new LongLongMap());
+        }
+    }
+
+    /* record a message and whether it counts. returns false if the message was already recorded, in which case the
+     * caller must not count it again. */
+    synchronized boolean add(long messageID, long channelID, long guildID, long authorID, boolean counted) {
+        if (authors.get(messageID) != 0) return false;
+        authors.put(messageID, counted ? authorID : authorID | NOT_COUNTED_BIT);
+        if (channelGuilds.get(channelID) == 0) channelGuilds.put(channelID, guildID);
+        growInBackground();
+        return true;
+    }
+
+    /* mark a message deleted. returns the author it was counted for (the caller lowers their count), NOT_COUNTED if
+     * it did not count any more, or UNKNOWN if the index has never seen it. */
+    synchronized long markDeleted(long messageID) {
+        long stored = authors.get(messageID);
+        if (stored == 0) return UNKNOWN;
+        if ((stored & NOT_COUNTED_BIT) != 0) return NOT_COUNTED;
+        authors.put(messageID, stored | NOT_COUNTED_BIT);
+        return stored;
+    }
+
+    // record a message found in the database while resolving an unknown delete, already marked deleted.
+    synchronized void addDeleted(long messageID, long authorID) {
+        authors.put(messageID, authorID | NOT_COUNTED_BIT);
+        growInBackground();
+    }
+
+    // forget a message, e.g. one whose backfilled batch was never written, so it is counted when it is read again.
+    synchronized void forget(long messageID) {
+        authors.remove(messageID);
+    }
+
+    /* drop every message older than beforeMessageID (Snowflakes order by time) and return how many were dropped.
+     * deletes of pruned messages are looked up in the message store, like those of messages stored before the index
+     * existed. backfill only re-reads messages newer than its checkpoints, so none of them is counted twice. */
+    long prune(long beforeMessageID) {
+        LongLongTable.EntryPredicate older = (messageID, author) -> messageID < beforeMessageID;
+        MappedLongLongTable mapped;
+        synchronized (this) {
+            if (!(authors instanceof MappedLongLongTable)) return authors.removeIf(older);
+            try {
+                while (rebuilding) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            mapped = (MappedLongLongTable) authors;
+            mapped.freeze();
+            rebuilding = true;
+        }
+        return rebuild(mapped, older);
+    }
+
+    // start growing whichever mapped table is over its load factor. callers hold the lock.
+    private void growInBackground() {
+        for (LongLongTable table : new LongLongTable[]{authors, channelGuilds}) {
+            if (rebuilding) return;
+            if (!(table instanceof MappedLongLongTable)) continue;
+            MappedLongLongTable mapped = (MappedLongLongTable) table;
+            if (!mapped.overloaded()) continue;
+            mapped.freeze();
+            rebuilding = true;
+            if (rebuilder == null) {
+                rebuilder = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "message-index-rebuild");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            rebuilder.execute(() -> rebuild(mapped, (key, value) -> false));
+        }
+    }
+
+    /* copy a frozen table into its new file without the lock, so lookups and adds carry on meanwhile, then swap the
+     * copy in under the lock. returns how many entries drop matched. */
+    private long rebuild(MappedLongLongTable table, LongLongTable.EntryPredicate drop) {
+        boolean failed = false;
+        try {
+            MappedLongLongTable.Copy copy = table.copy(drop);
+            synchronized (this) {
+                if (copy == null) {
+                    table.thaw();
+                    return 0;
+                }
+                return table.swap(copy, drop);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            log.error("Error rebuilding the message index: " + e.getMessage());
+            synchronized (this) {
+                if (table.frozen()) table.thaw();
+            }
+            return 0;
+        } finally {
+            synchronized (this) {
+                rebuilding = false;
+                notifyAll();
+                // what was added meanwhile may call for another round; after a failure, the next add retries
+                if (!failed) growInBackground();
+            }
+        }
+    }
+
+    /* take over the entries of another index, e.g. one left by a different shard layout. a message either index
+     * saw deleted stays deleted. */
+    synchronized void adopt(MessageAuthorIndex other) {
+        other.authors.forEach((messageID, author) -> authors.put(messageID, authors.get(messageID) | author));
+        other.channelGuilds.forEach(this::recordChannel);
+        growInBackground();
+    }
+
+    // guild of a channel seen before, or 0.
+    synchronized long guildOf(long channelID) {
+        return channelGuilds.get(channelID);
+    }
+
+    synchronized void recordChannel(long channelID, long guildID) {
+        if (channelGuilds.get(channelID) == 0) channelGuilds.put(channelID, guildID);
+        growInBackground();
+    }
+
+    synchronized int size() {
+        return authors.size();
+    }
+
+    synchronized void flush() {
+        authors.flush();
+        channelGuilds.flush();
+    }
+
+    // waits for a running rebuild, then closes the tables.
+    void close() {
+        ExecutorService running;
+        synchronized (this) {
+            running = rebuilder;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            authors.close();
+            channelGuilds.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/* one stored message: when it was sent, where, by whom, and whether it counts (1) or not (0, no content).
+ * a deletion marks a message that was counted as no longer counting; InfluxDB rewrites the point with isValid = 0,
+ * append-only stores record it as a tombstone that cancels the original. */
+final class MessageRecord {
+    final long time; // ms since the Unix epoch
+    final long guild, channel, author;
+    final int valid;
+    final boolean deletion;
+
+    MessageRecord(long time, long guild, long channel, long author, int valid) {
+        this(time, guild, channel, author, valid, false);
+    }
+
+    private MessageRecord(long time, long guild, long channel, long author, int valid, boolean deletion) {
+        this.time = time;
+        this.guild = guild;
+        this.channel = channel;
+        this.author = author;
+        this.valid = valid;
+        this.deletion = deletion;
+    }
+
+    static MessageRecord deletion(long time, long guild, long channel, long author) {
+        return new MessageRecord(time, guild, channel, author, 0, true);
+    }
+}
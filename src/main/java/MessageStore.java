@@ -0,0 +1,27 @@
+import java.util.List;
+
+/* where message history is kept. DatabaseHandler only talks to the store through these operations, so the bot can
+ * run against InfluxDB or against the embedded engine in the same JVM. implementations must be safe to call from
+ * several threads and may block; callers run them on the database scheduler or the write pipeline's thread. */
+interface MessageStore {
+    void write(List<MessageRecord> records);
+
+    // time (ms) of the newest message stored for a channel, or 0 if it has none.
+    long lastMessageTime(long guildID, long channelID);
+
+    // the messages of a channel stored at the given times, with valid summed over any earlier deletions.
+    List<MessageRecord> findAt(long guildID, long channelID, long[] times);
+
+    // messages per author at or after sinceMillis. channelID 0 sums every channel of the guild.
+    LongLongMap sumByAuthor(long guildID, long channelID, long sinceMillis);
+
+    /* per (channel, author, bucket) message counts for times in [fromMillis, untilMillis), in buckets of bucketMillis
+     * aligned to the Unix epoch. a bucket may be reported in several parts; consumers add them up. */
+    void loadBuckets(long guildID, long fromMillis, long untilMillis, long bucketMillis, BucketConsumer consumer);
+
+    void close();
+
+    interface BucketConsumer {
+        void accept(long channelID, long authorID, long bucketStartMillis, long count);
+    }
+}
@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
+
+/* operational metrics: counters, gauges and histograms, registered by name and labels. recording never takes a
+ * lock: counters are LongAdders and histograms count into fixed power-of-two buckets with atomic increments, so
+ * instrumentation can stay on in production. callers look a metric up once and keep the reference; the registry is
+ * only walked when the metrics are read, by the Prometheus text endpoint (serve) or the optional InfluxDB push
+ * (collect). labelled() returns a view of the same registry that adds labels to everything registered through it,
+ * so every shard can register the same metrics under its own shard label. */
+class Metrics {
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    // metric name -> family, sorted so the exposition output is stable
+    private final ConcurrentSkipListMap<String, Family> families;
+    // label pairs added to every metric registered through this view
+    private final String[] common;
+    private HttpServer server;
+
+    Metrics() {
+        this(new ConcurrentSkipListMap<>(), new String[0]);
+    }
+
+    private Metrics(ConcurrentSkipListMap<String, Family> families, String[] common) {
+        this.families = families;
+        this.common = common;
+    }
+
+    Metrics labelled(String... labels) {
+        return new Metrics(families, concat(common, labels));
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] labels = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, labels, first.length, second.length);
+        return labels;
+    }
+
+    /* histogram over values >= 0. bucket i counts values <= 2^i (in the recorded unit); the last bucket counts
+     * everything larger. scale converts the recorded unit to the reported one, e.g. 1e-6 for microseconds reported
+     * as seconds. */
+    static final class Histogram {
+        private final AtomicLongArray buckets;
+        private final LongAdder sum = new LongAdder();
+        final double scale;
+
+        Histogram(int buckets, double scale) {
+            this.buckets = new AtomicLongArray(buckets + 1);
+            this.scale = scale;
+        }
+
+        // latencies in microseconds, reported in seconds: buckets from 1 microsecond to ~36 minutes.
+        static Histogram latency() {
+            return new Histogram(32, 1e-6);
+        }
+
+        // sizes and counts: buckets from 1 to ~16 million.
+        static Histogram sizes() {
+            return new Histogram(24, 1);
+        }
+
+        void record(long value) {
+            int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+            sum.add(value);
+        }
+
+        // record the microseconds since a System.nanoTime() start.
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        // upper bound of bucket i in the reported unit.
+        double bound(int bucket) {
+            return (1L << bucket) * scale;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+            return count;
+        }
+
+        double sum() {
+            return sum.sum() * scale;
+        }
+
+        // upper bound of the bucket holding the q-quantile, or 0 if nothing was recorded.
+        double quantile(double q) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen >= rank) return bound(i);
+            }
+            return bound(counts.length - 2); // beyond the last bound; report the largest one
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) counts[i] = buckets.get(i);
+            return counts;
+        }
+    }
+
+    // receives the samples of a dynamic gauge family: label pairs and the value.
+    interface GaugeCollector {
+        void collect(BiConsumer<String[], Double> sample);
+    }
+
+    // receives every sample when the registry is walked; fields are "value" or the histogram summary fields.
+    interface SampleConsumer {
+        void accept(String name, Map<String, String> labels, Map<String, Object> fields);
+    }
+
+    private static final class Family {
+        final String name, help, type;
+        // rendered labels -> LongAdder, DoubleSupplier or Histogram
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, String[]> labels = new ConcurrentHashMap<>();
+        // dynamic gauges, with the labels of the view they were registered through
+        final CopyOnWriteArrayList<Map.Entry<String[], GaugeCollector>> collectors = new CopyOnWriteArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        return family;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T series(String name, String help, String type, String[] labels, T metric) {
+        Family family = family(name, help, type);
+        labels = concat(common, labels);
+        String key = labelString(labels);
+        family.labels.putIfAbsent(key, labels);
+        return (T) family.series.computeIfAbsent(key, k -> metric);
+    }
+
+    // a counter for name and label pairs ("type", "message_create", ...), created on first use.
+    LongAdder counter(String name, String help, String... labels) {
+        return series(name, help, "counter", labels, new LongAdder());
+    }
+
+    // expose a counter kept elsewhere, e.g. by the write pipeline.
+    void counter(String name, String help, LongAdder counter, String... labels) {
+        series(name, help, "counter", labels, counter);
+    }
+
+    Histogram histogram(String name, String help, Histogram histogram, String... labels) {
+        return series(name, help, "histogram", labels, histogram);
+    }
+
+    void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        series(name, help, "gauge", labels, value);
+    }
+
+    // a gauge family whose series are listed on every read, e.g. one per backfilled channel.
+    void gauges(String name, String help, GaugeCollector collector) {
+        family(name, help, "gauge").collectors.add(new AbstractMap.SimpleImmutableEntry<>(common, collector));
+    }
+
+    private static String labelString(String[] labels) {
+        StringJoiner joined = new StringJoiner(",");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            joined.add(labels[i] + "=\"" + labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\n", "\\n") + "\"");
+        }
+        return joined.toString();
+    }
+
+    private static Map<String, String> labelMap(String[] labels) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < labels.length; i += 2) map.put(labels[i], labels[i + 1]);
+        return map;
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    // every metric in the Prometheus text exposition format (version 0.0.4).
+    String prometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> {
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    long[] counts = histogram.snapshot();
+                    String prefix = labels.isEmpty() ? "" : labels + ",";
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        String bound = i < counts.length - 1 ? format(histogram.bound(i)) : "+Inf";
+                        line(out, family.name + "_bucket", prefix + "le=\"" + bound + "\"", cumulative);
+                    }
+                    line(out, family.name + "_sum", labels, histogram.sum());
+                    line(out, family.name + "_count", labels, cumulative);
+                } else {
+                    line(out, family.name, labels, value(metric));
+                }
+            });
+            family.collectors.forEach(collector -> collector.getValue().collect((labels, value) ->
+                    line(out, family.name, labelString(concat(collector.getKey(), labels)), value)));
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static double value(Object metric) {
+        return metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((DoubleSupplier) metric).getAsDouble();
+    }
+
+    /* walk every sample: counters and gauges as "value", histograms as count, sum and bucket-bound estimates of the
+     * median, 90th and 99th percentile. */
+    void collect(SampleConsumer consumer) {
+        for (Family family : families.values()) {
+            family.series.forEach((key, metric) -> {
+                Map<String, String> labels = labelMap(family.labels.get(key));
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    Map<String, Object> fields = new LinkedHashMap<>();
+                    fields.put("count", histogram.count());
+                    fields.put("sum", histogram.sum());
+                    fields.put("p50", histogram.quantile(0.5));
+                    fields.put("p90", histogram.quantile(0.9));
+                    fields.put("p99", histogram.quantile(0.99));
+                    consumer.accept(family.name, labels, fields);
+                } else {
+                    consumer.accept(family.name, labels, Collections.singletonMap("value", value(metric)));
+                }
+            });
+            family.collectors.forEach(collector -> collector.getValue().collect((labels, value) ->
+                    consumer.accept(family.name, labelMap(concat(collector.getKey(), labels)),
+                            Collections.singletonMap("value", value))));
+        }
+    }
+
+    // serve prometheus() at http://host:port/metrics.
+    void serve(String host, int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            log.info("Serving metrics at http://" + host + ":" + server.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            log.error("Could not start the metrics endpoint on " + host + ":" + port + ": " + e.getMessage());
+        }
+    }
+
+    void close() {
+        if (server != null) server.stop(0);
+    }
+}
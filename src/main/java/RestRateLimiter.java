@@ -0,0 +1,55 @@
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* paces backfill REST requests so they stay inside Discord's rate limits instead of running into 429s. Discord limits
+ * every bot globally and per route bucket, and message history routes are bucketed per channel (their major
+ * parameter), so one bucket is kept per channel on top of the global one. Discord4j's router still honours the
+ * X-RateLimit headers it receives; pacing here keeps backfill from draining the buckets that live requests share. */
+class RestRateLimiter {
+    private final Bucket global;
+    private final ConcurrentHashMap<Long, Bucket> routes = new ConcurrentHashMap<>();
+    private final double routeRequestsPerSecond;
+    private final int routeBurst;
+
+    RestRateLimiter(double globalRequestsPerSecond, int globalBurst, double routeRequestsPerSecond, int routeBurst) {
+        this.global = new Bucket(globalRequestsPerSecond, globalBurst);
+        this.routeRequestsPerSecond = routeRequestsPerSecond;
+        this.routeBurst = routeBurst;
+    }
+
+    // completes when one request on the route identified by majorParameter (a channel ID) may be sent.
+    Mono<Void> acquire(long majorParameter) {
+        long wait = Math.max(global.reserve(),
+                routes.computeIfAbsent(majorParameter, id -> new Bucket(routeRequestsPerSecond, routeBurst)).reserve());
+        return wait <= 0 ? Mono.empty() : Mono.delay(Duration.ofMillis(wait)).then();
+    }
+
+    // forget a route's bucket once its backfill is done.
+    void release(long majorParameter) {
+        routes.remove(majorParameter);
+    }
+
+    /* generic cell rate algorithm: each reservation moves the theoretical arrival time forward by one interval, and a
+     * request has to wait until it is no more than burst - 1 intervals ahead of now. */
+    private static final class Bucket {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private long theoreticalArrival = System.nanoTime();
+
+        Bucket(double requestsPerSecond, int burst) {
+            this.intervalNanos = (long) (1_000_000_000L / requestsPerSecond);
+            this.toleranceNanos = intervalNanos * (Math.max(burst, 1) - 1);
+        }
+
+        // reserve a slot and return how many milliseconds to wait before using it.
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            long arrival = Math.max(theoreticalArrival, now);
+            theoreticalArrival = arrival + intervalNanos;
+            long waitNanos = arrival - toleranceNanos - now;
+            return waitNanos <= 0 ? 0 : (waitNanos + 999_999) / 1_000_000;
+        }
+    }
+}
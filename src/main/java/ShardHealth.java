@@ -0,0 +1,60 @@
+import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.Event;
+import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.guild.GuildDeleteEvent;
+import discord4j.core.event.domain.lifecycle.DisconnectEvent;
+import discord4j.core.event.domain.lifecycle.ReadyEvent;
+import discord4j.core.event.domain.lifecycle.ReconnectEvent;
+import discord4j.core.event.domain.lifecycle.ReconnectStartEvent;
+import discord4j.core.event.domain.lifecycle.ResumeEvent;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/* health and throughput of one gateway shard: whether its gateway connection is up, how many guilds it serves, when
+ * it last received an event and how many messages per second it ingests. fed by its own subscriptions on the
+ * shard's client, exported as metrics under the shard's label and logged by report(). */
+class ShardHealth {
+    final int shard;
+    private volatile boolean connected = false;
+    private volatile long lastEventMillis = 0;
+    private final Set<Long> guilds = ConcurrentHashMap.newKeySet();
+    private final LongAdder messages = new LongAdder();
+    private long lastReportMillis = System.currentTimeMillis(), lastReportMessages = 0; // guarded by this
+
+    ShardHealth(int shard, Metrics metrics) {
+        this.shard = shard;
+        metrics.gauge("chatkat_shard_connected", "1 while the shard's gateway connection is up", () -> connected ? 1 : 0);
+        metrics.gauge("chatkat_shard_guilds", "Guilds served by the shard", guilds::size);
+        metrics.gauge("chatkat_shard_last_event_age_seconds", "Seconds since the shard last received an event",
+                () -> lastEventMillis == 0 ? -1 : (System.currentTimeMillis() - lastEventMillis) / 1000.0);
+        metrics.counter("chatkat_shard_messages_total", "Messages received by the shard", messages);
+    }
+
+    void watch(DiscordClient client) {
+        client.getEventDispatcher().on(Event.class).subscribe(event -> lastEventMillis = System.currentTimeMillis());
+        client.getEventDispatcher().on(ReadyEvent.class).subscribe(event -> connected = true);
+        client.getEventDispatcher().on(ResumeEvent.class).subscribe(event -> connected = true);
+        client.getEventDispatcher().on(ReconnectEvent.class).subscribe(event -> connected = true);
+        client.getEventDispatcher().on(ReconnectStartEvent.class).subscribe(event -> connected = false);
+        client.getEventDispatcher().on(DisconnectEvent.class).subscribe(event -> connected = false);
+        client.getEventDispatcher().on(GuildCreateEvent.class)
+                .subscribe(event -> guilds.add(event.getGuild().getId().asLong()));
+        client.getEventDispatcher().on(GuildDeleteEvent.class)
+                .subscribe(event -> guilds.remove(event.getGuildId().asLong()));
+        client.getEventDispatcher().on(MessageCreateEvent.class).subscribe(event -> messages.increment());
+    }
+
+    // one log line: connection, guilds, message rate since the last report and the shard's write queue.
+    synchronized String report(int queued) {
+        long now = System.currentTimeMillis(), count = messages.sum();
+        double rate = now > lastReportMillis ? (count - lastReportMessages) * 1000.0 / (now - lastReportMillis) : 0;
+        lastReportMillis = now;
+        lastReportMessages = count;
+        return String.format("Shard %d: %s, %d guilds, %.1f messages/sec, %d records queued, last event %s",
+                shard, connected ? "connected" : "disconnected", guilds.size(), rate, queued,
+                lastEventMillis == 0 ? "never" : (now - lastEventMillis) / 1000 + "s ago");
+    }
+}
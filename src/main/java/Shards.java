@@ -0,0 +1,218 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* gateway sharding for this process. Discord sends guild g to shard (g >> 22) % shardCount, so running a range of
+ * shards is running a partition of the guilds: several ChatKat instances split a bot's guilds by using the same
+ * shardCount and different shardFirst..shardLast ranges. each shard gets its own DiscordClient and DatabaseHandler
+ * (write pipeline, indexes, backfill scheduler, checkpoints), so shards don't contend; the shards of one process
+ * share its message store. */
+class Shards {
+    // (setting, default) of the files that hold a shard's state
+    private static final String[][] STATE_FILES = {
+            {"checkpointFile", "checkpoints.bin"}, {"spillFile", "spill.bin"}, {"messageIndexFile", ""}};
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    final int count, first, last;
+    private final Properties properties;
+
+    Shards(Properties properties) {
+        this.properties = properties;
+        count = Integer.parseInt(properties.getProperty("shardCount", "1"));
+        first = Integer.parseInt(properties.getProperty("shardFirst", "0"));
+        last = Integer.parseInt(properties.getProperty("shardLast", String.valueOf(count - 1)));
+        if (count < 1 || first < 0 || first > last || last >= count) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid shard range %d..%d for shardCount %d", first, last, count));
+        }
+    }
+
+    // shards run by this process
+    int size() {
+        return last - first + 1;
+    }
+
+    /* settings for one shard's handler. with more than one shard in total, each shard keeps its own checkpoint,
+     * spill and message index files, named by its index and the shard count, and its own debug directory, so a shard
+     * finds its files again whichever range of shards its process runs. the process-wide backfill limits and index
+     * capacity are split between the shards this process runs. */
+    Properties propertiesFor(int shard) {
+        Properties shardProperties = new Properties();
+        shardProperties.putAll(properties);
+        if (count > 1) {
+            for (String[] file : STATE_FILES) {
+                String path = properties.getProperty(file[0], file[1]);
+                if (!path.isEmpty()) shardProperties.setProperty(file[0], shardFile(path, shard, count));
+            }
+            shardProperties.setProperty("debugDirectory",
+                    properties.getProperty("debugDirectory", "src/main/resources/debug_files") + "/shard" + shard);
+        }
+        if (size() == 1) return shardProperties;
+
+        split(shardProperties, "backfillConcurrency", "32");
+        split(shardProperties, "messageIndexCapacity", "1000000");
+        shardProperties.setProperty("backfillGlobalRequestsPerSecond", String.valueOf(
+                Double.parseDouble(properties.getProperty("backfillGlobalRequestsPerSecond", "40")) / size()));
+        return shardProperties;
+    }
+
+    /* settings for what this process's shards share, i.e. the message store. with more than one shard in total, the
+     * store's file of hours not rolled up yet is named after the first shard the process runs: the ranges of running
+     * processes don't overlap, so neither do their files. */
+    Properties processProperties() {
+        Properties processProperties = new Properties();
+        processProperties.putAll(properties);
+        String rollupFile = properties.getProperty("rollupFile", "rollups.bin");
+        if (count > 1 && !rollupFile.isEmpty()) {
+            processProperties.setProperty("rollupFile", shardFile(rollupFile, first, count));
+        }
+        return processProperties;
+    }
+
+    // checkpoints.bin -> checkpoints-shard3of8.bin. with a single shard the file keeps its name.
+    static String shardFile(String file, int shard, int count) {
+        if (count == 1) return file;
+        String suffix = "-shard" + shard + "of" + count;
+        int dot = file.lastIndexOf('.');
+        if (dot <= Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\')) + 1) return file + suffix;
+        return file.substring(0, dot) + suffix + file.substring(dot);
+    }
+
+    /* carry a shard's state over from the files another shard count left behind, before its handler opens them.
+     * checkpoints and the message index are keyed by channel and message, so a shard starting under a new count
+     * takes every entry of the old files and only ever looks up its own guilds'. records in an old spill file are
+     * claimed by whichever shard finds the file first and replayed with its own spill. */
+    void adoptState(int shard) {
+        Properties shardProperties = propertiesFor(shard);
+        try {
+            Path checkpoints = Paths.get(shardProperties.getProperty("checkpointFile", "checkpoints.bin"));
+            List<Path> oldCheckpoints = legacyFiles(properties.getProperty("checkpointFile", "checkpoints.bin"));
+            if (!Files.exists(checkpoints) && !oldCheckpoints.isEmpty()) {
+                CheckpointStore store = new CheckpointStore(checkpoints);
+                for (Path file : oldCheckpoints) store.adopt(file);
+                store.save();
+                log.info("Shard " + shard + " took its checkpoints over from " + oldCheckpoints);
+            }
+
+            String indexFile = shardProperties.getProperty("messageIndexFile", "");
+            List<Path> oldIndexes = legacyFiles(properties.getProperty("messageIndexFile", ""));
+            if (!indexFile.isEmpty() && !Files.exists(Paths.get(indexFile)) && !oldIndexes.isEmpty()) {
+                MessageAuthorIndex index = MessageAuthorIndex.open(indexFile,
+                        Long.parseLong(shardProperties.getProperty("messageIndexCapacity", "1000000")));
+                for (Path file : oldIndexes) {
+                    MessageAuthorIndex old = MessageAuthorIndex.open(file.toString(), 1);
+                    index.adopt(old);
+                    old.close();
+                }
+                index.close();
+                log.info("Shard " + shard + " took its message index over from " + oldIndexes);
+            }
+
+            Path spill = Paths.get(shardProperties.getProperty("spillFile", "spill.bin"));
+            Path claimed = spill.resolveSibling(spill.getFileName() + ".adopted");
+            if (Files.exists(claimed)) appendSpill(claimed, spill);
+            for (Path file : legacyFiles(properties.getProperty("spillFile", "spill.bin"))) {
+                try {
+                    Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    continue; // another shard claimed it
+                }
+                Path replayed = WriteBehindPipeline.replayedFile(file);
+                if (Files.exists(replayed)) Files.move(replayed, WriteBehindPipeline.replayedFile(claimed),
+                        StandardCopyOption.REPLACE_EXISTING);
+                appendSpill(claimed, spill);
+                log.info("Shard " + shard + " took the spilled records of " + file + " over");
+            }
+        } catch (IOException e) {
+            log.error("Error taking shard " + shard + "'s state over from an earlier shard count: " + e.getMessage());
+        }
+    }
+
+    /* before the message store opens: the rollup hours left pending by processes of another shard count, or by one
+     * that started at another shard of this range, are appended to this process's file. a file of another count is
+     * claimed by whichever process finds it first. */
+    void adoptProcessState() {
+        String file = properties.getProperty("rollupFile", "rollups.bin");
+        if (file.isEmpty()) return;
+        Path rollups = Paths.get(processProperties().getProperty("rollupFile"));
+        Path claimed = rollups.resolveSibling(rollups.getFileName() + ".adopted");
+        try {
+            if (Files.exists(claimed)) appendFile(claimed, rollups, 0);
+            List<Path> others = new ArrayList<>(legacyFiles(file));
+            for (int shard = first + 1; shard <= last && count > 1; shard++) {
+                Path own = Paths.get(shardFile(file, shard, count));
+                if (Files.exists(own)) others.add(own);
+            }
+            for (Path other : others) {
+                try {
+                    Files.move(other, claimed, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    continue; // another process claimed it
+                }
+                appendFile(claimed, rollups, 0);
+                log.info("Took the pending rollup hours of " + other + " over");
+            }
+        } catch (IOException e) {
+            log.error("Error taking pending rollup hours over from an earlier shard layout: " + e.getMessage());
+        }
+    }
+
+    // append the records of a claimed spill file that weren't replayed yet.
+    private static void appendSpill(Path claimed, Path spill) throws IOException {
+        appendFile(claimed, spill, Math.min(WriteBehindPipeline.replayedBytes(claimed), Files.size(claimed)));
+        Files.deleteIfExists(WriteBehindPipeline.replayedFile(claimed));
+    }
+
+    // append a claimed file to target, without its first skip bytes, and delete it.
+    private static void appendFile(Path claimed, Path target, long skip) throws IOException {
+        try (InputStream in = Files.newInputStream(claimed);
+             OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            in.skipNBytes(skip);
+            in.transferTo(out);
+        }
+        Files.delete(claimed);
+    }
+
+    /* the state files other shard counts left next to file, oldest first: the file itself when there is more than
+     * one shard now, and the per-shard files of any other count. this count's files belong to its shards. */
+    List<Path> legacyFiles(String file) throws IOException {
+        if (file.isEmpty()) return Collections.emptyList();
+        Path path = Paths.get(file).toAbsolutePath();
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot <= 0 ? name : name.substring(0, dot), extension = dot <= 0 ? "" : name.substring(dot);
+        Pattern layout = Pattern.compile(Pattern.quote(stem) + "(-shard\\d+(of(\\d+))?)?" + Pattern.quote(extension));
+        if (!Files.isDirectory(path.getParent())) return Collections.emptyList();
+        try (Stream<Path> files = Files.list(path.getParent())) {
+            return files.filter(candidate -> {
+                Matcher matcher = layout.matcher(candidate.getFileName().toString());
+                if (!matcher.matches()) return false;
+                if (matcher.group(1) == null) return count > 1;
+                return matcher.group(3) == null || Integer.parseInt(matcher.group(3)) != count;
+            }).sorted(Comparator.comparingLong(candidate -> candidate.toFile().lastModified()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void split(Properties shardProperties, String key, String defaultValue) {
+        long total = Long.parseLong(properties.getProperty(key, defaultValue));
+        shardProperties.setProperty(key, String.valueOf(Math.max(1, (total + size() - 1) / size())));
+    }
+}
@@ -0,0 +1,387 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/* write-behind stage between the event handlers and the message store. handlers offer records to a bounded queue and
+ * return at once; a single writer thread drains it and writes a batch whenever batchSize records are waiting or
+ * flushInterval has passed. when the queue is full the overflow policy decides whether records go to the spill file,
+ * are dropped, or (for producers that may wait, never the gateway) make the producer wait. failed batches are
+ * retried, then appended to a bounded spill file that is replayed, in order, before the next batch. flush() is a
+ * barrier: it completes once every record offered before it has been written, spilled or dropped, and tells whether
+ * the spill file was empty by then. */
+class WriteBehindPipeline {
+    enum OverflowPolicy {
+        SPILL,       // records wait in a bounded overflow list that the writer appends to the spill file, in order
+        BLOCK,       // producers wait for room: nothing is lost, but the producer stalls with the database
+        DROP_NEWEST, // the record being offered is dropped
+        DROP_OLDEST  // the oldest queued record is dropped to make room
+    }
+
+    // wakes the writer for a barrier; never written
+    private static final Object WAKE_UP = new Object();
+    // time, guild, channel and author, valid, deletion
+    private static final int RECORD_BYTES = 4 * Long.BYTES + Integer.BYTES + 1;
+
+    final Logger log = LoggerFactory.getLogger(ChatKat.class);
+    private final MessageStore store;
+    private final ArrayBlockingQueue<Object> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final int retries;
+    private final OverflowPolicy policy;
+    private final Path spillFile;
+    private final long spillLimitBytes;
+    /* bytes at the start of the spill file already replayed, also kept in the replayed file so a restart doesn't
+     * write them again. the file is only ever appended to, and deleted once it has been replayed to the end. */
+    private long replayed;
+    private final ConcurrentLinkedQueue<MonoSink<Boolean>> barriers = new ConcurrentLinkedQueue<>();
+    /* SPILL: records offered while the queue was full, oldest first. while overflowed is above 0, new records join
+     * the overflow instead of the queue, so records reach the spill file in the order they were offered. */
+    private final ConcurrentLinkedQueue<MessageRecord> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger overflowed = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile Consumer<List<MessageRecord>> writtenListener = records -> { };
+
+    final LongAdder written = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder spilled = new LongAdder();
+    final LongAdder failedWrites = new LongAdder();
+    // per successful write: records in the batch, time spent in the store, and message time to write time
+    final Metrics.Histogram batchSizes = Metrics.Histogram.sizes();
+    final Metrics.Histogram writeLatency = Metrics.Histogram.latency();
+    final Metrics.Histogram lag = Metrics.Histogram.latency();
+
+    WriteBehindPipeline(MessageStore store, int capacity, int batchSize, long flushIntervalMillis,
+                        int retries, OverflowPolicy policy, Path spillFile, long spillLimitBytes) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.retries = retries;
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.spillLimitBytes = spillLimitBytes;
+        this.replayed = replayedBytes(spillFile);
+        if (replayed == 0) {
+            try {
+                Files.deleteIfExists(replayedFile(spillFile)); // left behind with a spill file that was deleted
+            } catch (IOException e) {
+                log.error("Error deleting " + replayedFile(spillFile) + ": " + e.getMessage());
+            }
+        }
+
+        this.writer = new Thread(this::run, "store-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /* queue a record for writing. returns false if it was dropped or the pipeline is closed. only BLOCK ever waits
+     * (while the queue is full, slowing the caller to the speed of the database); the other policies return at once,
+     * so they are safe on the gateway's event threads. */
+    boolean offer(MessageRecord record) {
+        if (!running) {
+            dropped.increment();
+            return false;
+        }
+        switch (policy) {
+            case SPILL:
+                if (overflowed.get() == 0 && queue.offer(record)) return true;
+                // the overflow holds as many records as the queue; beyond that the database is too far behind
+                if (overflowed.incrementAndGet() > capacity) {
+                    overflowed.decrementAndGet();
+                    dropped.increment();
+                    return false;
+                }
+                overflow.add(record);
+                return true;
+            case BLOCK:
+                try {
+                    queue.put(record);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(record)) {
+                    if (queue.poll() != null) dropped.increment();
+                }
+                return true;
+            default:
+                if (queue.offer(record)) return true;
+                dropped.increment();
+                return false;
+        }
+    }
+
+    /* completes once every record offered before the call has been written, spilled or dropped. true if the spill
+     * file was empty by then, i.e. none of them is waiting to be replayed: what was offered is in the store, except
+     * records a policy dropped. false if some may only reach the store with a later replay. */
+    Mono<Boolean> flush() {
+        return Mono.create(sink -> {
+            barriers.add(sink);
+            queue.offer(WAKE_UP); // if the queue is full the writer isn't waiting anyway
+        });
+    }
+
+    /* called on the writer thread with every batch once it is in the store. batches arrive in the order their records
+     * were offered. */
+    void onWritten(Consumer<List<MessageRecord>> listener) {
+        this.writtenListener = listener;
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    // stop accepting records, write everything still queued and stop the writer.
+    void close() {
+        running = false;
+        queue.offer(WAKE_UP);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<MessageRecord> batch = new ArrayList<>(batchSize);
+        long deadline = System.currentTimeMillis() + flushIntervalMillis;
+        while (running || !queue.isEmpty() || !barriers.isEmpty() || overflowed.get() > 0) {
+            try {
+                Object next = queue.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    take(next, batch);
+                    drain(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            /* the queue filled up: what is batched and queued, then the overflow, goes to the spill file without
+             * waiting for the store. the next write replays it first. */
+            if (overflowed.get() > 0) {
+                drain(batch, Integer.MAX_VALUE);
+                for (MessageRecord record; (record = overflow.poll()) != null; overflowed.decrementAndGet()) {
+                    batch.add(record);
+                }
+                spill(batch);
+                batch.clear();
+            }
+
+            /* every record offered before these barriers were registered is in the queue by now, so drain what is
+             * queued. records offered after this snapshot wait for the next round. */
+            List<MonoSink<Boolean>> waiting = new ArrayList<>();
+            for (MonoSink<Boolean> barrier; (barrier = barriers.poll()) != null; ) waiting.add(barrier);
+            if (!waiting.isEmpty() || !running) {
+                int pending = queue.size();
+                while (pending > 0) {
+                    if (batch.size() >= batchSize) {
+                        write(batch);
+                        batch.clear();
+                    }
+                    int taken = drain(batch, Math.min(pending, batchSize - batch.size()));
+                    if (taken == 0) break;
+                    pending -= taken;
+                }
+            }
+
+            if (!waiting.isEmpty() || !running || batch.size() >= batchSize
+                    || System.currentTimeMillis() >= deadline) {
+                write(batch);
+                batch.clear();
+                deadline = System.currentTimeMillis() + flushIntervalMillis;
+            }
+            if (!waiting.isEmpty()) {
+                boolean stored = !Files.exists(spillFile);
+                for (MonoSink<Boolean> barrier : waiting) barrier.success(stored);
+            }
+        }
+        write(batch);
+        boolean stored = !Files.exists(spillFile);
+        for (MonoSink<Boolean> barrier; (barrier = barriers.poll()) != null; ) barrier.success(stored);
+    }
+
+    private void take(Object next, List<MessageRecord> batch) {
+        if (next != WAKE_UP) batch.add((MessageRecord) next);
+    }
+
+    // move up to max queued records into the batch; returns how many entries were taken from the queue.
+    private int drain(List<MessageRecord> batch, int max) {
+        int taken = 0;
+        for (Object next; taken < max && (next = queue.poll()) != null; taken++) take(next, batch);
+        return taken;
+    }
+
+    // write a batch after anything spilled earlier, so records reach the store in the order they were offered.
+    private void write(List<MessageRecord> records) {
+        if (!replaySpill()) {
+            spill(records);
+            return;
+        }
+        if (records.isEmpty()) return;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            try {
+                long start = System.nanoTime();
+                store.write(records);
+                writeLatency.recordSince(start);
+                recordWritten(records);
+                return;
+            } catch (Exception e) {
+                failedWrites.increment();
+                log.error("Error writing " + records.size() + " records (attempt " + (attempt + 1) + "): "
+                        + e.getMessage());
+                if (attempt < retries && !backOff(attempt)) break;
+            }
+        }
+        spill(records);
+    }
+
+    private void recordWritten(List<MessageRecord> records) {
+        written.add(records.size());
+        batchSizes.record(records.size());
+        long now = System.currentTimeMillis();
+        for (MessageRecord record : records) {
+            // a deletion carries the deleted message's time, which says nothing about lag
+            if (!record.deletion) lag.record((now - record.time) * 1000);
+        }
+        try {
+            writtenListener.accept(records);
+        } catch (RuntimeException e) {
+            log.error("Error after writing " + records.size() + " records: " + e.getMessage());
+        }
+    }
+
+    private boolean backOff(int attempt) {
+        try {
+            Thread.sleep(100L << Math.min(attempt, 6));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // append records to the spill file, dropping them once the file has reached its limit.
+    private void spill(List<MessageRecord> records) {
+        if (records.isEmpty()) return;
+        try {
+            if (Files.exists(spillFile) && Files.size(spillFile) - replayed >= spillLimitBytes) {
+                dropped.add(records.size());
+                log.error("Spill file " + spillFile + " is full, dropping " + records.size() + " records");
+                return;
+            }
+            writeSpillFile(records);
+            spilled.add(records.size());
+        } catch (IOException e) {
+            dropped.add(records.size());
+            log.error("Error spilling " + records.size() + " records to " + spillFile + ": " + e.getMessage());
+        }
+    }
+
+    /* write the spill file back to the store in batchSize chunks, from where the last replay stopped. returns false if
+     * it couldn't be emptied; the replayed offset then points at the first unwritten record. */
+    private boolean replaySpill() {
+        if (!Files.exists(spillFile)) return true;
+        try {
+            try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+                channel.position(replayed);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                boolean end = false;
+                while (!end) {
+                    List<MessageRecord> chunk = new ArrayList<>(batchSize);
+                    try {
+                        while (chunk.size() < batchSize) chunk.add(readRecord(in));
+                    } catch (EOFException e) {
+                        end = true; // a record cut short by a crash is dropped with the end of the file
+                    }
+                    if (chunk.isEmpty()) break;
+                    try {
+                        long start = System.nanoTime();
+                        store.write(chunk);
+                        writeLatency.recordSince(start);
+                    } catch (Exception e) {
+                        failedWrites.increment();
+                        return false;
+                    }
+                    replayed += (long) chunk.size() * RECORD_BYTES;
+                    Files.write(replayedFile(spillFile), ByteBuffer.allocate(Long.BYTES).putLong(replayed).array());
+                    recordWritten(chunk);
+                }
+            }
+            Files.delete(spillFile);
+            Files.deleteIfExists(replayedFile(spillFile));
+            replayed = 0;
+            return true;
+        } catch (IOException e) {
+            log.error("Error replaying spill file " + spillFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // where the replayed offset of a spill file is kept.
+    static Path replayedFile(Path spillFile) {
+        return spillFile.resolveSibling(spillFile.getFileName() + ".replayed");
+    }
+
+    // bytes at the start of a spill file that were already replayed, 0 if none were or the offset can't be read.
+    static long replayedBytes(Path spillFile) {
+        Path offsetFile = replayedFile(spillFile);
+        if (!Files.exists(spillFile) || !Files.exists(offsetFile)) return 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(offsetFile))) {
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void writeSpillFile(List<MessageRecord> records) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)))) {
+            for (MessageRecord record : records) writeRecord(out, record);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, MessageRecord record) throws IOException {
+        out.writeLong(record.time);
+        out.writeLong(record.guild);
+        out.writeLong(record.channel);
+        out.writeLong(record.author);
+        out.writeInt(record.valid);
+        out.writeBoolean(record.deletion);
+    }
+
+    private static MessageRecord readRecord(DataInputStream in) throws IOException {
+        long time = in.readLong(), guild = in.readLong(), channel = in.readLong(), author = in.readLong();
+        int valid = in.readInt();
+        return in.readBoolean() ? MessageRecord.deletion(time, guild, channel, author)
+                : new MessageRecord(time, guild, channel, author, valid);
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ActivityReportTest {
+    private static final long HOUR = LeaderboardIndex.HOUR, DAY = LeaderboardIndex.DAY;
+
+    @Test
+    public void hoursArePlacedInLocalTime() {
+        // Monday 2024-01-01 22:00 UTC is Tuesday 00:00 at UTC+2
+        long mondayNight = ZonedDateTime.of(2024, 1, 1, 22, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        ActivityReport report = new ActivityReport(0, 0, 0, mondayNight + HOUR, ZoneOffset.ofHours(2), false);
+        report.accept(10, 1, mondayNight, 3);
+        report.accept(20, 2, mondayNight, 4);
+        assertEquals(7, report.heatmap[ActivityReport.HOURS]); // Tuesday, hour 0
+        assertEquals(7, report.total);
+        assertTrue(report.heatmap().contains("Busiest hour: **Tue 00:00**, with **7** messages."));
+    }
+
+    @Test
+    public void onlyTheRequestedAuthorAndChannelAreCounted() {
+        // trend buckets are keyed by day, and day 0 is the maps' reserved empty key, so start well after the epoch
+        long start = 1000 * DAY;
+        ActivityReport report = new ActivityReport(10, 1, 0, start + 10 * DAY, ZoneOffset.UTC, false);
+        report.accept(10, 1, start + HOUR, 2);
+        report.accept(10, 2, start + HOUR, 5);
+        report.accept(20, 1, start + HOUR, 7);
+        report.acceptDay(10, 1, start + 2 * DAY, 1);
+        assertEquals(3, report.total);
+        assertEquals(2, report.trend.get(1000));
+        assertEquals(1, report.trend.get(1002));
+    }
+
+    @Test
+    public void indexScanCountsEveryMessageOnce() {
+        long now = System.currentTimeMillis();
+        LeaderboardIndex index = new LeaderboardIndex(TimeUnit.DAYS.toMillis(10));
+        // old history is only counted per day; recent messages are counted per day and per hour
+        index.loadDay(1, 10, 1, Math.floorDiv(now - 30 * DAY, DAY) * DAY, 5);
+        for (long time : new long[]{now - 5 * DAY, now - HOUR, now - 2 * HOUR}) index.add(1, 10, 1, time, 1);
+        index.add(1, 20, 2, now - HOUR, 1);
+
+        ActivityReport everything = new ActivityReport(0, 0, 0, now, ZoneOffset.UTC, false);
+        index.scan(1, 0, 0, everything);
+        assertEquals(9, everything.total);
+        assertEquals(8, everything.channels.get(10));
+        assertEquals(1, everything.channels.get(20));
+        // the heatmap only has the messages with an hour
+        assertEquals(4, Arrays.stream(everything.heatmap).sum());
+
+        ActivityReport lastDay = new ActivityReport(0, 0, now - DAY, now, ZoneOffset.UTC, true);
+        index.scan(1, 10, now - DAY, lastDay);
+        assertEquals(2, lastDay.total);
+        assertEquals(1, lastDay.channels.size());
+    }
+
+    @Test
+    public void longTrendsAreSummedIntoWiderBars() {
+        long now = 400 * DAY;
+        ActivityReport report = new ActivityReport(0, 0, now - 365 * DAY, now, ZoneOffset.UTC, false);
+        for (long day = 35; day < 400; day++) report.accept(10, 1, day * DAY, 1);
+        String[] rows = report.trend().split("\n");
+        assertEquals(13 + 2, rows.length); // 30-day bars and the code block fences
+        assertTrue(rows[1].startsWith("1970-02-05 "));
+        assertTrue(rows[1].endsWith(" 30"));
+    }
+
+    @Test
+    public void busiestChannelsFirst() {
+        ActivityReport report = new ActivityReport(0, 0, 0, DAY, ZoneOffset.UTC, false);
+        report.accept(30, 1, 0, 1);
+        report.accept(10, 1, 0, 6);
+        report.accept(20, 1, 0, 3);
+        assertEquals(Arrays.asList("1. <#10> with **6** messages (60%).", "2. <#20> with **3** messages (30%)."),
+                report.channels(2));
+    }
+}
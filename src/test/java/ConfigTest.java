@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ConfigTest {
+    @Test
+    public void environmentNames() {
+        assertEquals("CHATKAT_BACKFILL_CONCURRENCY", Config.environmentName("backfillConcurrency"));
+        assertEquals("CHATKAT_DATABASE_URL", Config.environmentName("databaseURL"));
+        assertEquals("CHATKAT_STORAGE", Config.environmentName("storage"));
+        assertEquals("backfillConcurrency", Config.settingName("BACKFILL_CONCURRENCY"));
+    }
+
+    @Test
+    public void loadsFromTheClasspathWithEnvironmentOverrides() throws IOException {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("CHATKAT_BACKFILL_CONCURRENCY", "8");
+        environment.put("CHATKAT_DATABASE_URL", "http://influx:8086");
+        environment.put("CHATKAT_SOME_NEW_SETTING", "on");
+        environment.put("PATH", "/usr/bin");
+        Properties properties = Config.load(environment);
+
+        assertEquals("8", properties.getProperty("backfillConcurrency"));
+        assertEquals("http://influx:8086", properties.getProperty("databaseURL"));
+        assertNull(properties.getProperty("databaseUrl"));
+        assertEquals("on", properties.getProperty("someNewSetting"));
+        assertEquals("4", properties.getProperty("backfillGuildConcurrency")); // from config.properties
+        assertNull(properties.getProperty("path"));
+    }
+
+    @Test
+    public void loadsTheFileNamedByChatkatConfig() throws IOException {
+        Path file = Files.createTempFile("chatkat", ".properties");
+        try (Writer out = Files.newBufferedWriter(file)) {
+            out.write("storage=embedded\n");
+        }
+        Map<String, String> environment = new HashMap<>();
+        environment.put("CHATKAT_CONFIG", file.toString());
+        Properties properties = Config.load(environment);
+        assertEquals("embedded", properties.getProperty("storage"));
+        assertNull(properties.getProperty("backfillConcurrency"));
+        Files.delete(file);
+    }
+}
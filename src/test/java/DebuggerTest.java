@@ -0,0 +1,127 @@
+import discord4j.core.object.data.stored.AttachmentBean;
+import discord4j.core.object.data.stored.MessageBean;
+import discord4j.core.object.data.stored.UserBean;
+import discord4j.core.object.data.stored.embed.EmbedBean;
+import discord4j.core.object.entity.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class DebuggerTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chatkat-debug");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    private static String field(String value) {
+        return Debugger.field(new StringBuilder(), value).toString();
+    }
+
+    private static Message message(long messageID, String content) {
+        UserBean author = new UserBean();
+        author.setId(3);
+        author.setUsername("user3");
+        author.setDiscriminator("0001");
+        author.setBot(false);
+
+        MessageBean data = new MessageBean();
+        data.setId(messageID);
+        data.setChannelId(2);
+        data.setAuthor(author);
+        data.setContent(content);
+        data.setTimestamp(Instant.ofEpochMilli((messageID >>> 22) + DatabaseHandler.DISCORD_EPOCH).toString());
+        data.setMentions(new long[0]);
+        data.setMentionRoles(new long[0]);
+        data.setAttachments(new AttachmentBean[0]);
+        data.setEmbeds(new EmbedBean[0]);
+        data.setType(0);
+        return new Message(null, data);
+    }
+
+    @Test
+    public void plainFieldsAreNotQuoted() {
+        assertEquals("", field(""));
+        assertEquals("hello world", field("hello world"));
+        assertEquals("it's \u00e9t\u00e9", field("it's \u00e9t\u00e9"));
+    }
+
+    @Test
+    public void fieldsWithSeparatorsAreQuoted() {
+        assertEquals("\"a,b\"", field("a,b"));
+        assertEquals("\"line\nbreak\"", field("line\nbreak"));
+        assertEquals("\"carriage\rreturn\"", field("carriage\rreturn"));
+        assertEquals("\"crlf\r\n\"", field("crlf\r\n"));
+        assertEquals("\",\"", field(","));
+    }
+
+    @Test
+    public void quotesAreDoubled() {
+        assertEquals("\"say \"\"hi\"\"\"", field("say \"hi\""));
+        assertEquals("\"\"\"\"", field("\""));
+        assertEquals("\"\"\",\"\"\"", field("\",\""));
+    }
+
+    @Test
+    public void fieldsAppendToTheRow() {
+        StringBuilder row = new StringBuilder("1,");
+        Debugger.field(row, "a\"b").append(',');
+        Debugger.field(row, "c");
+        assertEquals("1,\"a\"\"b\",c", row.toString());
+    }
+
+    @Test
+    public void fullFilesAreRotatedAndCompressed() throws IOException {
+        // every row fills a file
+        Debugger debugger = new Debugger(directory, 100, 1, Long.MAX_VALUE);
+        for (long i = 1; i <= 3; i++) debugger.addMessage(message(i << 22, "message, " + i), 1);
+        debugger.close();
+
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.sorted().collect(Collectors.toList());
+        }
+        // three full files and the empty one left open at close, each compressed with nothing left over
+        assertEquals(4, files.size());
+        StringBuilder rows = new StringBuilder();
+        for (Path file : files) {
+            assertTrue(file.getFileName().toString().endsWith("_debug.csv.gz"));
+            String text;
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(text.startsWith("GuildID,GuildName,"));
+            rows.append(text.substring(text.indexOf("\r\n") + 2));
+        }
+        String[] lines = rows.toString().split("\r\n");
+        assertEquals(3, lines.length);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lines[i].startsWith("1,,2,,"));
+            assertTrue(lines[i].contains(",\"message, " + (i + 1) + "\","));
+        }
+        assertEquals(3, debugger.written.sum());
+        assertEquals(0, debugger.dropped.sum());
+    }
+}
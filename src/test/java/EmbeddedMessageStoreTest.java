@@ -0,0 +1,149 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/* the embedded store answers like InfluxMessageStore: sums count the messages that still count, and a deleted
+ * message reads back with valid 0, as InfluxDB's rewritten point does. */
+public class EmbeddedMessageStoreTest {
+    private static final long GUILD = 1, CHANNEL = 10, OTHER_CHANNEL = 20, ALICE = 100, BOB = 200;
+    private static final long HOUR = 3_600_000L;
+    private static final long START = 1_600_000_000_000L;
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chatkat-store");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(path);
+        }
+    }
+
+    private static MessageRecord message(long time, long channel, long author) {
+        return new MessageRecord(time, GUILD, channel, author, 1);
+    }
+
+    private int segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("g" + GUILD))) {
+            return (int) files.count();
+        }
+    }
+
+    @Test
+    public void recordsSpreadOverSegmentsReadBack() throws IOException {
+        EmbeddedMessageStore store = new EmbeddedMessageStore(directory, 4);
+        List<MessageRecord> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(message(START + i * HOUR, i % 2 == 0 ? CHANNEL : OTHER_CHANNEL, i < 7 ? ALICE : BOB));
+        }
+        records.add(new MessageRecord(START + 10 * HOUR, GUILD, CHANNEL, BOB, 0)); // no content: listed, not counted
+        store.write(records);
+        assertEquals(3, segments());
+
+        LongLongMap all = store.sumByAuthor(GUILD, 0, 0);
+        assertEquals(7, all.get(ALICE));
+        assertEquals(3, all.get(BOB));
+        LongLongMap channel = store.sumByAuthor(GUILD, CHANNEL, 0);
+        assertEquals(4, channel.get(ALICE));
+        assertEquals(1, channel.get(BOB));
+        LongLongMap recent = store.sumByAuthor(GUILD, 0, START + 6 * HOUR);
+        assertEquals(1, recent.get(ALICE));
+        assertEquals(3, recent.get(BOB));
+
+        assertEquals(START + 10 * HOUR, store.lastMessageTime(GUILD, CHANNEL));
+        assertEquals(START + 9 * HOUR, store.lastMessageTime(GUILD, OTHER_CHANNEL));
+        assertEquals(0, store.lastMessageTime(GUILD, 30));
+        assertEquals(0, store.sumByAuthor(2, 0, 0).size());
+        store.close();
+    }
+
+    @Test
+    public void tombstonesCancelTheirMessage() throws IOException {
+        EmbeddedMessageStore store = new EmbeddedMessageStore(directory, 4);
+        store.write(Arrays.asList(message(START, CHANNEL, ALICE), message(START + 1, CHANNEL, ALICE),
+                message(START + 2, CHANNEL, BOB)));
+        store.write(Arrays.asList(MessageRecord.deletion(START, GUILD, CHANNEL, ALICE),
+                MessageRecord.deletion(START + 2, GUILD, CHANNEL, BOB)));
+
+        LongLongMap counts = store.sumByAuthor(GUILD, 0, 0);
+        assertEquals(1, counts.get(ALICE));
+        assertEquals(0, counts.get(BOB));
+
+        List<MessageRecord> found = store.findAt(GUILD, CHANNEL, new long[]{START + 2, START, START + 1, START + 3});
+        found.sort(Comparator.comparingLong(record -> record.time));
+        assertEquals(3, found.size());
+        assertEquals(START, found.get(0).time);
+        assertEquals(ALICE, found.get(0).author);
+        assertEquals(0, found.get(0).valid);
+        assertEquals(1, found.get(1).valid);
+        assertEquals(BOB, found.get(2).author);
+        assertEquals(0, found.get(2).valid);
+
+        long[] perHour = new long[1];
+        store.loadBuckets(GUILD, START - HOUR, START + HOUR, HOUR, (channelID, authorID, bucket, count) -> {
+            assertEquals(START - Math.floorMod(START, HOUR), bucket);
+            perHour[0] += count;
+        });
+        assertEquals(1, perHour[0]);
+        store.close();
+    }
+
+    @Test
+    public void bucketsCoverTheRequestedRangeOnly() throws IOException {
+        EmbeddedMessageStore store = new EmbeddedMessageStore(directory, 4);
+        long hour = START - Math.floorMod(START, HOUR);
+        store.write(Arrays.asList(message(hour - 1, CHANNEL, ALICE), message(hour, CHANNEL, ALICE),
+                message(hour + HOUR - 1, OTHER_CHANNEL, ALICE), message(hour + HOUR, CHANNEL, BOB),
+                message(hour + 2 * HOUR, CHANNEL, BOB)));
+
+        List<String> buckets = new ArrayList<>();
+        store.loadBuckets(GUILD, hour, hour + 2 * HOUR, HOUR, (channelID, authorID, bucket, count) ->
+                buckets.add(channelID + "/" + authorID + "/" + (bucket - hour) / HOUR + "=" + count));
+        buckets.sort(null);
+        assertEquals(Arrays.asList("10/100/0=1", "10/200/1=1", "20/100/0=1"), buckets);
+        store.close();
+    }
+
+    @Test
+    public void reopeningReplaysTheSegments() throws IOException {
+        EmbeddedMessageStore store = new EmbeddedMessageStore(directory, 4);
+        for (int i = 0; i < 6; i++) store.write(Arrays.asList(message(START + i, CHANNEL, ALICE)));
+        store.write(Arrays.asList(MessageRecord.deletion(START + 5, GUILD, CHANNEL, ALICE)));
+        store.close();
+
+        // segments keep the capacity they were created with, whatever the setting is now
+        EmbeddedMessageStore reopened = new EmbeddedMessageStore(directory, 1000);
+        assertEquals(5, reopened.sumByAuthor(GUILD, 0, 0).get(ALICE));
+        assertEquals(START + 5, reopened.lastMessageTime(GUILD, CHANNEL));
+        assertEquals(0, reopened.findAt(GUILD, CHANNEL, new long[]{START + 5}).get(0).valid);
+
+        // appends continue in the partly filled last segment, then in a new one
+        reopened.write(Arrays.asList(message(START + 6, CHANNEL, BOB), message(START + 7, CHANNEL, BOB)));
+        assertEquals(3, segments());
+        LongLongMap counts = reopened.sumByAuthor(GUILD, CHANNEL, START + 4);
+        assertEquals(1, counts.get(ALICE));
+        assertEquals(2, counts.get(BOB));
+        reopened.close();
+
+        EmbeddedMessageStore again = new EmbeddedMessageStore(directory, 4);
+        assertEquals(2, again.sumByAuthor(GUILD, 0, 0).get(BOB));
+        assertEquals(START + 7, again.lastMessageTime(GUILD, CHANNEL));
+        again.close();
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// how reads are split between raw points and the hourly and daily rollups.
+public class InfluxMessageStoreTest {
+    private static final long MINUTE = 60_000L, HOUR = 60 * MINUTE, DAY = 24 * HOUR;
+    private static final long MIDNIGHT = 1_600_000_000_000L - 1_600_000_000_000L % DAY;
+
+    private static void assertRange(InfluxMessageStore.Range range, String prefix, long from, long until) {
+        assertEquals(prefix, range.prefix);
+        assertEquals(from, range.from);
+        assertEquals(until, range.until);
+    }
+
+    @Test
+    public void wholeDaysComeFromDailyRollups() {
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(MIDNIGHT, MIDNIGHT + 3 * DAY, true);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), "r1d_", MIDNIGHT, MIDNIGHT + 3 * DAY);
+    }
+
+    @Test
+    public void partialHoursAndDaysAtTheEdges() {
+        long from = MIDNIGHT + HOUR + 30 * MINUTE, until = MIDNIGHT + 3 * DAY + 2 * HOUR + 15 * MINUTE;
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(from, until, true);
+        assertEquals(5, ranges.size());
+        assertRange(ranges.get(0), "", from, MIDNIGHT + 2 * HOUR);
+        assertRange(ranges.get(1), "r1h_", MIDNIGHT + 2 * HOUR, MIDNIGHT + DAY);
+        assertRange(ranges.get(2), "r1d_", MIDNIGHT + DAY, MIDNIGHT + 3 * DAY);
+        assertRange(ranges.get(3), "r1h_", MIDNIGHT + 3 * DAY, MIDNIGHT + 3 * DAY + 2 * HOUR);
+        assertRange(ranges.get(4), "", MIDNIGHT + 3 * DAY + 2 * HOUR, until);
+    }
+
+    @Test
+    public void hourlyBucketsNeverReadDailyRollups() {
+        long from = MIDNIGHT + 30 * MINUTE, until = MIDNIGHT + 2 * DAY + 30 * MINUTE;
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(from, until, false);
+        assertEquals(3, ranges.size());
+        assertRange(ranges.get(0), "", from, MIDNIGHT + HOUR);
+        assertRange(ranges.get(1), "r1h_", MIDNIGHT + HOUR, MIDNIGHT + 2 * DAY);
+        assertRange(ranges.get(2), "", MIDNIGHT + 2 * DAY, until);
+    }
+
+    @Test
+    public void lessThanOneDayUsesHourlyRollups() {
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(MIDNIGHT + HOUR, MIDNIGHT + 5 * HOUR, true);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), "r1h_", MIDNIGHT + HOUR, MIDNIGHT + 5 * HOUR);
+    }
+
+    @Test
+    public void rangesWithoutAWholeHourReadRawPoints() {
+        long from = MIDNIGHT + 10 * MINUTE, until = MIDNIGHT + 50 * MINUTE;
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(from, until, true);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), "", from, until);
+
+        // across an hour boundary, but still no whole hour
+        ranges = InfluxMessageStore.plan(MIDNIGHT + 50 * MINUTE, MIDNIGHT + 70 * MINUTE, true);
+        assertEquals(1, ranges.size());
+        assertRange(ranges.get(0), "", MIDNIGHT + 50 * MINUTE, MIDNIGHT + 70 * MINUTE);
+    }
+
+    @Test
+    public void openRangesReadTheCurrentHourRaw() {
+        long before = System.currentTimeMillis();
+        List<InfluxMessageStore.Range> ranges = InfluxMessageStore.plan(MIDNIGHT, Long.MAX_VALUE, true);
+        InfluxMessageStore.Range last = ranges.get(ranges.size() - 1);
+        assertEquals("", last.prefix);
+        assertEquals(Long.MAX_VALUE, last.until);
+        assertTrue(last.from <= before + HOUR && last.from > before - HOUR && last.from % HOUR == 0);
+        assertEquals("time >= " + last.from + "ms", last.where());
+        assertEquals("r1d_", ranges.get(0).prefix);
+        // the ranges are contiguous
+        for (int i = 1; i < ranges.size(); i++) assertEquals(ranges.get(i - 1).until, ranges.get(i).from);
+    }
+
+    @Test
+    public void rangesFormatTheirFilterAndField() {
+        InfluxMessageStore.Range raw = new InfluxMessageStore.Range("", 1000, 2000);
+        assertEquals("time >= 1000ms AND time < 2000ms", raw.where());
+        assertEquals("isValid", raw.field());
+        assertEquals("count", new InfluxMessageStore.Range("r1h_", 0, HOUR).field());
+    }
+}
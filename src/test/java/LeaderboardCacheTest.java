@@ -0,0 +1,71 @@
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LeaderboardCacheTest {
+    private final AtomicInteger computed = new AtomicInteger();
+
+    // a leaderboard that takes a while to compute, numbered by computation.
+    private Mono<String> slowLeaderboard() {
+        return Mono.fromCallable(() -> "leaderboard " + computed.incrementAndGet()).delayElement(Duration.ofMillis(100));
+    }
+
+    @Test
+    public void identicalConcurrentRequestsShareOneComputation() {
+        LeaderboardCache<String> cache = new LeaderboardCache<>(10_000, 100);
+        List<String> outputs = Flux.range(0, 50)
+                .flatMap(i -> cache.get(1L, 10L, "-day", false, this::slowLeaderboard))
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertEquals(50, outputs.size());
+        for (String output : outputs) assertEquals("leaderboard 1", output);
+        assertEquals(1, computed.get());
+        assertEquals(1, cache.misses.sum());
+        assertEquals(49, cache.coalesced.sum());
+
+        assertEquals("leaderboard 1", cache.get(1L, 10L, "-day", false, this::slowLeaderboard).block());
+        assertEquals(1, cache.hits.sum());
+    }
+
+    @Test
+    public void differentRequestsAreComputedSeparately() {
+        LeaderboardCache<String> cache = new LeaderboardCache<>(10_000, 100);
+        cache.get(1L, 10L, "-day", false, this::slowLeaderboard).block();
+        cache.get(1L, 10L, "-week", false, this::slowLeaderboard).block();
+        cache.get(1L, 0L, "-day", false, this::slowLeaderboard).block();
+        cache.get(1L, 10L, "-day", true, this::slowLeaderboard).block();
+        assertEquals(4, computed.get());
+    }
+
+    @Test
+    public void invalidationAndExpiryRecompute() throws InterruptedException {
+        LeaderboardCache<String> cache = new LeaderboardCache<>(200, 100);
+        cache.get(1L, 10L, "", false, this::slowLeaderboard).block();
+        cache.invalidate(2L); // another guild
+        assertEquals("leaderboard 1", cache.get(1L, 10L, "", false, this::slowLeaderboard).block());
+
+        cache.invalidate(1L);
+        assertEquals("leaderboard 2", cache.get(1L, 10L, "", false, this::slowLeaderboard).block());
+
+        Thread.sleep(300);
+        assertEquals("leaderboard 3", cache.get(1L, 10L, "", false, this::slowLeaderboard).block());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        LeaderboardCache<String> cache = new LeaderboardCache<>(10_000, 100);
+        try {
+            cache.get(1L, 10L, "", false, () -> Mono.error(new IllegalStateException("database down"))).block();
+            fail("the error should reach the request");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("leaderboard 1", cache.get(1L, 10L, "", false, this::slowLeaderboard).block());
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// loading a guild from the database while live updates keep arriving.
+public class LeaderboardIndexTest {
+    private static final long GUILD = 1, CHANNEL = 10, ALICE = 100, BOB = 200;
+    private static final long HOUR = LeaderboardIndex.HOUR, DAY = LeaderboardIndex.DAY;
+
+    private final long bound = System.currentTimeMillis() - HOUR;
+    private final LeaderboardIndex index = new LeaderboardIndex(TimeUnit.DAYS.toMillis(10));
+
+    // what the database holds before the bound: 5 messages by Alice and 2 by Bob, on the day before it
+    private void readDatabase() {
+        long day = Math.floorDiv(bound - DAY, DAY) * DAY;
+        index.loadDay(GUILD, CHANNEL, ALICE, day, 5);
+        index.loadDay(GUILD, CHANNEL, BOB, day, 2);
+    }
+
+    private long count(long authorID) {
+        return index.countByAuthor(GUILD, CHANNEL, 0).get(authorID);
+    }
+
+    @Test
+    public void liveMessagesAreCountedOnceTheGuildIsLoaded() {
+        index.holdUpdates(GUILD);
+        index.add(GUILD, CHANNEL, ALICE, bound + 1, 1);
+        int written = index.resetCounts(GUILD);
+        readDatabase();
+        index.add(GUILD, CHANNEL, BOB, bound + 2, 1);
+        assertFalse(index.isLoaded(GUILD));
+        assertEquals(5, count(ALICE)); // the live message is held back until the load is done
+
+        assertTrue(index.finishLoad(GUILD, bound, written));
+        assertTrue(index.isLoaded(GUILD));
+        assertEquals(6, count(ALICE));
+        assertEquals(3, count(BOB));
+        index.add(GUILD, CHANNEL, BOB, bound + 3, 1);
+        assertEquals(4, count(BOB));
+    }
+
+    @Test
+    public void olderUpdatesWrittenBeforeTheReadAreLeftToTheDatabase() {
+        index.holdUpdates(GUILD);
+        // a delete of an older message, written before the database is read, is already in what the read returns
+        index.add(GUILD, CHANNEL, ALICE, bound - DAY, -1);
+        int written = index.resetCounts(GUILD);
+        readDatabase();
+        assertTrue(index.finishLoad(GUILD, bound, written));
+        assertEquals(5, count(ALICE));
+    }
+
+    @Test
+    public void olderUpdatesDuringTheReadStartItOver() {
+        index.holdUpdates(GUILD);
+        int written = index.resetCounts(GUILD);
+        readDatabase();
+        index.add(GUILD, CHANNEL, ALICE, bound - DAY, -1);
+        assertFalse(index.finishLoad(GUILD, bound, written));
+        assertFalse(index.isLoaded(GUILD));
+
+        // after a write barrier the delete is in the database, which now has 4 messages by Alice
+        written = index.resetCounts(GUILD);
+        long day = Math.floorDiv(bound - DAY, DAY) * DAY;
+        index.loadDay(GUILD, CHANNEL, ALICE, day, 4);
+        index.loadDay(GUILD, CHANNEL, BOB, day, 2);
+        assertTrue(index.finishLoad(GUILD, bound, written));
+        assertEquals(4, count(ALICE));
+        assertEquals(2, count(BOB));
+    }
+
+    @Test
+    public void anAbandonedLoadAppliesUpdatesAgain() {
+        index.holdUpdates(GUILD);
+        index.resetCounts(GUILD);
+        readDatabase();
+        index.abandonLoad(GUILD);
+        assertFalse(index.isLoaded(GUILD));
+        assertEquals(0, count(ALICE));
+        index.add(GUILD, CHANNEL, ALICE, bound + 1, 1);
+        assertEquals(1, count(ALICE));
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LeaderboardTest {
+    private final List<long[]> labelled = new ArrayList<>(); // the authors of every label lookup
+
+    // author i + 1 sent counts[i] messages
+    private Leaderboard leaderboard(long... counts) {
+        LongLongMap authorCounts = new LongLongMap();
+        for (int i = 0; i < counts.length; i++) authorCounts.put(i + 1, counts[i]);
+        return new Leaderboard(authorCounts, authorIDs -> {
+            labelled.add(authorIDs);
+            LongObjectMap<String> labels = new LongObjectMap<>(authorIDs.length);
+            for (long authorID : authorIDs) labels.put(authorID, "user" + authorID);
+            return Mono.just(labels);
+        });
+    }
+
+    @Test
+    public void pagesRankByCountThenID() {
+        Leaderboard leaderboard = leaderboard(5, 9, 5, 1, 7);
+        assertEquals(Collections.singletonList("1. user2 sent **9** messages.\n2. user5 sent **7** messages.\n"
+                + "*Page 1 of 3*"), leaderboard.page(0, 2).block());
+        assertEquals(Collections.singletonList("3. user1 sent **5** messages.\n4. user3 sent **5** messages.\n"
+                + "*Page 2 of 3*"), leaderboard.page(1, 2).block());
+        assertEquals(Collections.singletonList("5. user4 sent **1** messages.\n*Page 3 of 3*"),
+                leaderboard.page(2, 2).block());
+    }
+
+    @Test
+    public void labelsAreOnlyResolvedForThePage() {
+        long[] counts = new long[10_000];
+        for (int i = 0; i < counts.length; i++) counts[i] = i;
+        Leaderboard leaderboard = leaderboard(counts);
+        leaderboard.page(0, 10).block();
+        leaderboard.page(0, 10).block(); // rendered pages are kept
+        assertEquals(1, labelled.size());
+        assertArrayEquals(new long[]{10_000, 9_999, 9_998, 9_997, 9_996, 9_995, 9_994, 9_993, 9_992, 9_991},
+                labelled.get(0));
+    }
+
+    @Test
+    public void usersWithoutANameAreListedByID() {
+        LongLongMap authorCounts = new LongLongMap();
+        authorCounts.put(1, 3);
+        authorCounts.put(2, 2);
+        authorCounts.put(3, 1);
+        Leaderboard leaderboard = new Leaderboard(authorCounts, authorIDs -> {
+            LongObjectMap<String> labels = new LongObjectMap<>(authorIDs.length);
+            labels.put(1, "");
+            labels.put(3, "user3"); // no label at all for author 2
+            return Mono.just(labels);
+        });
+        assertEquals(Collections.singletonList("1. 1 sent **3** messages.\n2. 2 sent **2** messages.\n"
+                + "3. user3 sent **1** messages."), leaderboard.page(0, 10).block());
+
+        MemberLabelCache cache = new MemberLabelCache(60_000, 10);
+        cache.put(1, 42, null);
+        cache.put(1, 43, "");
+        cache.put(1, 44, "name");
+        assertEquals("42", cache.get(1, 42));
+        assertEquals("43", cache.get(1, 43));
+        assertEquals("name", cache.get(1, 44));
+    }
+
+    @Test
+    public void rankWithoutRankingEveryone() {
+        Leaderboard leaderboard = leaderboard(5, 9, 5, 1, 7);
+        assertArrayEquals(new long[]{3, 5}, leaderboard.rankOf(1));
+        assertArrayEquals(new long[]{4, 5}, leaderboard.rankOf(3));
+        assertArrayEquals(new long[]{1, 9}, leaderboard.rankOf(2));
+        assertNull(leaderboard.rankOf(42));
+    }
+
+    @Test
+    public void longOutputIsSplitBetweenLines() {
+        String line = String.join("", Collections.nCopies(99, "x")); // 100 characters with the line break
+        List<String> messages = Leaderboard.split(Collections.nCopies(45, line));
+        assertEquals(3, messages.size());
+        for (String message : messages) assertTrue(message.length() <= Leaderboard.MESSAGE_LIMIT);
+        assertEquals(20, messages.get(0).split("\n").length);
+        assertEquals(5, messages.get(2).split("\n").length);
+        assertEquals(Arrays.asList(""), Leaderboard.split(Collections.emptyList()));
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// the encoder must write exactly the bytes influxdb-java's Point writes for the same record.
+public class LineProtocolEncoderTest {
+    private static byte[] client(MessageRecord... records) {
+        StringBuilder lines = new StringBuilder();
+        for (MessageRecord record : records) lines.append(InfluxMessageStore.point(record).lineProtocol()).append('\n');
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encoded(LineProtocolEncoder encoder, MessageRecord... records) {
+        encoder.reset();
+        for (MessageRecord record : records) encoder.encode(record);
+        byte[] bytes = new byte[encoder.length()];
+        System.arraycopy(encoder.buffer(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Test
+    public void matchesPointLineProtocol() {
+        MessageRecord record = new MessageRecord(1_600_000_000_123L, 81384788765712384L, 381870553235193857L,
+                80351110224678912L, 1);
+        assertEquals("g81384788765712384,authorID=a80351110224678912,channelID=c381870553235193857 isValid=1i "
+                        + "1600000000123000000\n",
+                new String(encoded(new LineProtocolEncoder(16), record), StandardCharsets.US_ASCII));
+        assertArrayEquals(client(record), encoded(new LineProtocolEncoder(16), record));
+    }
+
+    @Test
+    public void matchesPointLineProtocolForRandomBatches() {
+        SplittableRandom random = new SplittableRandom(42);
+        // a small initial buffer, so batches also exercise growing it
+        LineProtocolEncoder encoder = new LineProtocolEncoder(16);
+        for (int batch = 0; batch < 100; batch++) {
+            MessageRecord[] records = new MessageRecord[1 + random.nextInt(500)];
+            for (int i = 0; i < records.length; i++) {
+                long time = DatabaseHandler.DISCORD_EPOCH + random.nextLong(TimeUnit.DAYS.toMillis(3650));
+                long guild = random.nextLong(1, Long.MAX_VALUE), channel = random.nextLong(1, 1L << 60),
+                        author = random.nextLong(1, 1000);
+                records[i] = random.nextInt(10) == 0 ? MessageRecord.deletion(time, guild, channel, author)
+                        : new MessageRecord(time, guild, channel, author, random.nextInt(2));
+            }
+            assertArrayEquals(client(records), encoded(encoder, records));
+        }
+    }
+}
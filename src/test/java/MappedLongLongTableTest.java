@@ -0,0 +1,169 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MappedLongLongTableTest {
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chatkat-table");
+        file = directory.resolve("table.bin");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        for (long key = 1; key <= 100; key++) table.put(key, key * 10);
+        table.put(50, -7);
+        table.close();
+
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(100, reopened.size());
+        assertEquals(-7, reopened.get(50));
+        assertEquals(1000, reopened.get(100));
+        assertEquals(0, reopened.get(101));
+        reopened.close();
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() throws IOException {
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        long initialBytes = Files.size(file);
+        for (long key = 1; key <= 5000; key++) table.put(key << 22, key);
+        assertEquals(5000, table.size());
+        assertTrue(Files.size(file) > initialBytes);
+        assertFalse(Files.exists(directory.resolve("table.bin.resize")));
+        for (long key = 1; key <= 5000; key++) assertEquals(key, table.get(key << 22));
+        table.close();
+
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(5000, reopened.size());
+        assertEquals(4321, reopened.get(4321L << 22));
+        reopened.close();
+    }
+
+    @Test
+    public void removalKeepsCollidingKeysReachable() throws IOException {
+        // many more keys than slots per probe run, checked against a HashMap after every random put or remove
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            long key = 1 + random.nextInt(3000);
+            if (random.nextInt(3) == 0) {
+                Long removed = expected.remove(key);
+                assertEquals(removed == null ? 0 : removed, table.remove(key));
+            } else {
+                long value = random.nextLong() | 1;
+                expected.put(key, value);
+                table.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (long key = 1; key <= 3000; key++) assertEquals((long) expected.getOrDefault(key, 0L), table.get(key));
+        table.close();
+
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(expected.size(), reopened.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assertEquals((long) entry.getValue(), reopened.get(entry.getKey()));
+        reopened.close();
+    }
+
+    @Test
+    public void removeIfCompactsTheFile() throws IOException {
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        for (long key = 1; key <= 100000; key++) table.put(key, key);
+        long grownBytes = Files.size(file);
+
+        assertEquals(0, table.removeIf((key, value) -> key > 100000));
+        assertEquals(grownBytes, Files.size(file));
+        assertEquals(99900, table.removeIf((key, value) -> value <= 99900));
+        assertEquals(100, table.size());
+        assertTrue(Files.size(file) < grownBytes / 10);
+        assertEquals(0, table.get(99900));
+        assertEquals(99901, table.get(99901));
+
+        table.put(1, 1);
+        table.close();
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(101, reopened.size());
+        assertEquals(100000, reopened.get(100000));
+        reopened.close();
+    }
+
+    @Test
+    public void changesWhileFrozenAreAppliedToTheCopy() throws IOException {
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        for (long key = 1; key <= 100; key++) table.put(key, key);
+        table.freeze();
+        table.put(50, -50);
+        table.put(101, 101);
+        assertEquals(10, table.remove(10));
+        assertEquals(-50, table.get(50));
+        assertEquals(0, table.get(10));
+        assertEquals(100, table.size());
+
+        // the copy reads the frozen file only; later changes still reach the swapped-in table
+        MappedLongLongTable.Copy copy = table.copy((key, value) -> key <= 5);
+        assertEquals(5, copy.dropped);
+        table.put(200, 200);
+        table.remove(101);
+        table.put(10, 11);
+        table.remove(20);
+        assertEquals(5, table.swap(copy, (key, value) -> key <= 5));
+        assertFalse(table.frozen());
+        assertFalse(Files.exists(directory.resolve("table.bin.resize")));
+        assertEquals(95, table.size());
+        assertEquals(0, table.get(3));
+        assertEquals(-50, table.get(50));
+        assertEquals(11, table.get(10));
+        assertEquals(0, table.get(20));
+        assertEquals(0, table.get(101));
+        assertEquals(200, table.get(200));
+        table.close();
+
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(95, reopened.size());
+        assertEquals(200, reopened.get(200));
+        assertEquals(0, reopened.get(20));
+        reopened.close();
+    }
+
+    @Test
+    public void changesWhileFrozenReachTheFileOnThaw() throws IOException {
+        MappedLongLongTable table = new MappedLongLongTable(file, 16);
+        for (long key = 1; key <= 100; key++) table.put(key, key);
+        table.freeze();
+        assertNull(table.copy((key, value) -> false)); // nothing to drop or grow
+        table.put(101, 101);
+        table.remove(1);
+        table.close();
+
+        MappedLongLongTable reopened = new MappedLongLongTable(file, 16);
+        assertEquals(100, reopened.size());
+        assertEquals(101, reopened.get(101));
+        assertEquals(0, reopened.get(1));
+        reopened.close();
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MessageAuthorIndexTest {
+    private static final long GUILD = 1, CHANNEL = 2, AUTHOR = 3, OTHER_AUTHOR = 4;
+
+    private Path directory;
+    private String file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chatkat-index");
+        file = directory.resolve("messages.idx").toString();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    // a Snowflake sent at the given number of milliseconds after the Discord epoch
+    private static long message(long millis) {
+        return millis << 22 | 1;
+    }
+
+    @Test
+    public void aMessageIsCountedAndDeletedOnce() {
+        MessageAuthorIndex index = MessageAuthorIndex.open("", 16);
+        assertTrue(index.add(message(10), CHANNEL, GUILD, AUTHOR, true));
+        assertFalse(index.add(message(10), CHANNEL, GUILD, AUTHOR, true));
+        assertTrue(index.add(message(11), CHANNEL, GUILD, OTHER_AUTHOR, false));
+
+        assertEquals(AUTHOR, index.markDeleted(message(10)));
+        assertEquals(MessageAuthorIndex.NOT_COUNTED, index.markDeleted(message(10)));
+        assertEquals(MessageAuthorIndex.NOT_COUNTED, index.markDeleted(message(11)));
+        assertEquals(MessageAuthorIndex.UNKNOWN, index.markDeleted(message(12)));
+        assertEquals(GUILD, index.guildOf(CHANNEL));
+    }
+
+    @Test
+    public void aForgottenMessageCanBeAddedAgain() {
+        MessageAuthorIndex index = MessageAuthorIndex.open("", 16);
+        index.add(message(10), CHANNEL, GUILD, AUTHOR, true);
+        index.forget(message(10));
+        assertEquals(0, index.size());
+        assertEquals(MessageAuthorIndex.UNKNOWN, index.markDeleted(message(10)));
+        assertTrue(index.add(message(10), CHANNEL, GUILD, AUTHOR, true));
+    }
+
+    @Test
+    public void pruneDropsOlderMessagesOnly() {
+        MessageAuthorIndex index = MessageAuthorIndex.open(file, 16);
+        for (long millis = 1; millis <= 3000; millis++) index.add(message(millis), CHANNEL, GUILD, AUTHOR, true);
+        index.markDeleted(message(2500));
+
+        assertEquals(2000, index.prune(2001L << 22));
+        assertEquals(1000, index.size());
+        assertEquals(MessageAuthorIndex.UNKNOWN, index.markDeleted(message(2000)));
+        assertEquals(AUTHOR, index.markDeleted(message(2001)));
+        assertEquals(MessageAuthorIndex.NOT_COUNTED, index.markDeleted(message(2500)));
+        assertEquals(0, index.prune(2001L << 22));
+        index.close();
+    }
+
+    @Test
+    public void theIndexSurvivesReopening() {
+        MessageAuthorIndex index = MessageAuthorIndex.open(file, 16);
+        for (long millis = 1; millis <= 2000; millis++) index.add(message(millis), CHANNEL, GUILD, AUTHOR, true);
+        index.markDeleted(message(5));
+        index.forget(message(6));
+        index.close();
+
+        MessageAuthorIndex reopened = MessageAuthorIndex.open(file, 16);
+        assertEquals(1999, reopened.size());
+        assertEquals(GUILD, reopened.guildOf(CHANNEL));
+        assertFalse(reopened.add(message(1), CHANNEL, GUILD, AUTHOR, true));
+        assertTrue(reopened.add(message(6), CHANNEL, GUILD, AUTHOR, true));
+        assertEquals(MessageAuthorIndex.NOT_COUNTED, reopened.markDeleted(message(5)));
+        assertEquals(AUTHOR, reopened.markDeleted(message(2000)));
+        reopened.close();
+    }
+
+    @Test
+    public void theIndexGrowsOffTheCallingThread() {
+        MessageAuthorIndex index = MessageAuthorIndex.open(file, 16);
+        for (long millis = 1; millis <= 20000; millis++) {
+            assertTrue(index.add(message(millis), CHANNEL + millis % 3000, GUILD, AUTHOR, true));
+        }
+        assertEquals(20000, index.size());
+        assertEquals(AUTHOR, index.markDeleted(message(12345)));
+        assertEquals(GUILD, index.guildOf(CHANNEL + 2999));
+        index.close();
+
+        MessageAuthorIndex reopened = MessageAuthorIndex.open(file, 16);
+        assertEquals(20000, reopened.size());
+        assertEquals(MessageAuthorIndex.NOT_COUNTED, reopened.markDeleted(message(12345)));
+        assertEquals(AUTHOR, reopened.markDeleted(message(20000)));
+        assertEquals(GUILD, reopened.guildOf(CHANNEL + 1500));
+        reopened.close();
+    }
+}
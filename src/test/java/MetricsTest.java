@@ -0,0 +1,94 @@
+import org.junit.Test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+// the Prometheus exposition text and the power-of-two histograms behind it.
+public class MetricsTest {
+
+    @Test
+    public void everyMetricIsExposedWithItsLabels() {
+        Metrics metrics = new Metrics().labelled("shard", "0");
+        LongAdder events = metrics.counter("chatkat_events_total", "Gateway events", "type", "say \"hi\"");
+        events.add(3);
+        metrics.gauge("chatkat_queue", "Queued writes", () -> 2);
+        metrics.gauges("chatkat_lag_seconds", "Backfill lag",
+                sample -> sample.accept(new String[]{"channel", "10"}, 2.5));
+        Metrics.Histogram sizes = metrics.histogram("chatkat_batch", "Batch sizes", new Metrics.Histogram(2, 1));
+        sizes.record(1);
+        sizes.record(2);
+        sizes.record(10);
+
+        assertEquals("# HELP chatkat_batch Batch sizes\n"
+                + "# TYPE chatkat_batch histogram\n"
+                + "chatkat_batch_bucket{shard=\"0\",le=\"1\"} 1\n"
+                + "chatkat_batch_bucket{shard=\"0\",le=\"2\"} 2\n"
+                + "chatkat_batch_bucket{shard=\"0\",le=\"+Inf\"} 3\n"
+                + "chatkat_batch_sum{shard=\"0\"} 13\n"
+                + "chatkat_batch_count{shard=\"0\"} 3\n"
+                + "# HELP chatkat_events_total Gateway events\n"
+                + "# TYPE chatkat_events_total counter\n"
+                + "chatkat_events_total{shard=\"0\",type=\"say \\\"hi\\\"\"} 3\n"
+                + "# HELP chatkat_lag_seconds Backfill lag\n"
+                + "# TYPE chatkat_lag_seconds gauge\n"
+                + "chatkat_lag_seconds{shard=\"0\",channel=\"10\"} 2.5\n"
+                + "# HELP chatkat_queue Queued writes\n"
+                + "# TYPE chatkat_queue gauge\n"
+                + "chatkat_queue{shard=\"0\"} 2\n", metrics.prometheus());
+    }
+
+    @Test
+    public void aNameKeepsItsType() {
+        Metrics metrics = new Metrics();
+        metrics.counter("chatkat_events_total", "Gateway events");
+        try {
+            metrics.gauge("chatkat_events_total", "Gateway events", () -> 0);
+            fail("registered a counter again as a gauge");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void bucketsEndAtPowersOfTwo() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("sizes", "Sizes", new Metrics.Histogram(4, 1));
+        for (long value : new long[]{0, 1, 2, 3, 4, 5, 8, 9, 1000}) histogram.record(value);
+
+        String text = metrics.prometheus();
+        // le is cumulative: 0 and 1 are <= 1, 2 is <= 2, 3 and 4 are <= 4, 5 and 8 are <= 8, the rest is larger
+        assertTrue(text.contains("sizes_bucket{le=\"1\"} 2\n"));
+        assertTrue(text.contains("sizes_bucket{le=\"2\"} 3\n"));
+        assertTrue(text.contains("sizes_bucket{le=\"4\"} 5\n"));
+        assertTrue(text.contains("sizes_bucket{le=\"8\"} 7\n"));
+        assertTrue(text.contains("sizes_bucket{le=\"+Inf\"} 9\n"));
+        assertTrue(text.contains("sizes_sum 1032\n"));
+        assertEquals(9, histogram.count());
+    }
+
+    @Test
+    public void quantilesAreBucketBounds() {
+        Metrics.Histogram histogram = new Metrics.Histogram(10, 1);
+        assertEquals(0, histogram.quantile(0.5), 0);
+        for (int i = 0; i < 50; i++) histogram.record(1);
+        for (int i = 0; i < 40; i++) histogram.record(3);
+        for (int i = 0; i < 10; i++) histogram.record(100);
+
+        assertEquals(1, histogram.quantile(0.5), 0);
+        assertEquals(4, histogram.quantile(0.9), 0);
+        assertEquals(128, histogram.quantile(0.99), 0);
+
+        // values beyond the last bound report that bound
+        Metrics.Histogram small = new Metrics.Histogram(2, 1);
+        small.record(1000);
+        assertEquals(2, small.quantile(0.5), 0);
+    }
+
+    @Test
+    public void latenciesAreReportedInSeconds() {
+        Metrics.Histogram latency = Metrics.Histogram.latency();
+        latency.record(3_000_000);
+        assertEquals(3, latency.sum(), 1e-9);
+        assertEquals(4.194304, latency.quantile(0.5), 1e-9); // 2^22 microseconds
+    }
+}
@@ -0,0 +1,185 @@
+import discord4j.core.object.util.Snowflake;
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.BlockingOperationError;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/* runs the request and startup paths of DatabaseHandler on threads that BlockHound treats as event-loop threads.
+ * any blocking call made on them (a database query, a .block(), a sleep) fails the test. */
+public class NonBlockingTest {
+    // stands in for the gateway event loop
+    private static final Scheduler eventLoop = Schedulers.newParallel("test-event-loop", 2);
+
+    @BeforeClass
+    public static void installBlockHound() {
+        BlockHound.builder()
+                .nonBlockingThreadPredicate(current -> current.or(thread -> thread.getName().startsWith("test-event-loop")))
+                .install();
+    }
+
+    // InfluxDB stand-in whose queries sleep like a network round trip and return an empty result per statement.
+    private static InfluxDB slowInfluxDB() {
+        return (InfluxDB) Proxy.newProxyInstance(InfluxDB.class.getClassLoader(), new Class<?>[]{InfluxDB.class},
+                (proxy, method, args) -> {
+                    if (method.getReturnType() != QueryResult.class) return null;
+                    Thread.sleep(5);
+                    int statements = ((Query) args[0]).getCommand().split(";").length;
+                    QueryResult result = new QueryResult();
+                    result.setResults(Collections.nCopies(statements, new QueryResult.Result()));
+                    return result;
+                });
+    }
+
+    // handler with a stand-in database and user labels that need no Discord connection.
+    private static DatabaseHandler handler() {
+        Properties properties = new Properties();
+        properties.setProperty("databaseName", "ChatKatTest");
+        return new DatabaseHandler(null, properties, new InfluxMessageStore(slowInfluxDB(), "ChatKatTest")) {
+            @Override
+            Mono<String> getUserLabel(long authorID, Snowflake guildID) {
+                return Mono.just("user" + authorID);
+            }
+        };
+    }
+
+    private static boolean causedByBlocking(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BlockingOperationError) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void blockingOnEventLoopIsDetected() {
+        try {
+            Mono.fromCallable(() -> {
+                Thread.sleep(1);
+                return 1;
+            }).subscribeOn(eventLoop).block();
+            fail("BlockHound should reject Thread.sleep on an event-loop thread");
+        } catch (Throwable error) {
+            assertTrue(causedByBlocking(error));
+        }
+    }
+
+    @Test
+    public void leaderboardFromIndexDoesNotBlock() {
+        DatabaseHandler handler = handler();
+        long now = System.currentTimeMillis();
+        handler.index.add(1L, 10L, 100L, now, 1);
+        handler.index.add(1L, 10L, 100L, now, 1);
+        handler.index.add(1L, 10L, 101L, now, 1);
+        handler.index.markLoaded(1L);
+
+        String output = Mono.defer(() -> handler.renderLeaderboard(1L, 10L, false, 0, false))
+                .subscribeOn(eventLoop)
+                .block();
+        assertEquals("1. user100 sent **2** messages.\n2. user101 sent **1** messages.", output);
+    }
+
+    @Test
+    public void leaderboardFallbackQueriesOffTheEventLoop() {
+        DatabaseHandler handler = handler();
+        String output = Mono.defer(() -> handler.renderLeaderboard(2L, 20L, true, 0, false))
+                .subscribeOn(eventLoop)
+                .block();
+        assertEquals("", output);
+    }
+
+    @Test
+    public void indexLoadsOffTheEventLoop() {
+        DatabaseHandler handler = handler();
+        Mono.defer(() -> handler.loadIndex(Snowflake.of(3L)))
+                .subscribeOn(eventLoop)
+                .block();
+        assertTrue(handler.index.isLoaded(3L));
+    }
+
+    @Test
+    public void fullWriteQueueDoesNotBlockTheEventLoop() throws Exception {
+        // a store whose writes hang until released, like a database that stopped answering
+        CountDownLatch stalled = new CountDownLatch(1), release = new CountDownLatch(1);
+        List<MessageRecord> stored = Collections.synchronizedList(new ArrayList<>());
+        MessageStore store = new MessageStore() {
+            @Override
+            public void write(List<MessageRecord> records) {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                stored.addAll(records);
+            }
+
+            @Override
+            public long lastMessageTime(long guildID, long channelID) {
+                return 0;
+            }
+
+            @Override
+            public List<MessageRecord> findAt(long guildID, long channelID, long[] times) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public LongLongMap sumByAuthor(long guildID, long channelID, long sinceMillis) {
+                return new LongLongMap();
+            }
+
+            @Override
+            public void loadBuckets(long guildID, long fromMillis, long untilMillis, long bucketMillis,
+                                    BucketConsumer consumer) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Path spillFile = Files.createTempFile("chatkat-spill", ".bin");
+        Files.delete(spillFile);
+        WriteBehindPipeline writes = new WriteBehindPipeline(store, 10, 5, 10, 0,
+                WriteBehindPipeline.OverflowPolicy.SPILL, spillFile, 1 << 20);
+        try {
+            writes.offer(new MessageRecord(0, 1, 1, 1, 1));
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+
+            // 10 records fill the queue, 10 more wait in the overflow, the rest are dropped; none of it waits
+            int accepted = Mono.fromCallable(() -> {
+                int offered = 0;
+                for (long time = 1; time <= 100; time++) if (writes.offer(new MessageRecord(time, 1, 1, 1, 1))) offered++;
+                return offered;
+            }).subscribeOn(eventLoop).block(Duration.ofSeconds(10));
+            assertEquals(20, accepted);
+            assertEquals(80, writes.dropped.sum());
+
+            release.countDown();
+            writes.flush().block(Duration.ofSeconds(10));
+            assertEquals(21, stored.size());
+            for (int i = 0; i < stored.size(); i++) assertEquals(i, stored.get(i).time);
+        } finally {
+            release.countDown();
+            writes.close();
+            Files.deleteIfExists(spillFile);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ShardsTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chatkat-shards");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    private static Properties settings(String... keysAndValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keysAndValues.length; i += 2) properties.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        return properties;
+    }
+
+    private Properties stateIn(Path directory, String... keysAndValues) {
+        Properties properties = settings(keysAndValues);
+        properties.setProperty("checkpointFile", directory.resolve("checkpoints.bin").toString());
+        properties.setProperty("spillFile", directory.resolve("spill.bin").toString());
+        properties.setProperty("messageIndexFile", directory.resolve("messages.idx").toString());
+        properties.setProperty("rollupFile", directory.resolve("rollups.bin").toString());
+        return properties;
+    }
+
+    @Test
+    public void aSingleShardByDefault() {
+        Shards shards = new Shards(new Properties());
+        assertEquals(1, shards.count);
+        assertEquals(0, shards.first);
+        assertEquals(0, shards.last);
+        assertEquals(1, shards.size());
+    }
+
+    @Test
+    public void theRangeDefaultsToEveryShard() {
+        Shards shards = new Shards(settings("shardCount", "8"));
+        assertEquals(0, shards.first);
+        assertEquals(7, shards.last);
+        assertEquals(8, shards.size());
+
+        shards = new Shards(settings("shardCount", "8", "shardFirst", "2", "shardLast", "5"));
+        assertEquals(2, shards.first);
+        assertEquals(5, shards.last);
+        assertEquals(4, shards.size());
+    }
+
+    @Test
+    public void invalidRangesAreRejected() {
+        String[][] invalid = {{"shardCount", "0"}, {"shardCount", "4", "shardLast", "4"},
+                {"shardCount", "4", "shardFirst", "3", "shardLast", "2"}, {"shardCount", "4", "shardFirst", "-1"}};
+        for (String[] range : invalid) {
+            try {
+                new Shards(settings(range));
+                fail("accepted " + String.join(",", range));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void shardFilesAreNamedByIndexAndCount() {
+        assertEquals("checkpoints.bin", Shards.shardFile("checkpoints.bin", 0, 1));
+        assertEquals("checkpoints-shard3of8.bin", Shards.shardFile("checkpoints.bin", 3, 8));
+        assertEquals("data/spill-shard0of2.bin", Shards.shardFile("data/spill.bin", 0, 2));
+        assertEquals("data.d/messages-shard1of2", Shards.shardFile("data.d/messages", 1, 2));
+        assertEquals("state/.index-shard1of2", Shards.shardFile("state/.index", 1, 2));
+    }
+
+    @Test
+    public void aSingleShardKeepsItsSettings() {
+        Properties properties = settings("backfillConcurrency", "10", "checkpointFile", "checkpoints.bin");
+        Properties shard = new Shards(properties).propertiesFor(0);
+        assertEquals(properties, shard);
+    }
+
+    @Test
+    public void processLimitsAreSplitBetweenItsShards() {
+        Shards shards = new Shards(settings("shardCount", "8", "shardFirst", "4", "shardLast", "6",
+                "backfillConcurrency", "10", "messageIndexCapacity", "900", "backfillGlobalRequestsPerSecond", "30",
+                "messageIndexFile", "messages.idx", "debugDirectory", "debug"));
+        Properties shard = shards.propertiesFor(5);
+        assertEquals("4", shard.getProperty("backfillConcurrency"));
+        assertEquals("300", shard.getProperty("messageIndexCapacity"));
+        assertEquals(10.0, Double.parseDouble(shard.getProperty("backfillGlobalRequestsPerSecond")), 1e-9);
+        assertEquals("checkpoints-shard5of8.bin", shard.getProperty("checkpointFile"));
+        assertEquals("spill-shard5of8.bin", shard.getProperty("spillFile"));
+        assertEquals("messages-shard5of8.idx", shard.getProperty("messageIndexFile"));
+        assertEquals("debug/shard5", shard.getProperty("debugDirectory"));
+    }
+
+    @Test
+    public void aShardsFilesDoNotDependOnItsProcessRange() {
+        Properties alone = new Shards(settings("shardCount", "4", "shardFirst", "2", "shardLast", "2"))
+                .propertiesFor(2);
+        Properties withOthers = new Shards(settings("shardCount", "4", "shardFirst", "1", "shardLast", "3"))
+                .propertiesFor(2);
+        assertEquals("checkpoints-shard2of4.bin", alone.getProperty("checkpointFile"));
+        assertEquals(alone.getProperty("checkpointFile"), withOthers.getProperty("checkpointFile"));
+        assertEquals(alone.getProperty("spillFile"), withOthers.getProperty("spillFile"));
+        // a limit split over no other shard is left whole
+        assertNull(alone.getProperty("backfillConcurrency"));
+    }
+
+    @Test
+    public void newShardsTakeTheOldStateOver() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(directory.resolve("checkpoints.bin"));
+        checkpoints.update(10, 500L << 22, CheckpointStore.COMPLETE);
+        checkpoints.update(20, 600L << 22, 300L << 22);
+        checkpoints.save();
+        MessageAuthorIndex index = MessageAuthorIndex.open(directory.resolve("messages.idx").toString(), 16);
+        index.add(7L << 22, 10, 1, 100, true);
+        index.add(8L << 22, 20, 2, 200, true);
+        index.markDeleted(8L << 22);
+        index.close();
+        try (OutputStream out = Files.newOutputStream(directory.resolve("spill.bin"))) {
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        Shards shards = new Shards(stateIn(directory, "shardCount", "2"));
+        shards.adoptState(0);
+        shards.adoptState(1);
+
+        for (int shard = 0; shard < 2; shard++) {
+            Properties properties = shards.propertiesFor(shard);
+            CheckpointStore adopted = new CheckpointStore(Path.of(properties.getProperty("checkpointFile")));
+            assertEquals(500L << 22, adopted.newest(10));
+            assertEquals(CheckpointStore.COMPLETE, adopted.oldest(10));
+            assertEquals(300L << 22, adopted.oldest(20));
+            MessageAuthorIndex adoptedIndex = MessageAuthorIndex.open(properties.getProperty("messageIndexFile"), 16);
+            assertEquals(100, adoptedIndex.markDeleted(7L << 22));
+            assertEquals(MessageAuthorIndex.NOT_COUNTED, adoptedIndex.markDeleted(8L << 22));
+            assertEquals(2, adoptedIndex.guildOf(20));
+            adoptedIndex.close();
+        }
+        // the spilled records go to one shard only
+        assertFalse(Files.exists(directory.resolve("spill.bin")));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(directory.resolve("spill-shard0of2.bin")));
+        assertFalse(Files.exists(directory.resolve("spill-shard1of2.bin")));
+    }
+
+    @Test
+    public void pendingRollupHoursFollowTheProcess() throws IOException {
+        Files.write(directory.resolve("rollups.bin"), new byte[]{1});
+        Files.write(directory.resolve("rollups-shard3of4.bin"), new byte[]{2});
+        Files.write(directory.resolve("rollups-shard0of4.bin"), new byte[]{3}); // the process running shards 0..1
+
+        Shards shards = new Shards(stateIn(directory, "shardCount", "4", "shardFirst", "2", "shardLast", "3"));
+        Path own = Path.of(shards.processProperties().getProperty("rollupFile"));
+        assertEquals(directory.resolve("rollups-shard2of4.bin"), own);
+        shards.adoptProcessState();
+        assertArrayEquals(new byte[]{1, 2}, Files.readAllBytes(own));
+        assertFalse(Files.exists(directory.resolve("rollups.bin")));
+        assertFalse(Files.exists(directory.resolve("rollups-shard3of4.bin")));
+        assertArrayEquals(new byte[]{3}, Files.readAllBytes(directory.resolve("rollups-shard0of4.bin")));
+    }
+
+    @Test
+    public void startedShardsKeepTheirOwnState() throws IOException {
+        Path oldFile = directory.resolve("checkpoints.bin");
+        CheckpointStore old = new CheckpointStore(oldFile);
+        old.update(10, 500L << 22, CheckpointStore.COMPLETE);
+        old.save();
+        Shards shards = new Shards(stateIn(directory, "shardCount", "2"));
+        Path ownFile = Path.of(shards.propertiesFor(1).getProperty("checkpointFile"));
+        CheckpointStore own = new CheckpointStore(ownFile);
+        own.update(10, 900L << 22, 800L << 22);
+        own.save();
+
+        shards.adoptState(1);
+        assertEquals(900L << 22, new CheckpointStore(ownFile).newest(10));
+
+        // going back to a single shard takes the per-shard files over, newest last, and ignores the rest
+        Files.delete(oldFile);
+        Files.write(directory.resolve("checkpoints.bin.tmp"), new byte[]{0});
+        Shards single = new Shards(stateIn(directory));
+        single.adoptState(0);
+        CheckpointStore merged = new CheckpointStore(oldFile);
+        assertEquals(900L << 22, merged.newest(10));
+        assertEquals(800L << 22, merged.oldest(10));
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(oldFile))) {
+            assertEquals(1, in.readInt());
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import com.sun.net.httpserver.HttpServer;
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/* runs the write pipeline through InfluxMessageStore and the real InfluxDB client against a local fake of the
+ * InfluxDB HTTP API, which records every line written to /write. */
+public class WriteBehindPipelineTest {
+    private HttpServer server;
+    private InfluxDB influxDB;
+    private Path spillFile;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failWrites = new AtomicInteger(); // /write requests still to answer with 500
+    private final AtomicInteger passWrites = new AtomicInteger(); // /write requests to accept before failWrites applies
+    private volatile long writeDelayMillis = 0;
+    private final List<String> rollups = Collections.synchronizedList(new ArrayList<>()); // INTO statements received
+    private volatile long rollupDelayMillis = 0;
+
+    @Before
+    public void startFakeInfluxDB() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ping", exchange -> {
+            exchange.getResponseHeaders().add("X-Influxdb-Version", "1.8.0");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/query", exchange -> {
+            // one empty result per statement; statements arrive in the URL (reads) or the form body (INTO writes)
+            String request = exchange.getRequestURI().getRawQuery() + "&" + new String(
+                    exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String statements = URLDecoder.decode(request, StandardCharsets.UTF_8).replaceAll("(^|.*&)q=([^&]*).*", "$2");
+            if (statements.contains(" INTO ")) {
+                rollups.add(statements);
+                try {
+                    Thread.sleep(rollupDelayMillis);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            StringJoiner results = new StringJoiner(",", "{\"results\":[", "]}");
+            for (int i = 0; i < statements.split(";").length; i++) results.add("{\"statement_id\":" + i + "}");
+            byte[] body = results.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/write", exchange -> {
+            String body;
+            boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (passWrites.getAndUpdate(remaining -> Math.max(0, remaining - 1)) == 0
+                    && failWrites.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+                byte[] error = "{\"error\":\"unavailable\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(500, error.length);
+                exchange.getResponseBody().write(error);
+                exchange.close();
+                return;
+            }
+            try {
+                Thread.sleep(writeDelayMillis);
+            } catch (InterruptedException ignored) {
+            }
+            for (String line : body.split("\n")) if (!line.isEmpty()) received.add(line);
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        influxDB = InfluxDBFactory.connect("http://127.0.0.1:" + server.getAddress().getPort());
+        influxDB.setDatabase("ChatKatTest");
+        spillFile = Files.createTempFile("chatkat-spill", ".bin");
+        Files.delete(spillFile);
+    }
+
+    @After
+    public void stopFakeInfluxDB() throws IOException {
+        influxDB.close();
+        server.stop(0);
+        Files.deleteIfExists(spillFile);
+        Files.deleteIfExists(WriteBehindPipeline.replayedFile(spillFile));
+    }
+
+    private WriteBehindPipeline pipeline(int capacity, int batchSize, int retries, WriteBehindPipeline.OverflowPolicy policy) {
+        return pipeline(new InfluxMessageStore(influxDB, "ChatKatTest"), capacity, batchSize, retries, policy);
+    }
+
+    private WriteBehindPipeline pipeline(MessageStore store, int capacity, int batchSize, int retries,
+                                         WriteBehindPipeline.OverflowPolicy policy) {
+        return new WriteBehindPipeline(store, capacity, batchSize, 50, retries, policy, spillFile, 1 << 20);
+    }
+
+    // the store writing line protocol itself, gzip-compressed, to the same fake.
+    private InfluxMessageStore lineProtocolStore() {
+        return new InfluxMessageStore(influxDB, "ChatKatTest", "http://127.0.0.1:" + server.getAddress().getPort(),
+                "", "", true);
+    }
+
+    // one message per producer channel; producers are numbered from 0, channels from 1.
+    private static MessageRecord record(int producer, long time) {
+        return new MessageRecord(time, 1, producer + 1, 1, 1);
+    }
+
+    // time of a received line in ms; the client writes nanosecond timestamps.
+    private static long time(String line) {
+        return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)) / 1_000_000;
+    }
+
+    private static String channel(String line) {
+        int start = line.indexOf("channelID=") + "channelID=".length();
+        return line.substring(start, line.indexOf(' ', start));
+    }
+
+    @Test
+    public void flushWritesEverythingOfferedBeforeItInOrder() {
+        WriteBehindPipeline writes = pipeline(10_000, 1_000, 3, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        for (int i = 1; i <= 20_000; i++) writes.offer(record(1, i));
+        writes.flush().block(Duration.ofSeconds(10));
+
+        assertEquals(20_000, received.size());
+        for (int i = 0; i < received.size(); i++) assertEquals(i + 1, time(received.get(i)));
+        assertEquals(20_000, writes.written.sum());
+        writes.close();
+    }
+
+    @Test
+    public void concurrentProducersKeepTheirOwnOrder() throws InterruptedException {
+        int producers = 4, perProducer = 50_000;
+        WriteBehindPipeline writes = pipeline(10_000, 5_000, 3, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        CountDownLatch done = new CountDownLatch(producers);
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) writes.offer(record(producer, i));
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        writes.flush().block(Duration.ofSeconds(30));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("write pipeline: %d points in %.2fs, %.0f points/sec%n",
+                producers * perProducer, seconds, producers * perProducer / seconds);
+
+        assertEquals(producers * perProducer, received.size());
+        Map<String, Long> last = new HashMap<>();
+        for (String line : received) {
+            long previous = last.getOrDefault(channel(line), 0L);
+            assertTrue("points of one producer arrive in the order offered", time(line) > previous);
+            last.put(channel(line), time(line));
+        }
+        writes.close();
+    }
+
+    @Test
+    public void failedBatchesAreSpilledAndReplayedFirst() throws IOException {
+        WriteBehindPipeline writes = pipeline(1_000, 100, 0, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        failWrites.set(1);
+        for (int i = 1; i <= 100; i++) writes.offer(record(1, i));
+        writes.flush().block(Duration.ofSeconds(10));
+        assertEquals(100, writes.spilled.sum());
+        assertTrue(Files.exists(spillFile));
+        assertTrue(received.isEmpty());
+
+        for (int i = 101; i <= 200; i++) writes.offer(record(1, i));
+        writes.flush().block(Duration.ofSeconds(10));
+        assertEquals(200, received.size());
+        for (int i = 0; i < received.size(); i++) assertEquals(i + 1, time(received.get(i)));
+        assertFalse(Files.exists(spillFile));
+        writes.close();
+    }
+
+    @Test
+    public void aFailedReplayResumesWhereItStopped() throws IOException {
+        WriteBehindPipeline writes = pipeline(1_000, 100, 0, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        failWrites.set(Integer.MAX_VALUE); // the database is down
+        for (int i = 1; i <= 100; i++) writes.offer(record(1, i));
+        assertFalse(writes.flush().block(Duration.ofSeconds(10)));
+        for (int i = 101; i <= 200; i++) writes.offer(record(1, i));
+        assertFalse(writes.flush().block(Duration.ofSeconds(10)));
+        assertTrue(received.isEmpty());
+
+        // the replay writes its first chunk, then fails: the file keeps every record and an offset past the first 100
+        passWrites.set(1);
+        for (int i = 201; i <= 300; i++) writes.offer(record(1, i));
+        assertFalse(writes.flush().block(Duration.ofSeconds(10)));
+        assertEquals(100, received.size());
+        assertEquals(300 * 37, Files.size(spillFile));
+
+        failWrites.set(0);
+        for (int i = 301; i <= 400; i++) writes.offer(record(1, i));
+        assertTrue(writes.flush().block(Duration.ofSeconds(10)));
+        assertEquals(400, received.size());
+        for (int i = 0; i < received.size(); i++) assertEquals(i + 1, time(received.get(i)));
+        assertFalse(Files.exists(spillFile));
+        assertFalse(Files.exists(WriteBehindPipeline.replayedFile(spillFile)));
+        writes.close();
+    }
+
+    @Test
+    public void dropNewestShedsLoadWhenTheDatabaseIsSlow() {
+        writeDelayMillis = 100;
+        WriteBehindPipeline writes = pipeline(100, 50, 0, WriteBehindPipeline.OverflowPolicy.DROP_NEWEST);
+        int accepted = 0;
+        for (int i = 1; i <= 10_000; i++) if (writes.offer(record(1, i))) accepted++;
+        writes.flush().block(Duration.ofSeconds(30));
+
+        assertTrue(writes.dropped.sum() > 0);
+        assertEquals(10_000, accepted + writes.dropped.sum());
+        assertEquals(accepted, received.size());
+        writes.close();
+    }
+
+    @Test
+    public void lineProtocolWritesMatchTheClient() {
+        WriteBehindPipeline client = pipeline(10_000, 1_000, 3, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        for (int i = 1; i <= 2_000; i++) client.offer(record(i % 4, i));
+        client.offer(MessageRecord.deletion(1, 1, 1, 1));
+        client.flush().block(Duration.ofSeconds(10));
+        List<String> written = new ArrayList<>(received);
+        received.clear();
+
+        WriteBehindPipeline line = pipeline(lineProtocolStore(), 10_000, 1_000, 3,
+                WriteBehindPipeline.OverflowPolicy.BLOCK);
+        for (int i = 1; i <= 2_000; i++) line.offer(record(i % 4, i));
+        line.offer(MessageRecord.deletion(1, 1, 1, 1));
+        line.flush().block(Duration.ofSeconds(10));
+
+        assertEquals(written, received);
+        client.close();
+        line.close();
+    }
+
+    @Test
+    public void failedLineProtocolWritesAreSpilled() {
+        WriteBehindPipeline writes = pipeline(lineProtocolStore(), 1_000, 100, 0, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        failWrites.set(1);
+        for (int i = 1; i <= 100; i++) writes.offer(record(1, i));
+        writes.flush().block(Duration.ofSeconds(10));
+        assertEquals(100, writes.spilled.sum());
+        assertTrue(received.isEmpty());
+
+        for (int i = 101; i <= 200; i++) writes.offer(record(1, i));
+        writes.flush().block(Duration.ofSeconds(10));
+        assertEquals(200, received.size());
+        for (int i = 0; i < received.size(); i++) assertEquals(i + 1, time(received.get(i)));
+        writes.close();
+    }
+
+    @Test
+    public void writesDoNotWaitForRollups() throws InterruptedException {
+        rollupDelayMillis = 5_000;
+        InfluxMessageStore store = new InfluxMessageStore(influxDB, "ChatKatTest");
+        long start = System.nanoTime();
+        for (int i = 1; i <= 10; i++) store.write(Collections.singletonList(record(1, i * 1000L)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+        // the ten writes touched one hour, which is rolled up once, shortly after
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (rollups.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        Thread.sleep(500);
+        assertEquals(1, rollups.size());
+        assertTrue(rollups.get(0).contains("INTO r1h_g1 FROM g1 WHERE time >= 0ms AND time < 3600000ms"));
+    }
+
+    @Test
+    public void hoursLeftPendingAreRolledUpAfterARestart() throws IOException, InterruptedException {
+        Path pendingFile = Files.createTempFile("chatkat-rollups", ".bin");
+        try {
+            // an earlier run wrote to hour 5 of guild 1 and stopped before rolling it up
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(pendingFile))) {
+                out.writeLong(1);
+                out.writeLong(5 * 3_600_000L);
+            }
+            InfluxMessageStore store = new InfluxMessageStore(influxDB, "ChatKatTest", null, null, null, false,
+                    pendingFile);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (Files.exists(pendingFile) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertFalse(Files.exists(pendingFile));
+            assertEquals(1, rollups.size());
+            assertTrue(rollups.get(0).contains("FROM g1 WHERE time >= 18000000ms AND time < 21600000ms"));
+
+            // a write keeps its hour in the file until it has been rolled up
+            rollupDelayMillis = 1_000;
+            store.write(Collections.singletonList(record(1, 1000)));
+            assertTrue(Files.exists(pendingFile));
+            deadline = System.currentTimeMillis() + 10_000;
+            while (Files.exists(pendingFile) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertFalse(Files.exists(pendingFile));
+            assertEquals(2, rollups.size());
+        } finally {
+            Files.deleteIfExists(pendingFile);
+        }
+    }
+
+    @Test
+    public void closeWritesWhatIsStillQueued() {
+        WriteBehindPipeline writes = pipeline(10_000, 1_000, 3, WriteBehindPipeline.OverflowPolicy.BLOCK);
+        for (int i = 1; i <= 2_500; i++) writes.offer(record(1, i));
+        writes.close();
+        assertEquals(2_500, received.size());
+        assertFalse(writes.offer(record(1, 2_501)));
+    }
+}